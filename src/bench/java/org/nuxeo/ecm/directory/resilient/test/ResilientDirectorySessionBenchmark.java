@@ -0,0 +1,273 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryFactory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectorySession;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hot paths of {@link ResilientDirectorySession} over the memory directories
+ * of <code>resilient-memory-directories-config.xml</code>, with a healthy, a
+ * failing and a slow (5ms per call) master. Run with:
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec
+ * </pre>
+ *
+ * The results are written as JSON in
+ * <code>target/jmh-result.json</code>, extra JMH options can be given with
+ * <code>-Djmh.args="..."</code>.
+ *
+ * @author Maxime Hilaire
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResilientDirectorySessionBenchmark {
+
+    static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    static final int ENTRIES = 1000;
+
+    static final int DRIFT = ENTRIES / 100;
+
+    static final long SLOW_MASTER_LATENCY = 5;
+
+    /**
+     * The runtime, the memory directories and the resilient directory
+     */
+    @State(Scope.Benchmark)
+    public static class Directories {
+
+        @Param({ "healthy", "failing", "slow" })
+        public String master;
+
+        NXRuntimeTestCase runtime;
+
+        MemoryDirectoryFactory memoryDirectoryFactory;
+
+        FaultyMemoryDirectory dir1;
+
+        FaultyMemoryDirectory dir2;
+
+        ResilientDirectory resilientDir;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            runtime = new NXRuntimeTestCase();
+            runtime.setUp();
+            runtime.deployBundle("org.nuxeo.ecm.core.schema");
+            runtime.deployBundle("org.nuxeo.ecm.directory.api");
+            runtime.deployBundle("org.nuxeo.ecm.directory");
+            runtime.deployBundle("org.nuxeo.ecm.directory.types.contrib");
+            runtime.deployBundle("org.nuxeo.ecm.directory.resilient");
+            runtime.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+            DirectoryService directoryService = Framework.getLocalService(DirectoryService.class);
+            memoryDirectoryFactory = new MemoryDirectoryFactory();
+            directoryService.registerDirectory("memdirs",
+                    memoryDirectoryFactory);
+            Set<String> schema1Set = new HashSet<String>(Arrays.asList(
+                    "uid", "foo", "bar"));
+            dir1 = new FaultyMemoryDirectory("dir1", "schema1", schema1Set,
+                    "uid", "foo");
+            memoryDirectoryFactory.registerDirectory(dir1);
+            dir2 = new FaultyMemoryDirectory("dir2", "schema1", schema1Set,
+                    "uid", "foo");
+            memoryDirectoryFactory.registerDirectory(dir2);
+
+            // entry 0 alone, the first 100 entries, all the entries can be
+            // queried
+            for (int i = 0; i < ENTRIES; i++) {
+                Map<String, Object> e = new HashMap<String, Object>();
+                e.put("uid", String.valueOf(i));
+                e.put("foo", "foo" + i);
+                e.put("bar", i < 100 ? "hundred" : "thousand");
+                dir1.getSession().createEntry(e);
+                dir2.getSession().createEntry(new HashMap<String, Object>(e));
+            }
+
+            runtime.deployContrib(TEST_BUNDLE,
+                    "resilient-memory-directories-config.xml");
+            resilientDir = (ResilientDirectory) directoryService.getDirectory("resilient");
+
+            if ("failing".equals(master)) {
+                dir1.setFailing(true);
+            } else if ("slow".equals(master)) {
+                dir1.setLatency(SLOW_MASTER_LATENCY);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            memoryDirectoryFactory.unregisterDirectory(dir1);
+            memoryDirectoryFactory.unregisterDirectory(dir2);
+            Framework.getLocalService(DirectoryService.class).unregisterDirectory(
+                    "memdirs", memoryDirectoryFactory);
+            runtime.tearDown();
+        }
+    }
+
+    /**
+     * The session of a benchmark thread, and the next entry it reads
+     */
+    @State(Scope.Thread)
+    public static class Caller {
+
+        ResilientDirectorySession session;
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Directories directories) throws Exception {
+            session = (ResilientDirectorySession) directories.resilientDir.getSession();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            session.close();
+        }
+
+        String nextId() {
+            next = (next + 1) % ENTRIES;
+            return String.valueOf(next);
+        }
+    }
+
+    /**
+     * A query returning <code>size</code> entries
+     */
+    @State(Scope.Benchmark)
+    public static class Query {
+
+        @Param({ "1", "100", "1000" })
+        public int size;
+
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            if (size == 1) {
+                filter.put("uid", "0");
+            } else if (size == 100) {
+                filter.put("bar", "hundred");
+            } else if (size != ENTRIES) {
+                throw new IllegalArgumentException("Unsupported size " + size);
+            }
+        }
+    }
+
+    /**
+     * Changes 1% of the master entries before each query, so that the query
+     * has to synchronize them on the slave
+     */
+    @State(Scope.Thread)
+    public static class Drift {
+
+        int version;
+
+        @Setup(Level.Invocation)
+        public void setUp(Directories directories) throws Exception {
+            if (directories.dir1.failing) {
+                // nothing to synchronize, the query is answered by the slave
+                return;
+            }
+            version++;
+            for (int i = 0; i < DRIFT; i++) {
+                // out of the first 100 entries, the queries stay the same
+                String id = String.valueOf(100 + i * 90);
+                Map<String, Object> e = new HashMap<String, Object>();
+                e.put("uid", id);
+                e.put("bar", "thousand" + version);
+                DocumentModel entry = BaseSession.createEntryModel(null,
+                        "schema1", id, null);
+                entry.getDataModel("schema1").setMap(e);
+                directories.dir1.getSession().updateEntry(entry);
+            }
+        }
+    }
+
+    @Benchmark
+    public DocumentModel getEntry(Caller caller) throws Exception {
+        return caller.session.getEntry(caller.nextId());
+    }
+
+    @Benchmark
+    public boolean hasEntry(Caller caller) throws Exception {
+        return caller.session.hasEntry(caller.nextId());
+    }
+
+    @Benchmark
+    public boolean authenticate(Caller caller) throws Exception {
+        String id = caller.nextId();
+        return caller.session.authenticate(id, "foo" + id);
+    }
+
+    @Benchmark
+    public DocumentModelList query(Caller caller, Query query)
+            throws Exception {
+        return caller.session.query(query.filter,
+                Collections.<String> emptySet());
+    }
+
+    /**
+     * Query all the entries, 1% of them having changed on the master: the
+     * query goes through the bulk synchronization of the slave
+     */
+    @Benchmark
+    public DocumentModelList querySync(Caller caller, Drift drift)
+            throws Exception {
+        return caller.session.query(Collections.<String, Serializable> emptyMap(),
+                Collections.<String> emptySet());
+    }
+
+}
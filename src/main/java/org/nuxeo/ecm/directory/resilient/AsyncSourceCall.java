@@ -0,0 +1,208 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Session;
+
+/**
+ * A {@link SourceCall} running in another thread on the session of a sub
+ * directory, so that the caller can stop waiting for it.
+ * <p>
+ * When the caller abandons the call, the session is detached from the
+ * {@link SubDirectoryInfo} (the next call of the caller opens a new one) and
+ * is closed by the call itself once done: a session is never used by two
+ * threads at a time.
+ *
+ * @since 5.9
+ */
+public class AsyncSourceCall<T> implements Callable<T> {
+
+    protected static final int RUNNING = 0;
+
+    protected static final int DONE = 1;
+
+    protected static final int ABANDONED = 2;
+
+    protected final SubDirectoryInfo info;
+
+    protected final Session session;
+
+    protected final SourceCall<T> call;
+
+    protected final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    protected Future<T> future;
+
+    /**
+     * Where the call puts itself once done, null if nobody waits for several
+     * calls at a time
+     */
+    protected BlockingQueue<AsyncSourceCall<T>> completion;
+
+    /**
+     * True if abandoned at its deadline, its outcome has been recorded as a
+     * failure already
+     */
+    protected volatile boolean timedOut;
+
+    protected AsyncSourceCall(SubDirectoryInfo info, SourceCall<T> call)
+            throws DirectoryException {
+        this.info = info;
+        this.call = call;
+        // opened in the caller thread, as any other session of the caller
+        session = info.getSession();
+    }
+
+    /**
+     * Start the call on the sub directory session of the caller
+     *
+     * @throws RejectedExecutionException if no thread is available
+     */
+    public static <T> AsyncSourceCall<T> submit(ExecutorService executor,
+            SubDirectoryInfo info, SourceCall<T> call)
+            throws DirectoryException {
+        return submit(executor, info, call, null);
+    }
+
+    /**
+     * Start the call on the sub directory session of the caller, the call is
+     * put in the given queue once done
+     *
+     * @throws RejectedExecutionException if no thread is available
+     */
+    public static <T> AsyncSourceCall<T> submit(ExecutorService executor,
+            SubDirectoryInfo info, SourceCall<T> call,
+            BlockingQueue<AsyncSourceCall<T>> completion)
+            throws DirectoryException {
+        AsyncSourceCall<T> asyncCall = new AsyncSourceCall<T>(info, call);
+        asyncCall.completion = completion;
+        asyncCall.future = executor.submit(asyncCall);
+        return asyncCall;
+    }
+
+    @Override
+    public T call() throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = call.call(info.state, session);
+            if (timedOut) {
+                info.record(call.getOperation(), start, false);
+            } else {
+                info.recordSuccess(call.getOperation(), start);
+            }
+            failed = false;
+            return result;
+        } catch (Exception e) {
+            // whatever the exception, the failure is recorded and the session
+            // is not given back to the pool as is
+            if (timedOut) {
+                info.record(call.getOperation(), start, true);
+            } else {
+                info.recordFailure(call.getOperation(), start);
+            }
+            throw e;
+        } finally {
+            if (!state.compareAndSet(RUNNING, DONE)) {
+                // abandoned by the caller, nobody else will use this session
+                try {
+                    info.release(session, failed);
+                } catch (DirectoryException e) {
+                    // already logged by the session
+                }
+            }
+            if (completion != null) {
+                completion.offer(this);
+            }
+        }
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /**
+     * Wait for the result at most the given time
+     */
+    public T get(long timeout, TimeUnit unit) throws ClientException,
+            TimeoutException {
+        try {
+            return future.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DirectoryException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Wait for the result
+     */
+    public T get() throws ClientException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DirectoryException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    protected ClientException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof ClientException) {
+            return (ClientException) cause;
+        }
+        return new DirectoryException(cause);
+    }
+
+    /**
+     * The caller stops waiting at the deadline of the call
+     */
+    public void timeout() {
+        timedOut = true;
+        abandon();
+    }
+
+    /**
+     * The caller does not wait for the result anymore
+     */
+    public void abandon() {
+        if (state.compareAndSet(RUNNING, ABANDONED)) {
+            if (info.session == session) {
+                info.session = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A percentile of a {@link LatencyHistogram} computed at most once a second,
+ * so that the policies reading it on every call only read a volatile field.
+ * <p>
+ * Two threads may compute it at the same time when it is stale, the last
+ * one wins: both values are as good.
+ *
+ * @since 5.9
+ */
+public class CachedPercentile {
+
+    protected static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    protected static class Snapshot {
+
+        final long computedAt;
+
+        final long count;
+
+        final long value;
+
+        Snapshot(long computedAt, long count, long value) {
+            this.computedAt = computedAt;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    protected final LatencyHistogram histogram;
+
+    protected final double percentile;
+
+    protected volatile Snapshot snapshot;
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public CachedPercentile(LatencyHistogram histogram, double percentile) {
+        this.histogram = histogram;
+        this.percentile = percentile;
+    }
+
+    /**
+     * @return the percentile in nanoseconds as of the last second, -1 if
+     *         there were fewer latencies than the given minimum
+     */
+    public long get(long minSamples) {
+        long now = System.nanoTime();
+        Snapshot current = snapshot;
+        if (current == null || now - current.computedAt > REFRESH_NANOS) {
+            long count = histogram.getCount();
+            current = new Snapshot(now, count,
+                    count >= minSamples ? histogram.getPercentile(percentile)
+                            : 0);
+            snapshot = current;
+        }
+        return current.count >= minSamples ? current.value : -1;
+    }
+
+}
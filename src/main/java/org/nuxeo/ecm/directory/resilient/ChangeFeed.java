@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Incremental change feed of a master directory: the ids of the entries
+ * created or modified since a high-water mark.
+ * <p>
+ * The deletions are not seen by a feed, the resynchronization removes them
+ * from the slaves.
+ *
+ * @since 5.9
+ */
+public interface ChangeFeed {
+
+    /**
+     * Ids of the entries changed since a mark, and the mark to give to the
+     * next poll
+     */
+    public static class Changes {
+
+        public final List<String> ids = new ArrayList<String>();
+
+        /**
+         * The highest change stamp seen, the previous mark if nothing changed
+         */
+        public String mark;
+
+        public Changes(String mark) {
+            this.mark = mark;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{changes=%s, mark=%s}", ids.size(), mark);
+        }
+    }
+
+    /**
+     * @param master the master info, its session is used for the poll
+     * @param mark the mark returned by the previous poll, null for the first
+     *            one: all the entries are returned
+     * @return the entries changed at or after the mark, a same change may be
+     *         returned twice
+     */
+    Changes poll(SubDirectoryInfo master, String mark)
+            throws DirectoryException;
+
+}
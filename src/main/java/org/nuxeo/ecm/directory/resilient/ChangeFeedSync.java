@@ -0,0 +1,298 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.Directory;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.sql.SQLDirectory;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Scheduled incremental synchronization of the slaves: every
+ * <code>interval</code> seconds the master {@link ChangeFeed} gives the
+ * entries changed since the last poll, and they are replicated on the slaves.
+ * <p>
+ * The mark is saved in the data directory once the changes have been
+ * replicated, a restart goes on from it. The entries deleted on the master
+ * are not seen, the resynchronization deletes them.
+ *
+ * @since 5.9
+ */
+public class ChangeFeedSync {
+
+    private static final Log log = LogFactory.getLog(ChangeFeedSync.class);
+
+    protected static final String LDAP_DIRECTORY_CLASS = "org.nuxeo.ecm.directory.ldap.LDAPDirectory";
+
+    protected static final String MARK = "mark";
+
+    protected final ResilientDirectory directory;
+
+    protected final ResilientDirectoryDescriptor descriptor;
+
+    protected final AtomicBoolean running = new AtomicBoolean();
+
+    protected volatile boolean shutdown = false;
+
+    protected ScheduledFuture<?> future;
+
+    protected ChangeFeed feed;
+
+    protected volatile String mark;
+
+    protected volatile boolean markLoaded = false;
+
+    protected volatile int lastCount;
+
+    protected volatile long lastSync;
+
+    public ChangeFeedSync(ResilientDirectory directory) {
+        this.directory = directory;
+        descriptor = directory.getDescriptor();
+    }
+
+    public boolean isEnabled() {
+        return descriptor.changeFeedEnabled;
+    }
+
+    /**
+     * Schedule the polls of the change feed, if enabled
+     */
+    public synchronized void start() {
+        if (!isEnabled() || future != null || shutdown) {
+            return;
+        }
+        long interval = Math.max(1, descriptor.changeFeedInterval);
+        future = directory.getScheduler().scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sync();
+                        } catch (Exception e) {
+                            // do not cancel the next polls
+                            log.error(String.format(
+                                    "Resilient directory '%s' : incremental synchronization failed",
+                                    descriptor.name), e);
+                        }
+                    }
+                }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    /**
+     * Poll the change feed and replicate the changed entries, in the caller
+     * thread
+     *
+     * @return the number of changed entries, -1 if the master has no feed, a
+     *         synchronization is already running, or the replication has been
+     *         interrupted by a master error
+     */
+    public int sync() throws DirectoryException {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+        try {
+            ChangeFeed changeFeed = getFeed();
+            if (changeFeed == null) {
+                return -1;
+            }
+            if (!markLoaded) {
+                mark = loadMark();
+                markLoaded = true;
+            }
+            ChangeFeed.Changes changes = poll(changeFeed);
+            if (!directory.getReplicator().replicateFromMaster(changes.ids)) {
+                return -1;
+            }
+            if (changes.mark != null && !changes.mark.equals(mark)) {
+                mark = changes.mark;
+                saveMark(mark);
+            }
+            lastCount = changes.ids.size();
+            lastSync = System.currentTimeMillis();
+            if (log.isDebugEnabled()) {
+                log.debug(String.format(
+                        "Resilient directory '%s' : %s changed entries replicated",
+                        descriptor.name, changes));
+            }
+            return lastCount;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    protected ChangeFeed.Changes poll(ChangeFeed changeFeed)
+            throws DirectoryException {
+        SubDirectoryInfo master = null;
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            if (sub.isMaster()) {
+                master = directory.newSubDirectoryInfo(sub);
+            }
+        }
+        boolean tx = TransactionHelper.startTransaction();
+        try {
+            return changeFeed.poll(master, mark);
+        } finally {
+            master.close(null);
+            if (tx) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    /**
+     * Build the feed matching the master type: the configured column for a
+     * SQL master, the configured attribute for a LDAP master
+     *
+     * @return null if the master has no feed
+     */
+    protected synchronized ChangeFeed getFeed() throws DirectoryException {
+        if (feed != null) {
+            return feed;
+        }
+        Directory master = null;
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            if (sub.isMaster()) {
+                master = ResilientDirectoryFactory.getDirectoryService().getDirectory(
+                        sub.name);
+            }
+        }
+        if (master instanceof SQLDirectory
+                && descriptor.changeFeedColumn != null) {
+            feed = new SQLChangeFeed((SQLDirectory) master,
+                    descriptor.changeFeedColumn);
+        } else if (isLDAPDirectory(master)) {
+            feed = new LDAPChangeFeed(master,
+                    descriptor.changeFeedAttribute);
+        } else {
+            log.warn(String.format(
+                    "Resilient directory '%s' : the master has no change feed (a SQL master needs a column), incremental synchronization disabled",
+                    descriptor.name));
+            shutdown();
+        }
+        return feed;
+    }
+
+    /**
+     * The LDAP bundle is optional, do not link to it if not deployed
+     */
+    protected static boolean isLDAPDirectory(Directory dir) {
+        if (dir == null) {
+            return false;
+        }
+        try {
+            return Class.forName(LDAP_DIRECTORY_CLASS, false,
+                    ChangeFeedSync.class.getClassLoader()).isInstance(dir);
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    protected File getMarkFile() {
+        return new File(directory.getDataDirectory(), descriptor.name
+                + ".feed");
+    }
+
+    protected String loadMark() {
+        File file = getMarkFile();
+        if (!file.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : unable to read change feed mark %s",
+                    descriptor.name, file), e);
+            return null;
+        }
+        return properties.getProperty(MARK);
+    }
+
+    protected void saveMark(String mark) {
+        Properties properties = new Properties();
+        properties.setProperty(MARK, mark);
+        File file = getMarkFile();
+        try {
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : unable to save change feed mark %s",
+                    descriptor.name, file), e);
+        }
+    }
+
+    /**
+     * @return the mark of the last replicated changes, null before the first
+     *         synchronization
+     */
+    public String getMark() {
+        return mark;
+    }
+
+    /**
+     * @return the number of entries replicated by the last synchronization
+     */
+    public int getLastCount() {
+        return lastCount;
+    }
+
+    /**
+     * @return the end time of the last synchronization, 0 if none
+     */
+    public long getLastSync() {
+        return lastSync;
+    }
+
+}
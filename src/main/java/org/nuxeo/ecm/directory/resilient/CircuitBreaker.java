@@ -0,0 +1,239 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Circuit breaker of a sub directory.
+ * <p>
+ * The outcome of the last <code>windowSize</code> calls is kept. When enough
+ * calls have been recorded and either the failure rate or the slow call rate
+ * reaches its threshold, the circuit opens: the calls are refused for
+ * <code>openDuration</code>. Then the circuit is half-open and a single probe
+ * call is let through, its outcome closes or re-opens the circuit.
+ *
+ * @since 5.9
+ */
+public class CircuitBreaker {
+
+    private static final Log log = LogFactory.getLog(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    protected static final byte SUCCESS = 0;
+
+    protected static final byte FAILURE = 1;
+
+    protected static final byte SLOW = 2;
+
+    protected final String name;
+
+    protected final boolean enabled;
+
+    protected final int minimumCalls;
+
+    protected final int failureRateThreshold;
+
+    protected final long slowCallNanos;
+
+    protected final int slowCallRateThreshold;
+
+    protected final long openNanos;
+
+    protected final byte[] outcomes;
+
+    protected int index;
+
+    protected int count;
+
+    protected int failures;
+
+    protected int slows;
+
+    protected volatile State state = State.CLOSED;
+
+    protected volatile long openedAt;
+
+    protected boolean probing;
+
+    protected long probeStartedAt;
+
+    /**
+     * @param name the sub directory name, for logging
+     * @param windowSize number of calls the rates are computed on
+     * @param minimumCalls number of calls needed before the circuit can open
+     * @param failureRateThreshold failure rate in percent opening the
+     *            circuit
+     * @param slowCallDuration duration in milliseconds above which a call is
+     *            slow
+     * @param slowCallRateThreshold slow call rate in percent opening the
+     *            circuit
+     * @param openDuration time in milliseconds before the circuit lets a
+     *            probe through
+     */
+    public CircuitBreaker(String name, boolean enabled, int windowSize,
+            int minimumCalls, int failureRateThreshold, long slowCallDuration,
+            int slowCallRateThreshold, long openDuration) {
+        this.name = name;
+        this.enabled = enabled;
+        outcomes = new byte[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, outcomes.length));
+        this.failureRateThreshold = failureRateThreshold;
+        slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        openNanos = TimeUnit.MILLISECONDS.toNanos(openDuration);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if the circuit is open and its open duration not elapsed
+     */
+    public boolean isOpen() {
+        return enabled && state == State.OPEN
+                && System.nanoTime() - openedAt < openNanos;
+    }
+
+    /**
+     * @return true if the call can be done on the sub directory. The caller
+     *         must then report the outcome with {@link #onSuccess} or
+     *         {@link #onFailure}.
+     */
+    public boolean allowRequest() {
+        if (!enabled || state == State.CLOSED) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (state == State.OPEN && now - openedAt < openNanos) {
+            return false;
+        }
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (now - openedAt < openNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            if (state == State.CLOSED) {
+                return true;
+            }
+            // a lost probe (not reported) is replaced after the open duration
+            if (probing && now - probeStartedAt < openNanos) {
+                return false;
+            }
+            probing = true;
+            probeStartedAt = now;
+            return true;
+        }
+    }
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} at the call start
+     */
+    public void onSuccess(long startNanos) {
+        record(System.nanoTime() - startNanos, false);
+    }
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} at the call start
+     */
+    public void onFailure(long startNanos) {
+        record(System.nanoTime() - startNanos, true);
+    }
+
+    protected void record(long durationNanos, boolean failure) {
+        if (!enabled) {
+            return;
+        }
+        boolean slow = durationNanos >= slowCallNanos;
+        synchronized (this) {
+            if (state == State.HALF_OPEN) {
+                // outcome of the probe
+                probing = false;
+                if (failure || slow) {
+                    open();
+                } else {
+                    close();
+                }
+                return;
+            }
+            if (state == State.OPEN) {
+                // late outcome of a call started before the opening
+                return;
+            }
+            byte outcome = failure ? FAILURE : slow ? SLOW : SUCCESS;
+            if (count == outcomes.length) {
+                // forget the oldest outcome
+                byte old = outcomes[index];
+                if (old == FAILURE) {
+                    failures--;
+                } else if (old == SLOW) {
+                    slows--;
+                }
+            } else {
+                count++;
+            }
+            outcomes[index] = outcome;
+            index = (index + 1) % outcomes.length;
+            if (outcome == FAILURE) {
+                failures++;
+            } else if (outcome == SLOW) {
+                slows++;
+            }
+            if (count >= minimumCalls
+                    && (failures * 100 >= failureRateThreshold * count || slows * 100 >= slowCallRateThreshold
+                            * count)) {
+                open();
+            }
+        }
+    }
+
+    protected void open() {
+        log.warn(String.format(
+                "Circuit opened on directory '%s' (%s failures, %s slow calls on %s), calls go to the slaves for %sms",
+                name, failures, slows, count,
+                TimeUnit.NANOSECONDS.toMillis(openNanos)));
+        openedAt = System.nanoTime();
+        reset();
+        state = State.OPEN;
+    }
+
+    protected void close() {
+        log.info(String.format("Circuit closed on directory '%s'", name));
+        reset();
+        state = State.CLOSED;
+    }
+
+    protected void reset() {
+        index = 0;
+        count = 0;
+        failures = 0;
+        slows = 0;
+    }
+
+}
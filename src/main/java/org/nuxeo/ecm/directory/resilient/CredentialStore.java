@@ -0,0 +1,321 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Verifiers of the passwords last accepted by the master, to authenticate
+ * the users while the master is down without storing their password on the
+ * slaves.
+ * <p>
+ * A verifier is a salted PBKDF2 hash, computed only when the password
+ * accepted by the master changes: a salted digest of the last verified
+ * password is kept in memory (never saved) to recognize it without hashing it
+ * again. The verifiers are appended to a file in the data directory, which
+ * is compacted when loaded.
+ *
+ * @since 5.9
+ */
+public class CredentialStore {
+
+    private static final Log log = LogFactory.getLog(CredentialStore.class);
+
+    protected static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    protected static final int SALT_LENGTH = 16;
+
+    protected static final int HASH_LENGTH = 20;
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected static class Verifier {
+
+        final int iterations;
+
+        final byte[] salt;
+
+        final byte[] hash;
+
+        /**
+         * Salted digest of the password, in memory only, null if unknown
+         */
+        volatile byte[] fastDigest;
+
+        Verifier(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        String encode() {
+            return iterations + ":" + toHex(salt) + ":" + toHex(hash);
+        }
+
+        static Verifier decode(String value) {
+            String[] parts = value.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException(value);
+            }
+            return new Verifier(Integer.parseInt(parts[0]),
+                    fromHex(parts[1]), fromHex(parts[2]));
+        }
+    }
+
+    protected final int iterations;
+
+    protected final File file;
+
+    protected final SecureRandom random = new SecureRandom();
+
+    protected final byte[] processSalt = new byte[SALT_LENGTH];
+
+    protected final ConcurrentMap<String, Verifier> verifiers = new ConcurrentHashMap<String, Verifier>();
+
+    /**
+     * @param file where the verifiers are saved, null to keep them in memory
+     */
+    public CredentialStore(int iterations, File file) {
+        this.iterations = Math.max(1, iterations);
+        this.file = file;
+        random.nextBytes(processSalt);
+    }
+
+    /**
+     * @return true if a verifier is known for the user
+     */
+    public boolean contains(String username) {
+        return verifiers.containsKey(username);
+    }
+
+    /**
+     * Check a password against the verifier of the user
+     *
+     * @return null if no verifier is known for the user
+     */
+    public Boolean verify(String username, String password) {
+        Verifier verifier = verifiers.get(username);
+        if (verifier == null) {
+            return null;
+        }
+        if (password == null) {
+            return Boolean.FALSE;
+        }
+        byte[] fastDigest = fastDigest(username, password);
+        if (verifier.fastDigest != null
+                && MessageDigest.isEqual(verifier.fastDigest, fastDigest)) {
+            return Boolean.TRUE;
+        }
+        boolean valid = MessageDigest.isEqual(verifier.hash,
+                hash(password, verifier.salt, verifier.iterations));
+        if (valid) {
+            verifier.fastDigest = fastDigest;
+        }
+        return Boolean.valueOf(valid);
+    }
+
+    /**
+     * Record the password the master has just accepted, if it changed
+     */
+    public void update(String username, String password) {
+        if (username == null || password == null) {
+            return;
+        }
+        if (Boolean.TRUE.equals(verify(username, password))) {
+            return;
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Verifier verifier = new Verifier(iterations, salt, hash(password,
+                salt, iterations));
+        verifier.fastDigest = fastDigest(username, password);
+        verifiers.put(username, verifier);
+        append(username, verifier);
+    }
+
+    /**
+     * Forget the verifier of a user, the master does not have it anymore
+     */
+    public void remove(String username) {
+        if (verifiers.remove(username) != null) {
+            append(username, null);
+        }
+    }
+
+    public int size() {
+        return verifiers.size();
+    }
+
+    protected byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+                iterations, HASH_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(
+                    spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    protected byte[] fastDigest(String username, String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(processSalt);
+            md.update(username.getBytes(UTF8));
+            md.update((byte) 0);
+            return md.digest(password.getBytes(UTF8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Append a verifier to the file, an empty one for a removed user
+     */
+    protected synchronized void append(String username, Verifier verifier) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.getParentFile().mkdirs();
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file, true), UTF8));
+            try {
+                out.write(toHex(username.getBytes(UTF8)));
+                out.write('=');
+                if (verifier != null) {
+                    out.write(verifier.encode());
+                }
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to save the credential verifier in " + file, e);
+        }
+    }
+
+    /**
+     * Load the saved verifiers, then rewrite the file with only the last
+     * verifier of each user
+     */
+    public synchronized void load() throws IOException {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int i = line.indexOf('=');
+                if (i <= 0) {
+                    continue;
+                }
+                try {
+                    String username = new String(
+                            fromHex(line.substring(0, i)), UTF8);
+                    String value = line.substring(i + 1);
+                    if (value.isEmpty()) {
+                        verifiers.remove(username);
+                    } else {
+                        verifiers.put(username, Verifier.decode(value));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // truncated line, skip it
+                }
+            }
+        } finally {
+            in.close();
+        }
+        compact();
+    }
+
+    protected void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), UTF8));
+        try {
+            for (Map.Entry<String, Verifier> entry : verifiers.entrySet()) {
+                out.write(toHex(entry.getKey().getBytes(UTF8)));
+                out.write('=');
+                out.write(entry.getValue().encode());
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to "
+                        + file);
+            }
+        }
+    }
+
+    protected static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    protected static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException(hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException(hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+}
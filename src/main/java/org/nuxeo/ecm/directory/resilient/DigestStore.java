@@ -0,0 +1,212 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Digests of the entries last written on a slave, to skip the writes that
+ * would not change anything.
+ * <p>
+ * The password is digested apart, salted, as it is only written when known
+ * (authentication): a write without password leaves the slave one as is. The
+ * password digests are never persisted. The least recently used entries are
+ * forgotten above <code>maxSize</code>, a forgotten entry is simply written
+ * again.
+ *
+ * @since 5.9
+ */
+public class DigestStore {
+
+    protected static final int FILE_VERSION = 1;
+
+    /**
+     * Password digest of an entry whose password is unknown
+     */
+    protected static final long UNKNOWN = 0;
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected final int maxSize;
+
+    protected final byte[] salt = new byte[16];
+
+    /**
+     * id -> {fields digest, password digest}
+     */
+    protected final LinkedHashMap<String, long[]> digests;
+
+    public DigestStore(final int maxSize) {
+        this.maxSize = maxSize;
+        new SecureRandom().nextBytes(salt);
+        digests = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param fieldsDigest the digest of the properties to write, password
+     *            excluded
+     * @param password the password to write, null if not written
+     * @return true if the slave already has these values
+     */
+    public synchronized boolean isUpToDate(String id, long fieldsDigest,
+            Object password) {
+        long[] digest = digests.get(id);
+        if (digest == null || digest[0] != fieldsDigest) {
+            return false;
+        }
+        return password == null || digest[1] == passwordDigest(password);
+    }
+
+    /**
+     * Remember the values written on the slave
+     *
+     * @param password the password written, null if not written
+     */
+    public synchronized void put(String id, long fieldsDigest, Object password) {
+        long[] digest = digests.get(id);
+        if (digest == null) {
+            digest = new long[] { fieldsDigest, UNKNOWN };
+            digests.put(id, digest);
+        }
+        digest[0] = fieldsDigest;
+        if (password != null) {
+            digest[1] = passwordDigest(password);
+        }
+    }
+
+    /**
+     * Forget an entry: deleted, or its write failed
+     */
+    public synchronized void remove(String id) {
+        digests.remove(id);
+    }
+
+    public synchronized void clear() {
+        digests.clear();
+    }
+
+    public synchronized int size() {
+        return digests.size();
+    }
+
+    protected long passwordDigest(Object password) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        md.update(salt);
+        byte[] bytes = md.digest(String.valueOf(password).getBytes(UTF8));
+        long digest = 0;
+        for (int i = 0; i < 8; i++) {
+            digest = (digest << 8) | (bytes[i] & 0xff);
+        }
+        return digest == UNKNOWN ? 1 : digest;
+    }
+
+    /**
+     * Load the fields digests saved by {@link #save(File)}, if the file exists
+     */
+    public void load(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    String id = in.readUTF();
+                    long fieldsDigest = in.readLong();
+                    if (!digests.containsKey(id)) {
+                        digests.put(id, new long[] { fieldsDigest, UNKNOWN });
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // truncated file, keep what has been read
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the fields digests, least recently used first
+     */
+    public void save(File file) throws IOException {
+        List<String> ids;
+        List<Long> fieldsDigests;
+        synchronized (this) {
+            ids = new ArrayList<String>(digests.keySet());
+            fieldsDigests = new ArrayList<Long>(ids.size());
+            for (long[] digest : digests.values()) {
+                fieldsDigests.add(Long.valueOf(digest[0]));
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                out.writeUTF(ids.get(i));
+                out.writeLong(fieldsDigests.get(i).longValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to "
+                        + file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Changes to apply on a slave so that its entries match the master ones, for
+ * the same query on both.
+ * <p>
+ * Computed in linear time: the master entries are indexed by id, then each
+ * slave entry is looked up and their digests compared. The password is not
+ * compared, the master does not always give it back.
+ *
+ * @since 5.9
+ */
+public class EntryDiff {
+
+    /**
+     * Master entries missing on the slave
+     */
+    public final List<DocumentModel> creates = new ArrayList<DocumentModel>();
+
+    /**
+     * Master entries whose values differ on the slave
+     */
+    public final List<DocumentModel> updates = new ArrayList<DocumentModel>();
+
+    /**
+     * Ids of the slave entries missing on the master
+     */
+    public final List<String> deletes = new ArrayList<String>();
+
+    /**
+     * True if computed on a page of the results: the creates may exist on
+     * another page of the slave, and the deletes are not known
+     */
+    public boolean partial;
+
+    /**
+     * @param masterEntries the entries found on the master
+     * @param slaveEntries the entries found on the slave for the same query
+     * @param schemaName the schema of the entries
+     * @param passwordKey the password property, not compared, can be null
+     */
+    public static EntryDiff compute(List<DocumentModel> masterEntries,
+            List<DocumentModel> slaveEntries, String schemaName,
+            String passwordKey) {
+        EntryDiff diff = new EntryDiff();
+        Map<String, DocumentModel> masterById = new HashMap<String, DocumentModel>(
+                masterEntries.size() * 4 / 3 + 1);
+        for (DocumentModel entry : masterEntries) {
+            masterById.put(entry.getId(), entry);
+        }
+        Map<String, DocumentModel> slaveById = new HashMap<String, DocumentModel>(
+                slaveEntries.size() * 4 / 3 + 1);
+        for (DocumentModel slaveEntry : slaveEntries) {
+            String id = slaveEntry.getId();
+            slaveById.put(id, slaveEntry);
+            DocumentModel masterEntry = masterById.get(id);
+            if (masterEntry == null) {
+                diff.deletes.add(id);
+            } else if (EntryDigest.digest(
+                    masterEntry.getProperties(schemaName), passwordKey) != EntryDigest.digest(
+                    slaveEntry.getProperties(schemaName), passwordKey)) {
+                diff.updates.add(masterEntry);
+            }
+        }
+        // keep the master order for the creations
+        for (DocumentModel entry : masterEntries) {
+            if (!slaveById.containsKey(entry.getId())) {
+                diff.creates.add(entry);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * Changes to apply on a slave for a page of the results of the same
+     * query, the pages of the master and the slave may be shifted
+     *
+     * @see #partial
+     */
+    public static EntryDiff computePage(List<DocumentModel> masterPage,
+            List<DocumentModel> slavePage, String schemaName,
+            String passwordKey) {
+        EntryDiff diff = compute(masterPage, slavePage, schemaName,
+                passwordKey);
+        diff.deletes.clear();
+        diff.partial = true;
+        return diff;
+    }
+
+    public boolean isEmpty() {
+        return creates.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+    }
+
+    public int size() {
+        return creates.size() + updates.size() + deletes.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{creates=%s, updates=%s, deletes=%s}",
+                creates.size(), updates.size(), deletes.size());
+    }
+
+}
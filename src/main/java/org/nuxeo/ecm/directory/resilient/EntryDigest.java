@@ -0,0 +1,122 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.lang.reflect.Array;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stable 64 bits digest of the properties of an entry (FNV-1a), independent
+ * of the map ordering and of the value instances.
+ *
+ * @since 5.9
+ */
+public class EntryDigest {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    private long hash = OFFSET_BASIS;
+
+    private EntryDigest() {
+    }
+
+    /**
+     * @param props the properties, keyed by field name
+     * @param excludedKey a property not part of the digest (the password),
+     *            can be null
+     */
+    public static long digest(Map<String, ?> props, String excludedKey) {
+        EntryDigest digest = new EntryDigest();
+        Map<String, ?> sorted = props instanceof TreeMap ? props
+                : new TreeMap<String, Object>(props);
+        for (Map.Entry<String, ?> prop : sorted.entrySet()) {
+            String key = prop.getKey();
+            if (key == null || key.equals(excludedKey)) {
+                continue;
+            }
+            digest.update(key);
+            digest.update('=');
+            digest.updateValue(prop.getValue());
+            digest.update(';');
+        }
+        return digest.hash;
+    }
+
+    protected void updateValue(Object value) {
+        if (value == null) {
+            update('\0');
+        } else if (value instanceof Calendar) {
+            update('c');
+            update(Long.toString(((Calendar) value).getTimeInMillis()));
+        } else if (value instanceof Date) {
+            update('c');
+            update(Long.toString(((Date) value).getTime()));
+        } else if (value instanceof Collection) {
+            update('[');
+            for (Object item : (Collection<?>) value) {
+                updateValue(item);
+                update(',');
+            }
+            update(']');
+        } else if (value.getClass().isArray()) {
+            update('[');
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                updateValue(Array.get(value, i));
+                update(',');
+            }
+            update(']');
+        } else if (value instanceof Map) {
+            update('{');
+            for (Map.Entry<?, ?> entry : new TreeMap<Object, Object>(
+                    (Map<?, ?>) value).entrySet()) {
+                updateValue(entry.getKey());
+                update(':');
+                updateValue(entry.getValue());
+                update(',');
+            }
+            update('}');
+        } else {
+            // numbers, booleans and strings of the same value have the same
+            // digest: the directories do not always give back the type set
+            update('s');
+            update(value.toString());
+        }
+    }
+
+    protected void update(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            update(s.charAt(i));
+        }
+    }
+
+    protected void update(char c) {
+        hash ^= c & 0xff;
+        hash *= PRIME;
+        hash ^= c >>> 8;
+        hash *= PRIME;
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Background probe of the master and of the slaves of a resilient directory,
+ * shared by all its sessions.
+ * <p>
+ * Each sub directory is asked for a sentinel id on a schedule, with its own
+ * session and thread so that a hung source does not delay the others. The
+ * resulting health is published in the {@link SubDirectoryState}, where the
+ * sessions read it without lock: a sub directory down is skipped like one
+ * whose circuit is open, and no user request waits for its timeout. The first
+ * successful probe brings it back.
+ *
+ * @since 5.9
+ */
+public class HealthMonitor {
+
+    private static final Log log = LogFactory.getLog(HealthMonitor.class);
+
+    public enum Health {
+        UP, DEGRADED, DOWN
+    }
+
+    /**
+     * Id looked up by the probes, cheap on every kind of directory
+     */
+    protected static final String PROBE_ID = "__resilient_health__";
+
+    protected final ResilientDirectory directory;
+
+    protected final ResilientDirectoryDescriptor descriptor;
+
+    protected final long slowNanos;
+
+    /**
+     * Probes still running, and failures in a row, by sub directory. Only
+     * used by the thread probing.
+     */
+    protected final Map<String, Future<Long>> pending = new HashMap<String, Future<Long>>();
+
+    protected final Map<String, Integer> failures = new HashMap<String, Integer>();
+
+    protected volatile boolean shutdown = false;
+
+    protected ScheduledFuture<?> future;
+
+    protected ExecutorService probeExecutor;
+
+    public HealthMonitor(ResilientDirectory directory) {
+        this.directory = directory;
+        descriptor = directory.getDescriptor();
+        slowNanos = TimeUnit.MILLISECONDS.toNanos(descriptor.healthSlowThreshold);
+    }
+
+    public boolean isEnabled() {
+        return descriptor.healthEnabled;
+    }
+
+    /**
+     * Schedule the probes, if enabled
+     */
+    public synchronized void start() {
+        if (!isEnabled() || future != null || shutdown) {
+            return;
+        }
+        long interval = Math.max(1, descriptor.healthInterval);
+        future = directory.getScheduler().scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            probe();
+                        } catch (RuntimeException e) {
+                            // do not cancel the next runs
+                            log.error(String.format(
+                                    "Resilient directory '%s' : health probe failed",
+                                    descriptor.name), e);
+                        }
+                    }
+                }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+        if (probeExecutor != null) {
+            probeExecutor.shutdownNow();
+            probeExecutor = null;
+        }
+    }
+
+    protected synchronized ExecutorService getProbeExecutor() {
+        if (probeExecutor == null) {
+            // at most one probe running per sub directory
+            probeExecutor = Executors.newCachedThreadPool(new ResilientThreadFactory(
+                    "resilient-health-" + descriptor.name));
+        }
+        return probeExecutor;
+    }
+
+    /**
+     * Probe all the sub directories in parallel and publish their health
+     */
+    public synchronized void probe() {
+        Map<String, Future<Long>> probes = new HashMap<String, Future<Long>>();
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            Future<Long> probe = pending.remove(sub.name);
+            if (probe == null || probe.isDone()) {
+                try {
+                    probe = getProbeExecutor().submit(newProbe(sub));
+                } catch (RejectedExecutionException e) {
+                    // shutting down
+                    return;
+                }
+            }
+            // else the previous probe is still hung, wait for it again
+            probes.put(sub.name, probe);
+        }
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(descriptor.healthTimeout);
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            Future<Long> probe = probes.get(sub.name);
+            Long duration = null;
+            try {
+                duration = probe.get(
+                        Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                pending.put(sub.name, probe);
+                log.debug(String.format(
+                        "Resilient directory '%s' : probe of '%s' timed out",
+                        descriptor.name, sub.name));
+            } catch (ExecutionException e) {
+                log.debug(String.format(
+                        "Resilient directory '%s' : probe of '%s' failed",
+                        descriptor.name, sub.name), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            publish(directory.getSubDirectoryState(sub.name), duration);
+        }
+    }
+
+    protected Callable<Long> newProbe(final SubDirectoryDescriptor sub) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                SubDirectoryInfo info = directory.newSubDirectoryInfo(sub);
+                boolean tx = TransactionHelper.startTransaction();
+                long start = System.nanoTime();
+                try {
+                    info.getSession().hasEntry(PROBE_ID);
+                    return Long.valueOf(System.nanoTime() - start);
+                } catch (Exception e) {
+                    info.broken = true;
+                    throw e;
+                } finally {
+                    DirectoryException e = info.close(null);
+                    if (e != null) {
+                        log.debug("Error closing directory " + info.dirName, e);
+                    }
+                    if (tx) {
+                        TransactionHelper.commitOrRollbackTransaction();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @param duration the duration of the probe in nanoseconds, null if it
+     *            failed or timed out
+     */
+    protected void publish(SubDirectoryState state, Long duration) {
+        Health health;
+        if (duration != null) {
+            failures.remove(state.dirName);
+            health = duration.longValue() > slowNanos ? Health.DEGRADED
+                    : Health.UP;
+        } else {
+            Integer count = failures.get(state.dirName);
+            count = Integer.valueOf(count == null ? 1 : count.intValue() + 1);
+            failures.put(state.dirName, count);
+            health = count.intValue() >= descriptor.healthDownThreshold ? Health.DOWN
+                    : Health.DEGRADED;
+        }
+        Health previous = state.health;
+        if (health == previous) {
+            return;
+        }
+        state.health = health;
+        if (health == Health.DOWN) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : sub directory '%s' is down, skipped until it answers again",
+                    descriptor.name, state.dirName));
+        } else if (previous == Health.DOWN) {
+            log.info(String.format(
+                    "Resilient directory '%s' : sub directory '%s' is %s again",
+                    descriptor.name, state.dirName, health));
+        } else if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "Resilient directory '%s' : sub directory '%s' is %s",
+                    descriptor.name, state.dirName, health));
+        }
+    }
+
+    /**
+     * @return UP if all the sub directories are up, DOWN if none can answer,
+     *         DEGRADED otherwise
+     */
+    public Health getHealth() {
+        boolean allUp = true;
+        boolean allDown = true;
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            Health health = directory.getSubDirectoryState(sub.name).getHealth();
+            allUp &= health == Health.UP;
+            allDown &= health == Health.DOWN;
+        }
+        return allUp ? Health.UP : allDown ? Health.DOWN : Health.DEGRADED;
+    }
+
+}
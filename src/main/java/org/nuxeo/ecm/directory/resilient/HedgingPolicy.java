@@ -0,0 +1,315 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Hedged reads: when the master has not answered within the latency budget,
+ * the same read is issued to a slave and the first good answer wins.
+ * <p>
+ * The budget is the given percentile of the recent master read latencies,
+ * computed at most once a second, or a fixed delay until enough latencies
+ * are known.
+ *
+ * @since 5.9
+ */
+public class HedgingPolicy {
+
+    private static final Log log = LogFactory.getLog(HedgingPolicy.class);
+
+    /**
+     * Number of recent master latencies needed to trust the percentile
+     */
+    protected static final int MIN_SAMPLES = 20;
+
+    protected final ResilientDirectory directory;
+
+    protected final boolean enabled;
+
+    protected final long delayNanos;
+
+    protected final double percentile;
+
+    protected final long minDelayNanos;
+
+    protected final AtomicLong hedges = new AtomicLong();
+
+    protected final AtomicLong hedgeWins = new AtomicLong();
+
+    protected final AtomicLong masterWins = new AtomicLong();
+
+    /**
+     * The answer of a hedged read and the sub directory that gave it
+     */
+    public static class Result<T> {
+
+        public final SubDirectoryInfo source;
+
+        public final T value;
+
+        Result(SubDirectoryInfo source, T value) {
+            this.source = source;
+            this.value = value;
+        }
+    }
+
+    public HedgingPolicy(ResilientDirectory directory) {
+        this.directory = directory;
+        ResilientDirectoryDescriptor descriptor = directory.getDescriptor();
+        enabled = descriptor.hedgingEnabled;
+        delayNanos = TimeUnit.MILLISECONDS.toNanos(descriptor.hedgingDelay);
+        percentile = descriptor.hedgingPercentile;
+        minDelayNanos = TimeUnit.MILLISECONDS.toNanos(descriptor.hedgingMinDelay);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the time to wait for the master before hedging
+     */
+    public long getBudgetNanos(SubDirectoryState master) {
+        if (percentile > 0) {
+            long observed = master.getHedgingPercentile().get(MIN_SAMPLES);
+            if (observed >= 0) {
+                return Math.max(minDelayNanos, observed);
+            }
+        }
+        return delayNanos;
+    }
+
+    /**
+     * Read on the master, and on the slave if the master is too slow. The
+     * circuit of the master must have allowed the call. The master is not
+     * waited for after its deadline, see {@link TimeoutPolicy}.
+     */
+    public <T> Result<T> execute(SubDirectoryInfo master,
+            SubDirectoryInfo slave, SourceCall<T> call) throws ClientException {
+        TimeoutPolicy timeoutPolicy = directory.getTimeoutPolicy();
+        long timeout = timeoutPolicy.getTimeoutNanos(master.state,
+                call.getOperation());
+        long masterStart = System.nanoTime();
+        BlockingQueue<AsyncSourceCall<T>> done = new LinkedBlockingQueue<AsyncSourceCall<T>>();
+        AsyncSourceCall<T> masterCall;
+        try {
+            masterCall = AsyncSourceCall.submit(
+                    directory.getSourceCallExecutor(), master, call, done);
+        } catch (RejectedExecutionException e) {
+            // no thread left, read the master without hedging
+            long start = System.nanoTime();
+            try {
+                T value = call.call(master.state, master.getSession());
+                master.recordSuccess(call.getOperation(), start);
+                return new Result<T>(master, value);
+            } catch (ClientException ce) {
+                master.recordFailure(call.getOperation(), start);
+                throw ce;
+            }
+        }
+        long budget = getBudgetNanos(master.state);
+        if (timeout > 0 && timeout <= budget) {
+            // the deadline comes first, no hedging
+            return new Result<T>(master, timeoutPolicy.await(master,
+                    masterCall, masterStart, masterStart + timeout));
+        }
+        try {
+            return new Result<T>(master, masterCall.get(budget,
+                    TimeUnit.NANOSECONDS));
+        } catch (TimeoutException e) {
+            // hedge
+        }
+
+        hedges.incrementAndGet();
+        long slaveTimeout = timeoutPolicy.getTimeoutNanos(slave.state,
+                call.getOperation());
+        long slaveStart = System.nanoTime();
+        AsyncSourceCall<T> slaveCall;
+        try {
+            slaveCall = AsyncSourceCall.submit(
+                    directory.getSourceCallExecutor(), slave, call, done);
+        } catch (RejectedExecutionException e) {
+            // no thread left, read the slave while the master runs
+            return hedgeInCaller(master, slave, call, masterCall, masterStart,
+                    timeout);
+        }
+
+        // the first good answer wins, the other call is abandoned
+        ClientException masterFailure = null;
+        boolean masterPending = true;
+        boolean slavePending = true;
+        while (masterPending || slavePending) {
+            AsyncSourceCall<T> first = poll(done,
+                    masterPending ? deadline(masterStart, timeout) : 0,
+                    slavePending ? deadline(slaveStart, slaveTimeout) : 0);
+            if (first == null) {
+                // a deadline has passed, its call gets a timeout now
+                first = masterPending && timeout > 0
+                        && System.nanoTime() - (masterStart + timeout) >= 0 ? masterCall
+                        : slaveCall;
+            }
+            if (first == masterCall) {
+                masterPending = false;
+                try {
+                    T value = await(master, masterCall, masterStart, timeout);
+                    if (slavePending) {
+                        slaveCall.abandon();
+                    }
+                    masterWins.incrementAndGet();
+                    return new Result<T>(master, value);
+                } catch (ClientException e) {
+                    masterFailure = e;
+                }
+            } else {
+                slavePending = false;
+                try {
+                    T slaveValue = await(slave, slaveCall, slaveStart,
+                            slaveTimeout);
+                    if (call.isGood(slaveValue)) {
+                        if (masterPending) {
+                            masterCall.abandon();
+                        }
+                        hedgeWins.incrementAndGet();
+                        return new Result<T>(slave, slaveValue);
+                    }
+                } catch (ClientException e) {
+                    log.debug(String.format(
+                            "Hedged read failed on slave '%s'", slave.dirName),
+                            e);
+                }
+            }
+        }
+        // no good answer from the slave, the master has the last word
+        throw masterFailure;
+    }
+
+    /**
+     * Hedge in the caller thread when no thread is left for the slave: the
+     * master is preferred if it has answered meanwhile.
+     */
+    protected <T> Result<T> hedgeInCaller(SubDirectoryInfo master,
+            SubDirectoryInfo slave, SourceCall<T> call,
+            AsyncSourceCall<T> masterCall, long masterStart, long timeout)
+            throws ClientException {
+        T slaveValue = null;
+        boolean slaveGood = false;
+        try {
+            slaveValue = directory.getTimeoutPolicy().execute(slave, call);
+            slaveGood = call.isGood(slaveValue);
+        } catch (ClientException e) {
+            log.debug(String.format("Hedged read failed on slave '%s'",
+                    slave.dirName), e);
+        }
+
+        if (slaveGood) {
+            if (!masterCall.isDone()) {
+                masterCall.abandon();
+                hedgeWins.incrementAndGet();
+                return new Result<T>(slave, slaveValue);
+            }
+            try {
+                T value = await(master, masterCall, masterStart, timeout);
+                masterWins.incrementAndGet();
+                return new Result<T>(master, value);
+            } catch (ClientException e) {
+                hedgeWins.incrementAndGet();
+                return new Result<T>(slave, slaveValue);
+            }
+        }
+        T value = await(master, masterCall, masterStart, timeout);
+        masterWins.incrementAndGet();
+        return new Result<T>(master, value);
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the deadline, 0 if none
+     */
+    protected static long deadline(long start, long timeout) {
+        return timeout > 0 ? start + timeout : 0;
+    }
+
+    /**
+     * Wait for the next done call until the first of the given deadlines,
+     * 0 if none
+     *
+     * @return the done call, null if a deadline has passed
+     */
+    protected static <T> AsyncSourceCall<T> poll(
+            BlockingQueue<AsyncSourceCall<T>> done, long deadline1,
+            long deadline2) throws DirectoryException {
+        try {
+            if (deadline1 == 0 && deadline2 == 0) {
+                return done.take();
+            }
+            long deadline = deadline1 == 0 ? deadline2
+                    : deadline2 == 0 ? deadline1 : (deadline1 - deadline2 < 0 ? deadline1
+                            : deadline2);
+            return done.poll(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DirectoryException(e);
+        }
+    }
+
+    /**
+     * Wait for a call on the sub directory until its deadline, if any
+     */
+    protected <T> T await(SubDirectoryInfo info, AsyncSourceCall<T> asyncCall,
+            long start, long timeout) throws ClientException {
+        if (timeout <= 0) {
+            return asyncCall.get();
+        }
+        return directory.getTimeoutPolicy().await(info, asyncCall, start,
+                start + timeout);
+    }
+
+    /**
+     * @return the number of reads issued to a slave
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * @return the number of hedged reads answered by the slave
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return the number of hedged reads answered by the master anyway
+     */
+    public long getMasterWinCount() {
+        return masterWins.get();
+    }
+
+}
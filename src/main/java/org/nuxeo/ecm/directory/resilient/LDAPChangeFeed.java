@@ -0,0 +1,166 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.regex.Pattern;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import org.nuxeo.ecm.directory.Directory;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.ldap.LDAPDirectory;
+import org.nuxeo.ecm.directory.ldap.LDAPDirectoryDescriptor;
+import org.nuxeo.ecm.directory.ldap.LDAPSession;
+
+/**
+ * Change feed of a LDAP master, on an ordered operational attribute:
+ * <code>modifyTimestamp</code> (the default, <code>createTimestamp</code> is
+ * then also searched as some servers only set it on creation),
+ * <code>entryUSN</code> (Active Directory <code>uSNChanged</code>, 389-ds),
+ * or <code>entryCSN</code> (OpenLDAP).
+ * <p>
+ * The mark is the highest value seen, compared as a number when numeric,
+ * otherwise as a string (generalized times and CSNs sort as strings).
+ *
+ * @since 5.9
+ */
+public class LDAPChangeFeed implements ChangeFeed {
+
+    public static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+
+    protected static final String CREATE_TIMESTAMP = "createTimestamp";
+
+    protected static final Pattern ATTRIBUTE_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9-]*");
+
+    protected final LDAPDirectory directory;
+
+    protected final String attribute;
+
+    /**
+     * @param directory a {@link LDAPDirectory}, not typed so that the callers
+     *            do not link to the optional LDAP bundle
+     */
+    public LDAPChangeFeed(Directory directory, String attribute)
+            throws DirectoryException {
+        if (attribute == null || !ATTRIBUTE_NAME.matcher(attribute).matches()) {
+            throw new DirectoryException(String.format(
+                    "Invalid change feed attribute '%s' for directory '%s'",
+                    attribute, directory.getName()));
+        }
+        this.directory = (LDAPDirectory) directory;
+        this.attribute = attribute;
+    }
+
+    @Override
+    public Changes poll(SubDirectoryInfo master, String mark)
+            throws DirectoryException {
+        LDAPDirectoryDescriptor config = directory.getConfig();
+        String idAttribute = directory.getFieldMapper().getBackendField(
+                master.idField);
+        boolean timestamps = MODIFY_TIMESTAMP.equalsIgnoreCase(attribute);
+        String baseFilter = directory.getBaseFilter();
+        String filter;
+        Object[] args;
+        if (mark == null) {
+            filter = baseFilter;
+            args = new Object[0];
+        } else if (timestamps) {
+            filter = String.format("(&%s(|(%s>={0})(%s>={0})))", baseFilter,
+                    attribute, CREATE_TIMESTAMP);
+            args = new Object[] { mark };
+        } else {
+            filter = String.format("(&%s(%s>={0}))", baseFilter, attribute);
+            args = new Object[] { mark };
+        }
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(config.getSearchScope());
+        // operational attributes are only returned when asked for
+        controls.setReturningAttributes(timestamps ? new String[] {
+                idAttribute, attribute, CREATE_TIMESTAMP } : new String[] {
+                idAttribute, attribute });
+
+        Changes changes = new Changes(mark);
+        DirContext context = ((LDAPSession) master.getSession()).getContext();
+        try {
+            NamingEnumeration<SearchResult> results = context.search(
+                    config.getSearchBaseDn(), filter, args, controls);
+            try {
+                while (results.hasMore()) {
+                    Attributes attributes = results.next().getAttributes();
+                    Attribute id = attributes.get(idAttribute);
+                    if (id == null || id.get() == null) {
+                        continue;
+                    }
+                    changes.ids.add(id.get().toString());
+                    changes.mark = max(changes.mark,
+                            attributes.get(attribute));
+                    if (timestamps) {
+                        changes.mark = max(changes.mark,
+                                attributes.get(CREATE_TIMESTAMP));
+                    }
+                }
+            } finally {
+                results.close();
+            }
+        } catch (NamingException e) {
+            throw new DirectoryException(String.format(
+                    "Change feed search failed on directory '%s'",
+                    directory.getName()), e);
+        }
+        return changes;
+    }
+
+    protected static String max(String mark, Attribute attribute)
+            throws NamingException {
+        if (attribute == null || attribute.get() == null) {
+            return mark;
+        }
+        String value = attribute.get().toString();
+        return mark == null || compare(value, mark) > 0 ? value : mark;
+    }
+
+    protected static int compare(String a, String b) {
+        if (isNumber(a) && isNumber(b)) {
+            // no leading zeros in USNs
+            if (a.length() != b.length()) {
+                return a.length() < b.length() ? -1 : 1;
+            }
+        }
+        return a.compareTo(b);
+    }
+
+    protected static boolean isNumber(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
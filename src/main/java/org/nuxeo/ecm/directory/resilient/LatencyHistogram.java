@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram over a sliding time window.
+ * <p>
+ * Latencies are counted in microsecond buckets with 8 sub-buckets per power
+ * of two, so a percentile is known within 12.5%. Two bucket arrays are kept,
+ * the current one and the previous one, and swapped every window, so the
+ * percentiles reflect the last one or two windows only. Recording does not
+ * allocate.
+ *
+ * @since 5.9
+ */
+public class LatencyHistogram {
+
+    protected static final int SUB_BUCKETS = 8;
+
+    protected static final int BUCKETS = SUB_BUCKETS * 40;
+
+    protected final long windowNanos;
+
+    protected volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+
+    protected volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+
+    protected volatile long windowStart = System.nanoTime();
+
+    /**
+     * @param windowMillis the time window of the percentiles
+     */
+    public LatencyHistogram(long windowMillis) {
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    protected static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) ((micros >>> (exp - 3)) & (SUB_BUCKETS - 1));
+        return Math.min(BUCKETS - 1, (exp - 2) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * @return the highest latency in microseconds counted in a bucket
+     */
+    protected static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = index / SUB_BUCKETS + 2;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exp - 3)) - 1;
+    }
+
+    public void record(long durationNanos) {
+        long now = System.nanoTime();
+        if (now - windowStart > windowNanos) {
+            rotate(now);
+        }
+        current.incrementAndGet(bucket(durationNanos / 1000));
+    }
+
+    protected synchronized void rotate(long now) {
+        if (now - windowStart <= windowNanos) {
+            return;
+        }
+        // a whole window without record: the current data is too old too
+        previous = now - windowStart > 2 * windowNanos ? new AtomicLongArray(
+                BUCKETS) : current;
+        current = new AtomicLongArray(BUCKETS);
+        windowStart = now;
+    }
+
+    /**
+     * @return the number of latencies in the window
+     */
+    public long getCount() {
+        long count = 0;
+        AtomicLongArray c = current;
+        AtomicLongArray p = previous;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += c.get(i) + p.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in nanoseconds under which the given percent of
+     *         the latencies in the window are, 0 if none
+     */
+    public long getPercentile(double percentile) {
+        AtomicLongArray c = current;
+        AtomicLongArray p = previous;
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = c.get(i) + p.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return TimeUnit.MICROSECONDS.toNanos(bucketUpperBound(i));
+            }
+        }
+        return TimeUnit.MICROSECONDS.toNanos(bucketUpperBound(BUCKETS - 1));
+    }
+
+}
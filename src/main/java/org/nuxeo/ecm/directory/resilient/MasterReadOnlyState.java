@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Read-only state of the master, shared by all the sessions of a resilient
+ * directory.
+ * <p>
+ * Resolved on the first call, then cached for <code>ttl</code> seconds. Once
+ * expired the cached value is still returned while it is refreshed in the
+ * background, and kept as is if the master cannot be reached. Until it has
+ * been resolved once, the master is considered read-only.
+ *
+ * @since 5.9
+ */
+public class MasterReadOnlyState {
+
+    private static final Log log = LogFactory.getLog(MasterReadOnlyState.class);
+
+    protected final ResilientDirectory directory;
+
+    protected final ResilientDirectoryDescriptor descriptor;
+
+    protected final long ttlNanos;
+
+    protected final AtomicBoolean refreshing = new AtomicBoolean();
+
+    protected volatile Boolean readOnly;
+
+    /**
+     * Time of the last resolution attempt, successful or not
+     */
+    protected volatile long checkedAt;
+
+    protected volatile boolean checked = false;
+
+    public MasterReadOnlyState(ResilientDirectory directory) {
+        this.directory = directory;
+        descriptor = directory.getDescriptor();
+        ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0,
+                descriptor.readOnlyCacheTtl));
+    }
+
+    /**
+     * @return the cached read-only state of the master, true if never known
+     */
+    public boolean isReadOnly() {
+        Boolean value = readOnly;
+        boolean expired = !checked || System.nanoTime() - checkedAt >= ttlNanos;
+        if (value == null) {
+            // not known yet: resolve in the caller thread, at most once per
+            // ttl while the master is down
+            return expired ? refresh() : true;
+        }
+        if (expired) {
+            refreshInBackground();
+        }
+        return value.booleanValue();
+    }
+
+    protected void refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            directory.getScheduler().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resolve();
+                    } finally {
+                        refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, keep the cached value
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * Resolve the read-only state on the master now
+     *
+     * @return the new state, or the cached one if the master is unavailable
+     */
+    public boolean refresh() {
+        resolve();
+        Boolean value = readOnly;
+        return value == null || value.booleanValue();
+    }
+
+    protected void resolve() {
+        SubDirectoryInfo master = null;
+        try {
+            for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+                if (sub.isMaster()) {
+                    master = directory.newSubDirectoryInfo(sub);
+                }
+            }
+        } catch (DirectoryException e) {
+            log.warn(String.format(
+                    "Unable to find the master directory of '%s', keeping %s",
+                    descriptor.name, readOnly == null ? "read-only" : readOnly),
+                    e);
+            return;
+        }
+        try {
+            if (!master.isAvailable()) {
+                // the circuit is open, do not wait for the master
+                return;
+            }
+            readOnly = Boolean.valueOf(master.getSession().isReadOnly());
+        } catch (ClientException e) {
+            log.warn(String.format(
+                    "Unable to get the read-only value of the master directory '%s', keeping %s",
+                    master.dirName, readOnly == null ? "read-only" : readOnly),
+                    e);
+            master.broken = true;
+        } finally {
+            checkedAt = System.nanoTime();
+            checked = true;
+            DirectoryException e = master.close(null);
+            if (e != null) {
+                log.debug("Error closing directory " + master.dirName, e);
+            }
+        }
+    }
+
+    /**
+     * Forget the cached state, the next call resolves it again
+     */
+    public void invalidate() {
+        checked = false;
+    }
+
+}
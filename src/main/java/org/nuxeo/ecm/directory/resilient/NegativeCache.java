@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ids known to be absent from the master and from the slaves, so that a
+ * lookup missing on the master does not probe the slaves again to delete the
+ * entry.
+ * <p>
+ * An id is forgotten after <code>ttl</code> seconds, as soon as the master
+ * has it again, or when it is one of the <code>maxSize</code> least recently
+ * used above the limit.
+ *
+ * @since 5.9
+ */
+public class NegativeCache {
+
+    protected final long ttlNanos;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    /**
+     * id -> expiration time
+     */
+    protected final LinkedHashMap<String, Long> absentIds;
+
+    public NegativeCache(final int maxSize, long ttlSeconds) {
+        ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        absentIds = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return true if the id is known to be absent
+     */
+    public boolean contains(String id) {
+        boolean absent;
+        synchronized (this) {
+            Long expiration = absentIds.get(id);
+            absent = expiration != null
+                    && expiration.longValue() - System.nanoTime() > 0;
+            if (expiration != null && !absent) {
+                absentIds.remove(id);
+            }
+        }
+        if (absent) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return absent;
+    }
+
+    /**
+     * Remember the id as absent from the master and the slaves
+     */
+    public synchronized void put(String id) {
+        absentIds.put(id, Long.valueOf(System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Forget the id, the master has it
+     */
+    public synchronized void remove(String id) {
+        absentIds.remove(id);
+    }
+
+    public synchronized void clear() {
+        absentIds.clear();
+    }
+
+    public synchronized int size() {
+        return absentIds.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+}
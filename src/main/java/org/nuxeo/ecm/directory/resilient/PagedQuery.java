@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.directory.Session;
+
+/**
+ * Query of a page of entries on a sub directory. A sub directory that does
+ * not page the results is read whole and the page is sliced from its
+ * results: the loops reading such a sub directory page by page read it once
+ * instead, see {@link SubDirectoryState#isPaged()}.
+ *
+ * @since 5.9
+ */
+public class PagedQuery {
+
+    private PagedQuery() {
+    }
+
+    /**
+     * @param paged true if the session pages the results itself
+     * @param limit the maximum number of entries, 0 for all the entries
+     *            after the offset
+     */
+    public static DocumentModelList query(Session session, boolean paged,
+            Map<String, Serializable> filter, Set<String> fulltext,
+            Map<String, String> orderBy, boolean fetchReferences, int limit,
+            int offset) throws ClientException {
+        if (limit <= 0 && offset <= 0) {
+            return session.query(filter, fulltext, orderBy, fetchReferences);
+        }
+        if (paged && limit > 0) {
+            return session.query(filter, fulltext, orderBy, fetchReferences,
+                    limit, offset);
+        }
+        return slice(session.query(filter, fulltext, orderBy, fetchReferences),
+                limit, offset);
+    }
+
+    /**
+     * @return the entries from offset, at most limit of them if positive
+     */
+    public static DocumentModelList slice(List<DocumentModel> entries,
+            int limit, int offset) {
+        int from = Math.max(0, offset);
+        int to = limit > 0 && limit < entries.size() - from ? from + limit
+                : entries.size();
+        DocumentModelList page = new DocumentModelListImpl(Math.max(0, to
+                - from));
+        for (int i = from; i < to; i++) {
+            page.add(entries.get(i));
+        }
+        return page;
+    }
+
+}
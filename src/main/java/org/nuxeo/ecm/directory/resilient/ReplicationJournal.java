@@ -0,0 +1,272 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only, memory-mapped journal of the slave operations not yet applied
+ * on every slave.
+ * <p>
+ * Each record is <code>[type][id length][id]</code> where the type is
+ * {@link #UPDATE} (create or update), {@link #DELETE} or {@link #ACK} (the
+ * operations on this id have been applied). The live state, the latest
+ * operation per id with its sequence number, is kept in memory in journal
+ * order. A completion only acknowledges the operations recorded up to a
+ * sequence number: an operation recorded since stays pending, and no ACK is
+ * written for it. When the file is
+ * full it is compacted to the live records only, so the replay cost is
+ * bounded by the number of distinct dirty entries.
+ * <p>
+ * The mapped pages survive a JVM crash or restart, they are forced to disk
+ * on compaction and on close.
+ *
+ * @since 5.9
+ */
+public class ReplicationJournal {
+
+    private static final Log log = LogFactory.getLog(ReplicationJournal.class);
+
+    public static final byte UPDATE = 'U';
+
+    public static final byte DELETE = 'D';
+
+    public static final byte ACK = 'A';
+
+    protected static final int INITIAL_SIZE = 1024 * 1024;
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected final File file;
+
+    protected RandomAccessFile raf;
+
+    protected MappedByteBuffer buffer;
+
+    /**
+     * A pending operation and the sequence number it was recorded with
+     */
+    protected static class Operation {
+
+        final byte type;
+
+        final long sequence;
+
+        Operation(byte type, long sequence) {
+            this.type = type;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Latest pending operation per entry id, in journal order
+     */
+    protected final LinkedHashMap<String, Operation> pending = new LinkedHashMap<String, Operation>();
+
+    /**
+     * Sequence number of the last operation recorded, numbered again from the
+     * file on open
+     */
+    protected long sequence;
+
+    public ReplicationJournal(File file) throws IOException {
+        this.file = file;
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create journal directory "
+                    + parent);
+        }
+        open(Math.max(INITIAL_SIZE, (int) file.length()));
+        load();
+    }
+
+    protected void open(int size) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Read back the records, the end of the journal is the first zero byte
+     */
+    protected void load() {
+        while (buffer.remaining() > 3) {
+            int start = buffer.position();
+            byte type = buffer.get();
+            if (type == 0) {
+                buffer.position(start);
+                break;
+            }
+            int length = buffer.getShort() & 0xFFFF;
+            if (length > buffer.remaining()) {
+                // truncated record, ignore it
+                buffer.position(start);
+                break;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            apply(type, new String(bytes, UTF8));
+        }
+        if (!pending.isEmpty()) {
+            log.info(String.format(
+                    "Replication journal %s has %s pending operations", file,
+                    pending.size()));
+        }
+    }
+
+    protected void apply(byte type, String id) {
+        // remove first to move the id at the end of the journal order
+        pending.remove(id);
+        if (type != ACK) {
+            pending.put(id, new Operation(type, ++sequence));
+        }
+    }
+
+    /**
+     * Record a pending operation on an entry
+     *
+     * @param masterHasEntry true to create/update the entry on the slaves,
+     *            false to delete it
+     * @return the sequence number of the operation
+     */
+    public synchronized long record(String id, boolean masterHasEntry) {
+        append(masterHasEntry ? UPDATE : DELETE, id);
+        return sequence;
+    }
+
+    /**
+     * @return the sequence number of the last operation recorded, to be
+     *         given to {@link #complete(String, long)} by a replication
+     *         reading the master from now on
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The entry has been replicated on every slave as it was on the master
+     * once the operations up to the given sequence number were recorded
+     */
+    public synchronized void complete(String id, long upTo) {
+        Operation op = pending.get(id);
+        if (op != null && op.sequence <= upTo) {
+            append(ACK, id);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return a snapshot of the pending operations in journal order, true
+     *         meaning create/update and false delete
+     */
+    public synchronized Map<String, Boolean> getPending() {
+        Map<String, Boolean> res = new LinkedHashMap<String, Boolean>(
+                pending.size());
+        for (Map.Entry<String, Operation> op : pending.entrySet()) {
+            res.put(op.getKey(), Boolean.valueOf(op.getValue().type != DELETE));
+        }
+        return res;
+    }
+
+    protected void append(byte type, String id) {
+        byte[] bytes = id.getBytes(UTF8);
+        int length = 3 + bytes.length;
+        try {
+            if (buffer.remaining() < length + 1) {
+                compact(length + 1);
+            }
+            buffer.put(type);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+            apply(type, id);
+        } catch (IOException e) {
+            log.error(String.format(
+                    "Unable to write replication journal %s for entry id '%s'",
+                    file, id), e);
+        }
+    }
+
+    /**
+     * Rewrite the journal with the live records only, growing it if they do
+     * not leave room for the next record
+     */
+    protected void compact(int needed) throws IOException {
+        int live = 0;
+        for (String id : pending.keySet()) {
+            live += 3 + id.getBytes(UTF8).length;
+        }
+        int size = buffer.capacity();
+        while (size < 2 * (live + needed)) {
+            size *= 2;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw");
+        try {
+            MappedByteBuffer tmpBuffer = tmpRaf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+            for (Map.Entry<String, Operation> op : pending.entrySet()) {
+                byte[] bytes = op.getKey().getBytes(UTF8);
+                tmpBuffer.put(op.getValue().type);
+                tmpBuffer.putShort((short) bytes.length);
+                tmpBuffer.put(bytes);
+            }
+            tmpBuffer.force();
+        } finally {
+            tmpRaf.close();
+        }
+        raf.close();
+        if (!tmp.renameTo(file)) {
+            // some platforms do not rename over an existing file
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to compact journal " + file);
+            }
+        }
+        open(size);
+        buffer.position(live);
+        log.debug(String.format(
+                "Replication journal %s compacted to %s pending operations",
+                file, pending.size()));
+    }
+
+    public synchronized void close() {
+        try {
+            buffer.force();
+            raf.close();
+        } catch (IOException e) {
+            log.warn("Unable to close replication journal " + file, e);
+        }
+    }
+
+}
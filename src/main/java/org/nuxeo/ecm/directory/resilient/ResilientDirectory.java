@@ -19,11 +19,24 @@
 
 package org.nuxeo.ecm.directory.resilient;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.Environment;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.core.schema.types.Field;
@@ -44,6 +57,8 @@ import org.nuxeo.runtime.api.Framework;
  */
 public class ResilientDirectory extends AbstractDirectory {
 
+    private static final Log log = LogFactory.getLog(ResilientDirectory.class);
+
     private String schemaName = null;
 
     private String idField = null;
@@ -54,11 +69,69 @@ public class ResilientDirectory extends AbstractDirectory {
 
     private Map<String, Field> schemaFieldMap;
 
+    private final ResilientReplicator replicator;
+
+    private final ResilientReconciler reconciler;
+
+    private final ChangeFeedSync changeFeedSync;
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService sourceCallExecutor;
+
+    private ExecutorService fanOutExecutor;
+
+    private final HedgingPolicy hedgingPolicy;
+
+    private final TimeoutPolicy timeoutPolicy;
+
+    private final SessionPool sessionPool;
+
+    private final MasterReadOnlyState masterReadOnlyState;
+
+    private final HealthMonitor healthMonitor;
+
+    private final SlaveSelector slaveSelector;
+
+    private final NegativeCache negativeCache;
+
+    private CredentialStore credentialStore;
+
+    private final ResilientMetrics metrics;
+
+    private final ConcurrentMap<String, SubDirectoryState> subDirectoryStates = new ConcurrentHashMap<String, SubDirectoryState>();
+
+    /**
+     * References of the sub directories, keyed by sub directory and field
+     */
+    private final ConcurrentMap<String, Reference> subDirectoryReferences = new ConcurrentHashMap<String, Reference>();
+
     public ResilientDirectory(ResilientDirectoryDescriptor descriptor)
             throws ClientException {
         super(descriptor.name);
         this.descriptor = descriptor;
-
+        replicator = new ResilientReplicator(this);
+        reconciler = new ResilientReconciler(this);
+        changeFeedSync = new ChangeFeedSync(this);
+        hedgingPolicy = new HedgingPolicy(this);
+        timeoutPolicy = new TimeoutPolicy(this);
+        sessionPool = new SessionPool(this);
+        masterReadOnlyState = new MasterReadOnlyState(this);
+        healthMonitor = new HealthMonitor(this);
+        SlaveSelector.Policy selection;
+        try {
+            selection = SlaveSelector.Policy.of(descriptor.fallbackSelection);
+        } catch (DirectoryException e) {
+            log.error(String.format(
+                    "Resilient directory '%s' : %s, trying the slaves in order",
+                    descriptor.name, e.getMessage()));
+            selection = SlaveSelector.Policy.ORDER;
+        }
+        slaveSelector = new SlaveSelector(selection);
+        metrics = new ResilientMetrics(this);
+        negativeCache = descriptor.negativeCacheEnabled ? new NegativeCache(
+                descriptor.negativeCacheMaxSize, descriptor.negativeCacheTtl)
+                : null;
     }
 
     private boolean checkSlaveSubDirectory(String masterSchemaName)
@@ -178,6 +251,14 @@ public class ResilientDirectory extends AbstractDirectory {
 
             }
         }
+        replicator.start();
+        reconciler.start();
+        changeFeedSync.start();
+        sessionPool.start();
+        healthMonitor.start();
+        if (descriptor.metricsJmx) {
+            metrics.register();
+        }
 
     }
 
@@ -185,6 +266,282 @@ public class ResilientDirectory extends AbstractDirectory {
         return descriptor;
     }
 
+    /**
+     * @since 5.9
+     */
+    public ResilientReplicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public ResilientReconciler getReconciler() {
+        return reconciler;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public ChangeFeedSync getChangeFeedSync() {
+        return changeFeedSync;
+    }
+
+    /**
+     * Scheduler shared by the background tasks of the directory. Two threads,
+     * so that a long resynchronization does not delay the journal replays.
+     *
+     * @since 5.9
+     */
+    public synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newScheduledThreadPool(2,
+                    new ResilientThreadFactory("resilient-scheduler-"
+                            + descriptor.name));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Executor of the sub directory calls the caller may stop waiting for.
+     * Bounded: a call is rejected when all the threads are busy.
+     *
+     * @since 5.9
+     */
+    public synchronized ExecutorService getSourceCallExecutor() {
+        if (sourceCallExecutor == null) {
+            sourceCallExecutor = new ThreadPoolExecutor(0,
+                    Math.max(1, descriptor.sourceCallThreads), 60,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ResilientThreadFactory("resilient-call-"
+                            + descriptor.name));
+        }
+        return sourceCallExecutor;
+    }
+
+    /**
+     * Executor of the parallel slave writes. Bounded: a write is rejected when
+     * all the threads are busy, the caller then does it by itself.
+     *
+     * @since 5.9
+     */
+    public synchronized ExecutorService getFanOutExecutor() {
+        if (fanOutExecutor == null) {
+            fanOutExecutor = new ThreadPoolExecutor(0,
+                    Math.max(1, descriptor.fanOutThreads), 60,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ResilientThreadFactory("resilient-fanout-"
+                            + descriptor.name, descriptor.fanOutVirtualThreads));
+        }
+        return fanOutExecutor;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public SessionPool getSessionPool() {
+        return sessionPool;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public MasterReadOnlyState getMasterReadOnlyState() {
+        return masterReadOnlyState;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public HealthMonitor getHealthMonitor() {
+        return healthMonitor;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public SlaveSelector getSlaveSelector() {
+        return slaveSelector;
+    }
+
+    /**
+     * @return the ids missing on the master and the slaves, null if disabled
+     * @since 5.9
+     */
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * @return the verifiers of the passwords accepted by the master, null if
+     *         disabled
+     * @since 5.9
+     */
+    public synchronized CredentialStore getCredentialStore() {
+        if (credentialStore == null && descriptor.credentialsEnabled) {
+            File file = descriptor.credentialsPersistent ? new File(
+                    getDataDirectory(), descriptor.name + ".credentials")
+                    : null;
+            credentialStore = new CredentialStore(
+                    descriptor.credentialsIterations, file);
+            try {
+                credentialStore.load();
+            } catch (IOException e) {
+                log.warn(String.format(
+                        "Resilient directory '%s' : unable to load the credential verifiers",
+                        descriptor.name), e);
+            }
+        }
+        return credentialStore;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public ResilientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public TimeoutPolicy getTimeoutPolicy() {
+        return timeoutPolicy;
+    }
+
+    /**
+     * @since 5.9
+     */
+    public File getDataDirectory() {
+        if (descriptor.dataDirectory != null) {
+            return new File(Framework.expandVars(descriptor.dataDirectory));
+        }
+        Environment env = Environment.getDefault();
+        File data = env != null ? env.getData() : new File(
+                Framework.getRuntime().getHome(), "data");
+        return new File(data, "resilient-directory");
+    }
+
+    /**
+     * @return the state of a sub directory shared by all the sessions
+     * @since 5.9
+     */
+    public SubDirectoryState getSubDirectoryState(String dirName) {
+        SubDirectoryState state = subDirectoryStates.get(dirName);
+        if (state == null) {
+            state = new SubDirectoryState(dirName, descriptor,
+                    isPaged(dirName));
+            SubDirectoryState previous = subDirectoryStates.putIfAbsent(
+                    dirName, state);
+            if (previous != null) {
+                state = previous;
+            } else {
+                if (state.digests != null && descriptor.digestPersistent) {
+                    try {
+                        state.digests.load(getDigestFile(dirName));
+                    } catch (IOException e) {
+                        log.warn(String.format(
+                                "Resilient directory '%s' : unable to load the digests of '%s'",
+                                descriptor.name, dirName), e);
+                    }
+                }
+                if (descriptor.metricsJmx) {
+                    metrics.register(state.metrics);
+                }
+            }
+        }
+        return state;
+    }
+
+    protected File getDigestFile(String dirName) {
+        return new File(getDataDirectory(), descriptor.name + "-" + dirName
+                + ".digests");
+    }
+
+    protected void saveDigests() {
+        if (!descriptor.digestPersistent) {
+            return;
+        }
+        for (SubDirectoryState state : subDirectoryStates.values()) {
+            if (state.digests == null || state.digests.size() == 0) {
+                continue;
+            }
+            try {
+                File file = getDigestFile(state.dirName);
+                file.getParentFile().mkdirs();
+                state.digests.save(file);
+            } catch (IOException e) {
+                log.warn(String.format(
+                        "Resilient directory '%s' : unable to save the digests of '%s'",
+                        descriptor.name, state.dirName), e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the sub directory pages the query results itself, as
+     *         configured or else if it is a SQL directory
+     */
+    protected boolean isPaged(String dirName) {
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            if (dirName.equals(sub.name) && sub.paging != null) {
+                return Boolean.parseBoolean(sub.paging);
+            }
+        }
+        try {
+            return ResilientDirectoryFactory.getDirectoryService().getDirectory(
+                    dirName) instanceof SQLDirectory;
+        } catch (DirectoryException e) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : unable to find directory '%s', its results are paged here",
+                    descriptor.name, dirName), e);
+            return false;
+        }
+    }
+
+    /**
+     * Build the info used to open a session on a sub directory
+     *
+     * @since 5.9
+     */
+    protected SubDirectoryInfo newSubDirectoryInfo(SubDirectoryDescriptor sub)
+            throws DirectoryException {
+        DirectoryService directoryService = ResilientDirectoryFactory.getDirectoryService();
+        final String dirName = sub.name;
+        return new SubDirectoryInfo(dirName,
+                directoryService.getDirectorySchema(dirName),
+                directoryService.getDirectoryIdField(dirName),
+                directoryService.getDirectoryPasswordField(dirName),
+                getSubDirectoryState(dirName), sessionPool);
+    }
+
+    /**
+     * @return the reference of a sub directory on a field, null if none.
+     *         Looked up once, until the directory cache is invalidated.
+     * @since 5.9
+     */
+    protected Reference getSubDirectoryReference(String dirName,
+            String fieldName) throws DirectoryException {
+        String key = dirName + '/' + fieldName;
+        Reference ref = subDirectoryReferences.get(key);
+        if (ref == null) {
+            Directory subDir = ResilientDirectoryFactory.getDirectoryService().getDirectory(
+                    dirName);
+            ref = subDir == null ? null : subDir.getReference(fieldName);
+            if (ref != null) {
+                subDirectoryReferences.putIfAbsent(key, ref);
+            }
+        }
+        return ref;
+    }
+
     @Override
     public String getName() {
         return descriptor.name;
@@ -239,6 +596,7 @@ public class ResilientDirectory extends AbstractDirectory {
     @Override
     public void invalidateDirectoryCache() throws DirectoryException {
         getCache().invalidateAll();
+        subDirectoryReferences.clear();
         // and also invalidates the cache from the source directories
         for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
             Directory dir = ResilientDirectoryFactory.getDirectoryService().getDirectory(
@@ -250,4 +608,33 @@ public class ResilientDirectory extends AbstractDirectory {
         }
     }
 
+    @Override
+    public void shutdown() throws DirectoryException {
+        try {
+            super.shutdown();
+        } finally {
+            healthMonitor.shutdown();
+            changeFeedSync.shutdown();
+            reconciler.shutdown();
+            replicator.shutdown();
+            sessionPool.shutdown();
+            saveDigests();
+            metrics.unregister();
+            synchronized (this) {
+                if (scheduler != null) {
+                    scheduler.shutdownNow();
+                    scheduler = null;
+                }
+                if (sourceCallExecutor != null) {
+                    sourceCallExecutor.shutdown();
+                    sourceCallExecutor = null;
+                }
+                if (fanOutExecutor != null) {
+                    fanOutExecutor.shutdown();
+                    fanOutExecutor = null;
+                }
+            }
+        }
+    }
+
 }
@@ -30,6 +30,28 @@ import org.nuxeo.common.xmap.annotation.XObject;
 @XObject(value = "directory")
 public class ResilientDirectoryDescriptor implements Cloneable {
 
+    public static final String REPLICATION_SYNC = "sync";
+
+    public static final String REPLICATION_ASYNC = "async";
+
+    public static final String READ_MASTER = "master";
+
+    public static final String READ_SLAVE = "slave";
+
+    public static final String SELECT_ORDER = "order";
+
+    public static final String SELECT_ROUND_ROBIN = "round-robin";
+
+    public static final String SELECT_LEAST_OUTSTANDING = "least-outstanding";
+
+    public static final String SELECT_LATENCY = "latency";
+
+    public static final String ACK_NONE = "none";
+
+    public static final String ACK_ANY = "any";
+
+    public static final String ACK_ALL = "all";
+
     @XNode("@name")
     public String name;
 
@@ -39,6 +61,394 @@ public class ResilientDirectoryDescriptor implements Cloneable {
     @XNodeList(value = "subDirectory", type = SubDirectoryDescriptor[].class, componentType = SubDirectoryDescriptor.class)
     protected SubDirectoryDescriptor[] subDirectories;
 
+    /**
+     * Replication mode of the slaves: <code>sync</code> (default) replicates
+     * in the caller thread, <code>async</code> queues the slave updates for
+     * background workers.
+     *
+     * @since 5.9
+     */
+    @XNode("replication@mode")
+    public String replicationMode = REPLICATION_SYNC;
+
+    @XNode("replication@queueSize")
+    public int replicationQueueSize = 10000;
+
+    @XNode("replication@workers")
+    public int replicationWorkers = 1;
+
+    /**
+     * Journal the slave operations not yet applied and replay them every
+     * <code>replayInterval</code> seconds
+     *
+     * @since 5.9
+     */
+    @XNode("journal@enabled")
+    public boolean journalEnabled = false;
+
+    @XNode("journal@replayInterval")
+    public int journalReplayInterval = 60;
+
+    /**
+     * Directory of the files kept by the resilient directory, defaults to
+     * <code>${nuxeo.data.dir}/resilient-directory</code>
+     *
+     * @since 5.9
+     */
+    @XNode("dataDirectory")
+    public String dataDirectory;
+
+    /**
+     * Circuit breaker of each sub directory: while the circuit of the master
+     * is open, the reads go straight to the slaves
+     *
+     * @since 5.9
+     */
+    @XNode("circuitBreaker@enabled")
+    public boolean circuitBreakerEnabled = false;
+
+    @XNode("circuitBreaker@windowSize")
+    public int circuitBreakerWindowSize = 20;
+
+    @XNode("circuitBreaker@minimumCalls")
+    public int circuitBreakerMinimumCalls = 10;
+
+    @XNode("circuitBreaker@failureRateThreshold")
+    public int circuitBreakerFailureRateThreshold = 50;
+
+    @XNode("circuitBreaker@slowCallDuration")
+    public long circuitBreakerSlowCallDuration = 2000;
+
+    @XNode("circuitBreaker@slowCallRateThreshold")
+    public int circuitBreakerSlowCallRateThreshold = 80;
+
+    @XNode("circuitBreaker@openDuration")
+    public long circuitBreakerOpenDuration = 30000;
+
+    /**
+     * Hedged reads: when the master has not answered getEntry, hasEntry or
+     * query after the given percentile of its recent latencies (or after
+     * <code>delay</code> ms until enough latencies are known), the read is
+     * also issued to a slave
+     *
+     * @since 5.9
+     */
+    @XNode("hedging@enabled")
+    public boolean hedgingEnabled = false;
+
+    @XNode("hedging@delay")
+    public long hedgingDelay = 500;
+
+    @XNode("hedging@percentile")
+    public double hedgingPercentile = 95;
+
+    @XNode("hedging@minDelay")
+    public long hedgingMinDelay = 10;
+
+    /**
+     * Max number of threads running the sub directory calls the caller may
+     * stop waiting for
+     *
+     * @since 5.9
+     */
+    @XNode("sourceCallThreads")
+    public int sourceCallThreads = 64;
+
+    /**
+     * Skip the slave writes that would not change the entry, by keeping the
+     * digest of the last written values of at most <code>maxSize</code>
+     * entries per slave. Optionally saved in the data directory on shutdown.
+     * Disabled by default: a slave modified or emptied behind the resilient
+     * directory would keep the skipped values.
+     *
+     * @since 5.9
+     */
+    @XNode("digest@enabled")
+    public boolean digestEnabled = false;
+
+    @XNode("digest@maxSize")
+    public int digestMaxSize = 100000;
+
+    @XNode("digest@persistent")
+    public boolean digestPersistent = false;
+
+    /**
+     * Scheduled resynchronization of the slaves: every
+     * <code>interval</code> seconds the master is walked by pages of
+     * <code>pageSize</code> entries, with a pause of <code>pageDelay</code> ms
+     * between two pages
+     *
+     * @since 5.9
+     */
+    @XNode("resync@enabled")
+    public boolean resyncEnabled = false;
+
+    @XNode("resync@interval")
+    public long resyncInterval = 3600;
+
+    @XNode("resync@pageSize")
+    public int resyncPageSize = 500;
+
+    @XNode("resync@pageDelay")
+    public long resyncPageDelay = 100;
+
+    /**
+     * If false, getEntry, hasEntry and query do not replicate the master
+     * entries on the slaves anymore, the resynchronization does. The
+     * authentications still replicate the password.
+     *
+     * @since 5.9
+     */
+    @XNode("resync@readPathSync")
+    public boolean readPathSync = true;
+
+    /**
+     * Incremental synchronization of the slaves: every <code>interval</code>
+     * seconds the entries changed on the master since the last poll are
+     * replicated. A LDAP master is polled on its <code>attribute</code>
+     * (<code>modifyTimestamp</code>, <code>entryUSN</code>,
+     * <code>entryCSN</code>), a SQL master on its last modification
+     * <code>column</code>.
+     *
+     * @since 5.9
+     */
+    @XNode("changeFeed@enabled")
+    public boolean changeFeedEnabled = false;
+
+    @XNode("changeFeed@interval")
+    public long changeFeedInterval = 60;
+
+    @XNode("changeFeed@attribute")
+    public String changeFeedAttribute = "modifyTimestamp";
+
+    @XNode("changeFeed@column")
+    public String changeFeedColumn;
+
+    /**
+     * Parallel writes on the slaves, on at most <code>threads</code> threads
+     * (virtual ones if available and asked for). The caller waits for
+     * <code>none</code>, <code>any</code> or <code>all</code> of the slaves,
+     * at most <code>timeout</code> ms per slave.
+     *
+     * @since 5.9
+     */
+    @XNode("fanOut@enabled")
+    public boolean fanOutEnabled = false;
+
+    @XNode("fanOut@ack")
+    public String fanOutAck = ACK_ALL;
+
+    @XNode("fanOut@timeout")
+    public long fanOutTimeout = 5000;
+
+    @XNode("fanOut@threads")
+    public int fanOutThreads = 16;
+
+    @XNode("fanOut@virtualThreads")
+    public boolean fanOutVirtualThreads = false;
+
+    /**
+     * Pool of the sub directory sessions: at most <code>maxIdle</code> idle
+     * sessions per sub directory, closed after <code>idleTimeout</code>
+     * seconds and checked before reuse after <code>validationInterval</code>
+     * seconds. With <code>maxActive</code> set, a session is waited for at
+     * most <code>maxWait</code> ms.
+     *
+     * @since 5.9
+     */
+    @XNode("pool@enabled")
+    public boolean poolEnabled = false;
+
+    @XNode("pool@maxIdle")
+    public int poolMaxIdle = 8;
+
+    @XNode("pool@maxActive")
+    public int poolMaxActive = 0;
+
+    @XNode("pool@maxWait")
+    public long poolMaxWait = 5000;
+
+    @XNode("pool@idleTimeout")
+    public long poolIdleTimeout = 300;
+
+    @XNode("pool@validationInterval")
+    public long poolValidationInterval = 30;
+
+    /**
+     * Time in seconds the read-only state of the master is cached
+     *
+     * @since 5.9
+     */
+    @XNode("readOnlyCache@ttl")
+    public long readOnlyCacheTtl = 60;
+
+    /**
+     * Remember for <code>ttl</code> seconds at most <code>maxSize</code> ids
+     * missing on the master and already deleted from the slaves
+     *
+     * @since 5.9
+     */
+    @XNode("negativeCache@enabled")
+    public boolean negativeCacheEnabled = false;
+
+    @XNode("negativeCache@maxSize")
+    public int negativeCacheMaxSize = 10000;
+
+    @XNode("negativeCache@ttl")
+    public long negativeCacheTtl = 60;
+
+    /**
+     * Keep a PBKDF2 verifier (<code>iterations</code> rounds) of the
+     * passwords accepted by the master, to authenticate while the master is
+     * down instead of writing the passwords on the slaves. Saved in the data
+     * directory if <code>persistent</code>.
+     *
+     * @since 5.9
+     */
+    @XNode("credentials@enabled")
+    public boolean credentialsEnabled = false;
+
+    @XNode("credentials@iterations")
+    public int credentialsIterations = 10000;
+
+    @XNode("credentials@persistent")
+    public boolean credentialsPersistent = true;
+
+    /**
+     * Write the changes found by the query synchronizations and the
+     * resynchronization on the SQL slaves with JDBC batches of
+     * <code>size</code> rows
+     *
+     * @since 5.9
+     */
+    @XNode("sqlBatch@enabled")
+    public boolean sqlBatchEnabled = false;
+
+    @XNode("sqlBatch@size")
+    public int sqlBatchSize = 500;
+
+    /**
+     * Register the metrics of the directory and of its sub directories as
+     * MXBeans
+     *
+     * @since 5.9
+     */
+    @XNode("metrics@jmx")
+    public boolean metricsJmx = false;
+
+    /**
+     * Number of entries read at once by the streamed queries and the counts
+     * of the resilient sessions
+     *
+     * @since 5.9
+     */
+    @XNode("query@pageSize")
+    public int queryPageSize = 500;
+
+    /**
+     * Number of pages of getEntries read at once on a sub directory, each
+     * with its own session
+     *
+     * @since 5.9
+     */
+    @XNode("entries@parallelism")
+    public int entriesParallelism = 1;
+
+    /**
+     * Probe the sub directories every <code>interval</code> ms in the
+     * background. A probe not answered within <code>timeout</code> ms fails,
+     * one slower than <code>slowThreshold</code> ms makes the sub directory
+     * degraded. After <code>downThreshold</code> failures in a row the sub
+     * directory is down and the sessions skip it until a probe succeeds.
+     *
+     * @since 5.9
+     */
+    @XNode("health@enabled")
+    public boolean healthEnabled = false;
+
+    @XNode("health@interval")
+    public long healthInterval = 5000;
+
+    @XNode("health@timeout")
+    public long healthTimeout = 2000;
+
+    @XNode("health@slowThreshold")
+    public long healthSlowThreshold = 1000;
+
+    @XNode("health@downThreshold")
+    public int healthDownThreshold = 2;
+
+    /**
+     * Routing of getEntry and hasEntry: <code>master</code> (default) reads on
+     * the master first, <code>slave</code> reads on a slave whose copy of the
+     * entry has been synced with the master for less than
+     * <code>maxStaleness</code> seconds, and on the master otherwise. The sync
+     * times of at most <code>maxSize</code> entries are kept per slave.
+     *
+     * @since 5.9
+     */
+    @XNode("read@routing")
+    public String readRouting = READ_MASTER;
+
+    @XNode("read@maxStaleness")
+    public long readMaxStaleness = 300;
+
+    @XNode("read@maxSize")
+    public int readMaxSize = 10000;
+
+    /**
+     * Order in which the fallback reads try the slaves: <code>order</code>
+     * (default), <code>round-robin</code>, <code>least-outstanding</code> or
+     * <code>latency</code>. A read stops at the first slave answering.
+     *
+     * @see SlaveSelector
+     * @since 5.9
+     */
+    @XNode("fallback@selection")
+    public String fallbackSelection = SELECT_ORDER;
+
+    /**
+     * Deadlines of the reads on the sub directories: a read or an
+     * authentication not answered within <code>read</code> ms, a query within
+     * <code>query</code> ms, is abandoned and falls back on the slaves. A sub
+     * directory can set its own with its <code>timeout</code> and
+     * <code>queryTimeout</code> attributes. If <code>adaptive</code>, the
+     * deadline is the <code>percentile</code> of the recent latencies of the
+     * operation times <code>multiplier</code>, at least <code>min</code> ms
+     * and at most the fixed one.
+     *
+     * @see TimeoutPolicy
+     * @since 5.9
+     */
+    @XNode("timeout@enabled")
+    public boolean timeoutEnabled = false;
+
+    @XNode("timeout@read")
+    public long timeoutRead = 5000;
+
+    @XNode("timeout@query")
+    public long timeoutQuery = 30000;
+
+    @XNode("timeout@adaptive")
+    public boolean timeoutAdaptive = false;
+
+    @XNode("timeout@percentile")
+    public double timeoutPercentile = 99;
+
+    @XNode("timeout@multiplier")
+    public double timeoutMultiplier = 3;
+
+    @XNode("timeout@min")
+    public long timeoutMin = 200;
+
+    public boolean isAsyncReplication() {
+        return REPLICATION_ASYNC.equalsIgnoreCase(replicationMode);
+    }
+
+    public boolean isSlaveFirstRead() {
+        return READ_SLAVE.equalsIgnoreCase(readRouting);
+    }
+
     /**
      * @since 5.6
      */
@@ -47,6 +457,75 @@ public class ResilientDirectoryDescriptor implements Cloneable {
         ResilientDirectoryDescriptor clone = new ResilientDirectoryDescriptor();
         clone.name = name;
         clone.remove = remove;
+        clone.replicationMode = replicationMode;
+        clone.replicationQueueSize = replicationQueueSize;
+        clone.replicationWorkers = replicationWorkers;
+        clone.journalEnabled = journalEnabled;
+        clone.journalReplayInterval = journalReplayInterval;
+        clone.dataDirectory = dataDirectory;
+        clone.circuitBreakerEnabled = circuitBreakerEnabled;
+        clone.circuitBreakerWindowSize = circuitBreakerWindowSize;
+        clone.circuitBreakerMinimumCalls = circuitBreakerMinimumCalls;
+        clone.circuitBreakerFailureRateThreshold = circuitBreakerFailureRateThreshold;
+        clone.circuitBreakerSlowCallDuration = circuitBreakerSlowCallDuration;
+        clone.circuitBreakerSlowCallRateThreshold = circuitBreakerSlowCallRateThreshold;
+        clone.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+        clone.hedgingEnabled = hedgingEnabled;
+        clone.hedgingDelay = hedgingDelay;
+        clone.hedgingPercentile = hedgingPercentile;
+        clone.hedgingMinDelay = hedgingMinDelay;
+        clone.sourceCallThreads = sourceCallThreads;
+        clone.digestEnabled = digestEnabled;
+        clone.digestMaxSize = digestMaxSize;
+        clone.digestPersistent = digestPersistent;
+        clone.resyncEnabled = resyncEnabled;
+        clone.resyncInterval = resyncInterval;
+        clone.resyncPageSize = resyncPageSize;
+        clone.resyncPageDelay = resyncPageDelay;
+        clone.readPathSync = readPathSync;
+        clone.changeFeedEnabled = changeFeedEnabled;
+        clone.changeFeedInterval = changeFeedInterval;
+        clone.changeFeedAttribute = changeFeedAttribute;
+        clone.changeFeedColumn = changeFeedColumn;
+        clone.fanOutEnabled = fanOutEnabled;
+        clone.fanOutAck = fanOutAck;
+        clone.fanOutTimeout = fanOutTimeout;
+        clone.fanOutThreads = fanOutThreads;
+        clone.fanOutVirtualThreads = fanOutVirtualThreads;
+        clone.poolEnabled = poolEnabled;
+        clone.poolMaxIdle = poolMaxIdle;
+        clone.poolMaxActive = poolMaxActive;
+        clone.poolMaxWait = poolMaxWait;
+        clone.poolIdleTimeout = poolIdleTimeout;
+        clone.poolValidationInterval = poolValidationInterval;
+        clone.readOnlyCacheTtl = readOnlyCacheTtl;
+        clone.negativeCacheEnabled = negativeCacheEnabled;
+        clone.negativeCacheMaxSize = negativeCacheMaxSize;
+        clone.negativeCacheTtl = negativeCacheTtl;
+        clone.credentialsEnabled = credentialsEnabled;
+        clone.credentialsIterations = credentialsIterations;
+        clone.credentialsPersistent = credentialsPersistent;
+        clone.sqlBatchEnabled = sqlBatchEnabled;
+        clone.sqlBatchSize = sqlBatchSize;
+        clone.metricsJmx = metricsJmx;
+        clone.queryPageSize = queryPageSize;
+        clone.entriesParallelism = entriesParallelism;
+        clone.healthEnabled = healthEnabled;
+        clone.healthInterval = healthInterval;
+        clone.healthTimeout = healthTimeout;
+        clone.healthSlowThreshold = healthSlowThreshold;
+        clone.healthDownThreshold = healthDownThreshold;
+        clone.readRouting = readRouting;
+        clone.readMaxStaleness = readMaxStaleness;
+        clone.readMaxSize = readMaxSize;
+        clone.fallbackSelection = fallbackSelection;
+        clone.timeoutEnabled = timeoutEnabled;
+        clone.timeoutRead = timeoutRead;
+        clone.timeoutQuery = timeoutQuery;
+        clone.timeoutAdaptive = timeoutAdaptive;
+        clone.timeoutPercentile = timeoutPercentile;
+        clone.timeoutMultiplier = timeoutMultiplier;
+        clone.timeoutMin = timeoutMin;
         if (subDirectories != null) {
             clone.subDirectories = new SubDirectoryDescriptor[subDirectories.length];
             for (int i = 0; i < subDirectories.length; i++) {
@@ -23,14 +23,22 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.ClientRuntimeException;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
@@ -39,8 +47,6 @@ import org.nuxeo.ecm.core.schema.types.Field;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.Session;
-import org.nuxeo.ecm.directory.api.DirectoryService;
-import org.nuxeo.runtime.api.Framework;
 
 /**
  * Directory session aggregating entries from different sources.
@@ -56,8 +62,6 @@ public class ResilientDirectorySession extends BaseSession {
 
     private static final Log log = LogFactory.getLog(ResilientDirectorySession.class);
 
-    private final DirectoryService directoryService;
-
     private final ResilientDirectory directory;
 
     private final ResilientDirectoryDescriptor descriptor;
@@ -73,7 +77,6 @@ public class ResilientDirectorySession extends BaseSession {
     private List<SubDirectoryInfo> slaveSubDirectoryInfos;
 
     public ResilientDirectorySession(ResilientDirectory directory) {
-        directoryService = ResilientDirectoryFactory.getDirectoryService();
         this.directory = directory;
         descriptor = directory.getDescriptor();
         schemaName = directory.getSchema();
@@ -81,39 +84,6 @@ public class ResilientDirectorySession extends BaseSession {
         schemaPasswordField = directory.getPasswordField();
     }
 
-    protected class SubDirectoryInfo {
-
-        final String dirName;
-
-        final String dirSchemaName;
-
-        final String idField;
-
-        final String passwordField;
-
-        Session session;
-
-        SubDirectoryInfo(String dirName, String dirSchemaName, String idField,
-                String passwordField) {
-            this.dirName = dirName;
-            this.dirSchemaName = dirSchemaName;
-            this.idField = idField;
-            this.passwordField = passwordField;
-        }
-
-        Session getSession() throws DirectoryException {
-            if (session == null) {
-                session = directoryService.open(dirName);
-            }
-            return session;
-        }
-
-        @Override
-        public String toString() {
-            return String.format("{directory=%s }", dirName);
-        }
-    }
-
     private void init() throws DirectoryException {
         if (masterSubDirectoryInfo == null
                 || (slaveSubDirectoryInfos == null || slaveSubDirectoryInfos.size() == 0)) {
@@ -130,14 +100,7 @@ public class ResilientDirectorySession extends BaseSession {
                 2);
         for (SubDirectoryDescriptor subDir : descriptor.subDirectories) {
 
-            final String dirName = subDir.name;
-            final String dirSchemaName = directoryService.getDirectorySchema(dirName);
-
-            final String dirIdField = directoryService.getDirectoryIdField(dirName);
-            final String dirPwdField = directoryService.getDirectoryPasswordField(dirName);
-
-            SubDirectoryInfo subDirectoryInfo = new SubDirectoryInfo(dirName,
-                    dirSchemaName, dirIdField, dirPwdField);
+            SubDirectoryInfo subDirectoryInfo = directory.newSubDirectoryInfo(subDir);
 
             if (subDir.isMaster()) {
                 if (masterSubDirectoryInfo == null) {
@@ -157,14 +120,14 @@ public class ResilientDirectorySession extends BaseSession {
         try {
             DirectoryException exc = null;
             if (masterSubDirectoryInfo != null) {
-                exc = closeSource(masterSubDirectoryInfo, exc);
+                exc = masterSubDirectoryInfo.close(exc);
             }
             if (slaveSubDirectoryInfos == null) {
                 return;
             }
 
             for (SubDirectoryInfo SubDirectoryInfo : slaveSubDirectoryInfos) {
-                exc = closeSource(SubDirectoryInfo, exc);
+                exc = SubDirectoryInfo.close(exc);
             }
             if (exc != null) {
                 throw exc;
@@ -175,39 +138,6 @@ public class ResilientDirectorySession extends BaseSession {
         }
     }
 
-    /**
-     * Close a source without throwing exception to let the parent caller deal
-     * with the exception returned
-     *
-     * @param SubDirectoryInfo
-     * @param exc
-     * @return An exception or null if none
-     *
-     * @since 5.9
-     */
-    private DirectoryException closeSource(SubDirectoryInfo subDirectoryInfo,
-            DirectoryException exc) {
-        Session session = subDirectoryInfo.session;
-        subDirectoryInfo.session = null;
-        if (session != null) {
-            try {
-                session.close();
-            } catch (DirectoryException e) {
-                // remember exception, we want to close all session
-                // first
-                if (exc == null) {
-                    exc = e;
-                } else {
-                    // we can't reraise both, log this one
-                    log.error("Error closing directory "
-                            + subDirectoryInfo.dirName, e);
-                }
-            }
-        }
-        return exc;
-
-    }
-
     @Override
     public String getIdField() throws DirectoryException {
         return schemaIdField;
@@ -238,184 +168,107 @@ public class ResilientDirectorySession extends BaseSession {
         // If the master directory is in read-only any entry may be created on
         // master, but slave will be replicated in any case
         // So return the value of the master directory, to warn the caller if
-        // new entry will be created on master or not
-        try {
-            init();
-            return masterSubDirectoryInfo.getSession().isReadOnly();
-        } catch (ClientException e) {
-            log.warn(
-                    String.format(
-                            "Unable to get the read-only value of the master directory '%s'",
-                            masterSubDirectoryInfo.dirName), e);
-            // If we are not able to know if the master is in read-only, do not
-            // allow to add values into slaves
-            return true;
-        }
+        // new entry will be created on master or not.
+        // Cached at directory level, the last known value is kept while the
+        // master is down. If never known, do not allow to add values into
+        // slaves.
+        return directory.getMasterReadOnlyState().isReadOnly();
     }
 
     /**
-     * The method try to create/update the entry if master has it, else delete
-     * it from slave If any error, but log warn messages, the aim is not to lock
-     * operation when slave are not availale The stuff will be done another time
-     * The method works on entry ID (mean the idField is the same on master and
-     * slave) and slave don't use auto-increment feature (checked in
-     * ResilientDirectory constructor)
-     *
-     * @param entryId The id of the entry
-     * @param fieldMap The list of properties to set in addition of the master
-     *            one. Can be null when not needed
-     * @param masterHasEntry True if the master get it, else false. If flase the
-     *            entry will be reomved on slave
+     * Replicate the master entry on the slaves, in the caller thread or
+     * through the replication queue depending on the replication mode
      *
+     * @see ResilientReplicator#updateMasterOnSlaves
      */
-    private void updateMasterOnSlaves(String entryId,
+    private boolean updateMasterOnSlaves(String entryId,
             Map<String, Object> fieldMap, boolean masterHasEntry) {
-        // if master has entry, update entry on slave, else if it does not exist
-        // on slave create it
-        // If the master does not have this entry anymore delete it from slave
-
-        if (masterHasEntry) {
-            DocumentModel docModel = null;
-            try {
-                docModel = masterSubDirectoryInfo.getSession().getEntry(entryId);
-
-            } catch (ClientException e) {
-                log.warn(
-                        String.format(
-                                "Unable to get the entry id %s on master directory '%s'  while updating slave directory",
-                                entryId, masterSubDirectoryInfo.dirName), e);
-            }
-            if (docModel != null) {
-                for (SubDirectoryInfo subDirInfo : slaveSubDirectoryInfos) {
-                    try {
-                        if (subDirInfo.getSession().hasEntry(entryId)) {
-                            final DocumentModel entry = BaseSession.createEntryModel(
-                                    null, schemaName, entryId, null);
-                            // Do not set dataModel values with constructor to
-                            // force fields dirty
-
-                            Map<String, Object> masterProps = docModel.getProperties(schemaName);
-
-                            // Force update with the given properties if there
-                            // are
-                            // Some props are not retrieved from master
-                            // (ex:password)
-                            if (fieldMap != null) {
-                                masterProps.putAll(fieldMap);
-                            } else {
-                                if (getPasswordField() != null) {
-                                    Field passwordField = directory.getSchemaFieldMap().get(
-                                            getPasswordField());
-                                    if (masterProps.containsKey(passwordField.getName().getPrefixedName())) {
-                                        if (masterProps.get(passwordField.getName().getPrefixedName()) == null) {
-                                            // The password should be null only
-                                            // when
-                                            // where are trying to call getEntry
-                                            // Remove it to avoid update to null
-                                            masterProps.remove(passwordField.getName().getPrefixedName());
-                                        }
-                                    }
-                                }
-                            }
-
-                            // Init props from master
-                            entry.getDataModel(schemaName).setMap(masterProps);
-
-                            subDirInfo.getSession().updateEntry(entry);
-
-                        } else {
-                            // Do not set dataModel values with constructor to
-                            // force fields dirty
-                            Map<String, Object> prefixProps = docModel.getProperties(schemaName);
-                            // Force update with the given properties if there
-                            // are
-                            // Some props are not retrieved from master
-                            // (ex:password)
-                            if (fieldMap != null) {
-                                prefixProps.putAll(fieldMap);
-                            }
-
-
-                            subDirInfo.getSession().createEntry(prefixProps);
-                        }
-                    }
-
-                    catch (ClientException e) {
-                        log.warn(
-                                String.format(
-                                        "Unable to update the slave directory %s on entry id %s",
-                                        subDirInfo.dirName, entryId), e);
-                    }
-                }
-            } else {
-                log.warn(String.format(
-                        "The master directory %s should contains the entry id %s but return null when getting the object",
-                        masterSubDirectoryInfo.dirName, entryId));
-            }
-        } else {
-            for (SubDirectoryInfo subDirInfo : slaveSubDirectoryInfos) {
-                try {
-                    if (subDirInfo.getSession().hasEntry(entryId)) {
-                        subDirInfo.getSession().deleteEntry(entryId);
-                    }
-                }
-
-                catch (ClientException e) {
-                    log.warn(
-                            String.format(
-                                    "Unable to delete the slave directory %s on entry id %s",
-                                    subDirInfo.dirName, entryId), e);
-                }
-            }
+        NegativeCache negativeCache = directory.getNegativeCache();
+        if (masterHasEntry && negativeCache != null) {
+            negativeCache.remove(entryId);
+        }
+        ResilientReplicator replicator = directory.getReplicator();
+        if (replicator.isAsync()
+                && replicator.submit(entryId, fieldMap, masterHasEntry)) {
+            return true;
         }
+        return replicator.updateMasterOnSlaves(masterSubDirectoryInfo,
+                slaveSubDirectoryInfos, entryId, fieldMap, masterHasEntry);
+    }
 
+    /**
+     * The master does not have the entry: delete it from the slaves, unless
+     * already done recently
+     */
+    private void deleteMissingOnSlaves(String entryId) {
+        NegativeCache negativeCache = directory.getNegativeCache();
+        if (negativeCache != null && negativeCache.contains(entryId)) {
+            return;
+        }
+        if (updateMasterOnSlaves(entryId, null, false)
+                && negativeCache != null) {
+            negativeCache.put(entryId);
+        }
     }
 
     private boolean hasEntryOnSlave(String id) throws ClientException {
         init();
-        for (SubDirectoryInfo dirInfo : slaveSubDirectoryInfos) {
-            Session session = dirInfo.getSession();
-            if (session.hasEntry(id)) {
-                return true;
-            }
-        }
-        return false;
+        directory.getMetrics().fallback();
+        return readSlaves(new HasEntryCall(id), true).booleanValue();
     }
 
     @Override
     public boolean authenticate(String username, String password)
             throws ClientException {
         init();
+        CredentialStore credentials = directory.getCredentialStore();
 
-        // First try to authenticate against the master
-        try {
-            boolean authenticated = masterSubDirectoryInfo.getSession().authenticate(
-                    username, password);
-            HashMap<String, Object> fieldMap = new HashMap<String, Object>();
-
-            fieldMap.put(getIdField(), username);
-            fieldMap.put(getPasswordField(), password);
+        // First try to authenticate against the master, unless its circuit
+        // is open
+        if (masterSubDirectoryInfo.allowRequest()) {
+            try {
+                boolean authenticated = directory.getTimeoutPolicy().execute(
+                        masterSubDirectoryInfo,
+                        new AuthenticateCall(username, password)).booleanValue();
+                HashMap<String, Object> fieldMap = null;
+                if (credentials != null) {
+                    // the password is verified locally, not written on the
+                    // slaves
+                    if (authenticated) {
+                        credentials.update(username, password);
+                    } else {
+                        credentials.remove(username);
+                    }
+                } else {
+                    fieldMap = new HashMap<String, Object>();
+                    fieldMap.put(getIdField(), username);
+                    fieldMap.put(getPasswordField(), password);
+                }
 
-            updateMasterOnSlaves(username, fieldMap, authenticated);
-            return authenticated;
-        } catch (DirectoryException e) {
-            log.warn(
-                    String.format(
-                            "Unable to authenticate the user '%s' against the master directory '%s', will fallback on slave",
-                            username, masterSubDirectoryInfo.dirName), e);
+                updateMasterOnSlaves(username, fieldMap, authenticated);
+                return authenticated;
+            } catch (DirectoryException e) {
+                log.warn(
+                        String.format(
+                                "Unable to authenticate the user '%s' against the master directory '%s', will fallback on slave",
+                                username, masterSubDirectoryInfo.dirName), e);
+            }
+        } else {
+            logCircuitOpen("authenticate", username);
         }
 
-        // If the master is KO, fallback on slave and try to authenticate
-        for (SubDirectoryInfo dirInfo : slaveSubDirectoryInfos) {
-            log.info(String.format(
-                    "Trying to authenticate against slave directory %s",
-                    dirInfo.dirName));
-            if (dirInfo.getSession().authenticate(username, password)) {
-                return true;
+        directory.getMetrics().fallback();
+        // If the master is KO, check the verifier of the last password the
+        // master accepted, if any
+        if (credentials != null) {
+            Boolean verified = credentials.verify(username, password);
+            if (verified != null) {
+                return verified.booleanValue();
             }
-
         }
-        return false;
+
+        // else fallback on slave and try to authenticate
+        return readSlaves(new AuthenticateCall(username, password), true).booleanValue();
     }
 
     @Override
@@ -437,43 +290,66 @@ public class ResilientDirectorySession extends BaseSession {
             throws DirectoryException {
         init();
 
+        if (descriptor.isSlaveFirstRead()) {
+            DocumentModel entry = getFreshEntryOnSlave(id, fetchReferences);
+            if (entry != null) {
+                return entry;
+            }
+        }
+
         // Try to get the entry in the master first
         // If an exception occurs, catch it, log it and try to get it in the
         // slave
 
         boolean errorOccurs = false;
         DocumentModel entry = null;
-        try {
-            entry = masterSubDirectoryInfo.getSession().getEntry(id,
-                    fetchReferences);
-        } catch (DirectoryException e) {
-            log.warn(
-                    String.format(
-                            "Unable to get the entry id '%s' in the directory '%s', will fallback on slave ",
-                            id, masterSubDirectoryInfo.dirName), e);
+        if (masterSubDirectoryInfo.allowRequest()) {
+            try {
+                HedgingPolicy.Result<DocumentModel> result = readMaster(new GetEntryCall(
+                        id, fetchReferences));
+                entry = result.value;
+                if (result.source != masterSubDirectoryInfo) {
+                    // answered by a slave, nothing to replicate
+                    if (isReadOnly()) {
+                        setReadOnlyEntry(entry);
+                    }
+                    return entry;
+                }
+            } catch (ClientException e) {
+                log.warn(
+                        String.format(
+                                "Unable to get the entry id '%s' in the directory '%s', will fallback on slave ",
+                                id, masterSubDirectoryInfo.dirName), e);
+                errorOccurs = true;
+            }
+        } else {
+            logCircuitOpen("getEntry", id);
             errorOccurs = true;
         }
 
         if (entry == null && !errorOccurs) {
             // If the entry is null and no error, remove the entry from
             // slaves
-            updateMasterOnSlaves(id, null, false);
+            if (descriptor.readPathSync) {
+                deleteMissingOnSlaves(id);
+            }
         } else if (entry == null && errorOccurs) {
             // Try to get the entry from slaves
-            for (SubDirectoryInfo subDirectoryInfo : slaveSubDirectoryInfos) {
-                log.info(String.format(
-                        "Trying to get entry %s on slave directory %s",
-                        id, subDirectoryInfo.dirName));
-                entry = subDirectoryInfo.getSession().getEntry(id,
-                        fetchReferences);
-                if (isReadOnly()) {
-                    // set readonly the returned entry if the master directory
-                    // is in read-only
-                    setReadOnlyEntry(entry);
-                }
+            directory.getMetrics().fallback();
+            try {
+                entry = readSlaves(new GetEntryCall(id, fetchReferences), true);
+            } catch (DirectoryException e) {
+                throw e;
+            } catch (ClientException e) {
+                throw new DirectoryException(e);
+            }
+            if (entry != null && isReadOnly()) {
+                // set readonly the returned entry if the master directory
+                // is in read-only
+                setReadOnlyEntry(entry);
             }
 
-        } else if (entry != null) {
+        } else if (entry != null && descriptor.readPathSync) {
             // Update the entry to the slaves if needed
             updateMasterOnSlaves(entry.getId(), null, true);
         }
@@ -483,36 +359,256 @@ public class ResilientDirectorySession extends BaseSession {
     }
 
     /**
-     * Method used for quer and getEntries method This method may raise
-     * performance issue Find a smarter way of update Use a cron job that deal
-     * with asynchronous update
+     * Read the entry on a slave whose copy is recent enough, see
+     * <code>read@maxStaleness</code>
+     *
+     * @return the entry, null if no slave has a recent copy
+     */
+    private DocumentModel getFreshEntryOnSlave(String id,
+            boolean fetchReferences) {
+        long maxStalenessNanos = TimeUnit.SECONDS.toNanos(descriptor.readMaxStaleness);
+        for (SubDirectoryInfo slave : slaveSubDirectoryInfos) {
+            if (!slave.isAvailable()
+                    || !slave.state.syncTimes.isFresh(id, maxStalenessNanos)) {
+                continue;
+            }
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                DocumentModel entry = slave.getSession().getEntry(id,
+                        fetchReferences);
+                failed = false;
+                if (entry == null) {
+                    // deleted behind the replication
+                    slave.state.unsynced(id);
+                    continue;
+                }
+                if (isReadOnly()) {
+                    setReadOnlyEntry(entry);
+                }
+                return entry;
+            } catch (ClientException e) {
+                log.debug(String.format(
+                        "Unable to get the entry id '%s' on slave directory '%s', reading it on the master",
+                        id, slave.dirName), e);
+            } finally {
+                slave.record(SourceMetrics.Operation.GET_ENTRY, start, failed);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a slave has a copy of the entry recent enough, see
+     *         <code>read@maxStaleness</code>
+     */
+    private boolean hasFreshEntryOnSlave(String id) {
+        long maxStalenessNanos = TimeUnit.SECONDS.toNanos(descriptor.readMaxStaleness);
+        for (SubDirectoryInfo slave : slaveSubDirectoryInfos) {
+            if (slave.isAvailable()
+                    && slave.state.syncTimes.isFresh(id, maxStalenessNanos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Synchronize a slave with the master results of the same query
      *
      * @param masterResults The up-to-date list of results from master
+     * @see EntryDiff
+     */
+    private void bulkUpdateMasterOnSlave(SubDirectoryInfo slave,
+            DocumentModelList masterResults, DocumentModelList slaveResults) {
+        ResilientReplicator replicator = directory.getReplicator();
+        EntryDiff diff = EntryDiff.compute(masterResults, slaveResults,
+                schemaName, replicator.getPasswordKey());
+        replicator.applyChanges(slave, diff);
+    }
+
+    /**
+     * Read all the entries on the master, or on a slave if the master fails,
+     * by pages of <code>query@pageSize</code> entries ordered by id,
+     * <code>entries@parallelism</code> pages at once. The entries all come
+     * from the same source, the slaves are not synchronized.
      *
+     * @see #iterateEntries()
      */
-    private void bulkUpdateMasterOnSlave(DocumentModelList masterResults,
-            DocumentModelList slaveResults) {
+    @Override
+    public DocumentModelList getEntries() throws ClientException {
+        init();
+        DocumentModelList entries = null;
+        // a snapshot is a long read, it does not go through the circuit
+        // breaker
+        if (masterSubDirectoryInfo.isAvailable()) {
+            long start = System.nanoTime();
+            try {
+                entries = readSnapshot(masterSubDirectoryInfo);
+                masterSubDirectoryInfo.record(SourceMetrics.Operation.QUERY,
+                        start, false);
+            } catch (ClientException e) {
+                masterSubDirectoryInfo.record(SourceMetrics.Operation.QUERY,
+                        start, true);
+                log.warn(
+                        String.format(
+                                "Resilient directory '%s' : Unable to read the entries of master directory '%s', fallback on slaves",
+                                descriptor.name, masterSubDirectoryInfo.dirName),
+                        e);
+            }
+        } else {
+            logCircuitOpen("getEntries", "");
+        }
 
-        // Create/update entries in slave
-        for (DocumentModel docModel : masterResults) {
-            if (!slaveResults.contains(docModel)) {
-                updateMasterOnSlaves(docModel.getId(), null, true);
+        if (entries == null) {
+            directory.getMetrics().fallback();
+            ClientException exc = null;
+            for (SubDirectoryInfo subDirectoryInfo : directory.getSlaveSelector().order(
+                    slaveSubDirectoryInfos)) {
+                long start = System.nanoTime();
+                try {
+                    entries = readSnapshot(subDirectoryInfo);
+                    subDirectoryInfo.record(SourceMetrics.Operation.QUERY,
+                            start, false);
+                    break;
+                } catch (ClientException e) {
+                    subDirectoryInfo.record(SourceMetrics.Operation.QUERY,
+                            start, true);
+                    log.warn(
+                            String.format(
+                                    "Resilient directory '%s' : Unable to read the entries of slave directory '%s', fallback on another slave if it exists",
+                                    descriptor.name, subDirectoryInfo.dirName),
+                            e);
+                    exc = e;
+                }
+            }
+            if (entries == null) {
+                throw exc;
             }
         }
 
-        // Delete old entries
-        for (DocumentModel docModel : slaveResults) {
-            if (!masterResults.contains(docModel)) {
-                updateMasterOnSlaves(docModel.getId(), null, false);
+        if (isReadOnly()) {
+            for (DocumentModel documentModel : entries) {
+                setReadOnlyEntry(documentModel);
             }
         }
+        return entries;
+    }
 
+    /**
+     * Stream all the entries by pages of <code>query@pageSize</code> entries
+     * ordered by id, without synchronizing the slaves. Each page is read on
+     * the master or, if it fails, on a slave. The failure to read a page is
+     * thrown by the iterator as a {@link ClientRuntimeException}.
+     *
+     * @since 5.9
+     */
+    public Iterator<DocumentModel> iterateEntries() {
+        return new QueryIterator(Collections.<String, Serializable> emptyMap(),
+                Collections.<String> emptySet(), getIdOrder(), false, false);
     }
 
-    @Override
-    public DocumentModelList getEntries() throws ClientException {
-        throw new UnsupportedOperationException(
-                "Get entries may be deprecated !");
+    private Map<String, String> getIdOrder() {
+        return Collections.singletonMap(schemaIdField, "asc");
+    }
+
+    /**
+     * Read all the entries of a sub directory by pages ordered by id. The
+     * first page of each round is read in the caller thread, the
+     * <code>entries@parallelism - 1</code> next ones in parallel with their
+     * own sessions, or in the caller thread if no thread is available. A sub
+     * directory that does not page the results is read at once.
+     */
+    private DocumentModelList readSnapshot(SubDirectoryInfo info)
+            throws ClientException {
+        if (!info.state.isPaged()) {
+            return readSnapshotPage(info, 0, 0);
+        }
+        int pageSize = Math.max(1, descriptor.queryPageSize);
+        int parallelism = Math.max(1, descriptor.entriesParallelism);
+        DocumentModelList entries = new DocumentModelListImpl();
+        List<Future<DocumentModelList>> futures = new ArrayList<Future<DocumentModelList>>(
+                parallelism - 1);
+        int offset = 0;
+        while (true) {
+            futures.clear();
+            for (int i = 1; i < parallelism; i++) {
+                futures.add(submitSnapshotPage(info, pageSize, offset + i
+                        * pageSize));
+            }
+            DocumentModelList page = readSnapshotPage(info,
+                    pageSize, offset);
+            entries.addAll(page);
+            boolean last = page.size() < pageSize;
+            for (int i = 0; i < futures.size() && !last; i++) {
+                Future<DocumentModelList> future = futures.get(i);
+                // the pages after the last one end by themselves
+                page = future != null ? getSnapshotPage(future)
+                        : readSnapshotPage(info, pageSize,
+                                offset + (i + 1) * pageSize);
+                entries.addAll(page);
+                last = page.size() < pageSize;
+            }
+            if (last) {
+                return entries;
+            }
+            offset += parallelism * pageSize;
+        }
+    }
+
+    private static DocumentModelList readSnapshotPage(SubDirectoryInfo info,
+            int pageSize, int offset) throws ClientException {
+        return PagedQuery.query(info.getSession(), info.state.isPaged(),
+                Collections.<String, Serializable> emptyMap(),
+                Collections.<String> emptySet(),
+                Collections.singletonMap(info.idField, "asc"), false,
+                pageSize, offset);
+    }
+
+    /**
+     * @return null if no thread is available
+     */
+    private Future<DocumentModelList> submitSnapshotPage(SubDirectoryInfo info,
+            final int pageSize, final int offset) {
+        final SubDirectoryInfo copy = info.copy();
+        try {
+            return directory.getSourceCallExecutor().submit(
+                    new Callable<DocumentModelList>() {
+                        @Override
+                        public DocumentModelList call() throws Exception {
+                            try {
+                                return readSnapshotPage(copy,
+                                        pageSize, offset);
+                            } finally {
+                                DirectoryException e = copy.close(null);
+                                if (e != null) {
+                                    log.warn(
+                                            String.format(
+                                                    "Resilient directory '%s' : error while closing directory '%s'",
+                                                    descriptor.name,
+                                                    copy.dirName), e);
+                                }
+                            }
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private static DocumentModelList getSnapshotPage(
+            Future<DocumentModelList> future) throws ClientException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DirectoryException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ClientException) {
+                throw (ClientException) e.getCause();
+            }
+            throw new DirectoryException(e.getCause());
+        }
     }
 
     @Override
@@ -540,7 +636,17 @@ public class ResilientDirectorySession extends BaseSession {
 
         // Do not fallback if create on master has failed.
         // The master source must stay the most up-to-date source
-        masterSubDirectoryInfo.getSession().createEntry(entry);
+        Session master = masterSubDirectoryInfo.getSession();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            master.createEntry(entry);
+            failed = false;
+        } finally {
+            masterSubDirectoryInfo.record(SourceMetrics.Operation.CREATE,
+                    start, failed);
+        }
+        updateCredentials(id, fieldMap, true);
         updateMasterOnSlaves(id, fieldMap, true);
         return entry;
 
@@ -556,7 +662,20 @@ public class ResilientDirectorySession extends BaseSession {
         init();
         // If we are removing a entry from the master, update the slave(s)
         // even if the master is in read-only mode
-        masterSubDirectoryInfo.getSession().deleteEntry(id);
+        Session master = masterSubDirectoryInfo.getSession();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            master.deleteEntry(id);
+            failed = false;
+        } finally {
+            masterSubDirectoryInfo.record(SourceMetrics.Operation.DELETE,
+                    start, failed);
+        }
+        CredentialStore credentials = directory.getCredentialStore();
+        if (credentials != null) {
+            credentials.remove(id);
+        }
         updateMasterOnSlaves(id, null, false);
     }
 
@@ -582,9 +701,19 @@ public class ResilientDirectorySession extends BaseSession {
 
         // Do not fallback if update on master has failed.
         // The master source must stay the most up-to-date source
-        masterSubDirectoryInfo.getSession().updateEntry(docModel);
-        updateMasterOnSlaves(docModel.getId(),
-                docModel.getProperties(schemaName), true);
+        Session master = masterSubDirectoryInfo.getSession();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            master.updateEntry(docModel);
+            failed = false;
+        } finally {
+            masterSubDirectoryInfo.record(SourceMetrics.Operation.UPDATE,
+                    start, failed);
+        }
+        Map<String, Object> properties = docModel.getProperties(schemaName);
+        updateCredentials(docModel.getId(), properties, false);
+        updateMasterOnSlaves(docModel.getId(), properties, true);
 
     }
 
@@ -616,20 +745,39 @@ public class ResilientDirectorySession extends BaseSession {
 
         // list of entries
         final DocumentModelList results = new DocumentModelListImpl();
-        try {
-            results.addAll(masterSubDirectoryInfo.getSession().query(filter,
-                    fulltext, orderBy, fetchReferences));
+        boolean masterFailed = true;
+        boolean answeredBySlave = false;
+        if (masterSubDirectoryInfo.allowRequest()) {
+            try {
+                HedgingPolicy.Result<DocumentModelList> result = readMaster(new QueryCall(
+                        filter, fulltext, orderBy, fetchReferences));
+                results.addAll(result.value);
+                answeredBySlave = result.source != masterSubDirectoryInfo;
+                masterFailed = false;
+            } catch (ClientException e) {
+                log.warn(
+                        String.format(
+                                "Resilient directory '%s' : Unable to query entries on master directory '%s', fallback on slaves",
+                                descriptor.name, masterSubDirectoryInfo.dirName),
+                        e);
+            }
+        } else {
+            logCircuitOpen("query", filter);
+        }
+
+        if (answeredBySlave || !descriptor.readPathSync) {
+            // no synchronization: the master was too slow, or the slaves are
+            // resynchronized in background
+        } else if (!masterFailed) {
             DocumentModelList slaveResults = null;
 
             for (SubDirectoryInfo subDirectoryInfo : slaveSubDirectoryInfos) {
                 try {
-                    slaveResults = subDirectoryInfo.getSession().query(filter,
+                    slaveResults = querySlave(subDirectoryInfo, filter,
                             fulltext, orderBy, fetchReferences);
 
-                    // XXX : Should we update all entries on all directories ??
-                    // Performance issue ...
-                    // =>Cron job ? see getEntries for a common solution ?
-                    bulkUpdateMasterOnSlave(results, slaveResults);
+                    bulkUpdateMasterOnSlave(subDirectoryInfo, results,
+                            slaveResults);
 
                 } catch (ClientException exc) {
                     log.warn(
@@ -639,37 +787,268 @@ public class ResilientDirectorySession extends BaseSession {
                                     masterSubDirectoryInfo.dirName), exc);
                 }
             }
-        } catch (ClientException e) {
-            log.warn(
-                    String.format(
-                            "Resilient directory '%s' : Unable to query entries on master directory '%s', fallback on slaves",
-                            descriptor.name, masterSubDirectoryInfo.dirName), e);
-
+        } else {
             // Try to get the entry from slaves
+            directory.getMetrics().fallback();
+            try {
+                results.addAll(readSlaves(new QueryCall(filter, fulltext,
+                        orderBy, fetchReferences), false));
+            } catch (ClientException exc) {
+                log.warn(String.format(
+                        "Resilient directory '%s' : Unable to query entries on the slaves",
+                        descriptor.name), exc);
+            }
+
+        }
+
+        if (isReadOnly()) {
+            for (DocumentModel documentModel : results) {
+                setReadOnlyEntry(documentModel);
+            }
+        }
+        return results;
+
+    }
+
+    /**
+     * Query a page of the entries. The paging is done by the sub
+     * directories that page their results, see {@link PagedQuery}. The slaves
+     * are synchronized with the master page only.
+     *
+     * @param limit the maximum number of entries, 0 for all of them
+     * @param offset the number of entries to skip
+     */
+    @Override
+    public DocumentModelList query(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences, int limit, int offset)
+            throws ClientException {
+        if (limit <= 0 && offset <= 0) {
+            return query(filter, fulltext, orderBy, fetchReferences);
+        }
+        init();
+        return queryPage(filter, fulltext, orderBy, fetchReferences, limit,
+                offset, descriptor.readPathSync);
+    }
+
+    /**
+     * @param sync false not to synchronize the slaves with the master page
+     */
+    private DocumentModelList queryPage(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences, int limit, int offset, boolean sync)
+            throws ClientException {
+        final DocumentModelList results = new DocumentModelListImpl();
+        boolean masterFailed = true;
+        boolean answeredBySlave = false;
+        if (masterSubDirectoryInfo.allowRequest()) {
+            try {
+                HedgingPolicy.Result<DocumentModelList> result = readMaster(new QueryCall(
+                        filter, fulltext, orderBy, fetchReferences, limit,
+                        offset));
+                results.addAll(result.value);
+                answeredBySlave = result.source != masterSubDirectoryInfo;
+                masterFailed = false;
+            } catch (ClientException e) {
+                log.warn(
+                        String.format(
+                                "Resilient directory '%s' : Unable to query a page of entries on master directory '%s', fallback on slaves",
+                                descriptor.name, masterSubDirectoryInfo.dirName),
+                        e);
+            }
+        } else {
+            logCircuitOpen("query", filter);
+        }
+
+        if (answeredBySlave || !sync) {
+            // no synchronization
+        } else if (!masterFailed) {
+            ResilientReplicator replicator = directory.getReplicator();
             for (SubDirectoryInfo subDirectoryInfo : slaveSubDirectoryInfos) {
                 try {
-                    results.addAll(subDirectoryInfo.getSession().query(filter,
-                            fulltext, orderBy, fetchReferences));
-                    break;
+                    DocumentModelList slaveResults = querySlave(
+                            subDirectoryInfo, filter, fulltext, orderBy,
+                            fetchReferences, limit, offset);
+                    replicator.applyChanges(subDirectoryInfo,
+                            EntryDiff.computePage(results, slaveResults,
+                                    schemaName, replicator.getPasswordKey()));
                 } catch (ClientException exc) {
                     log.warn(
                             String.format(
-                                    "Resilient directory '%s' : Unable to query entries on slave directory '%s', fallback on another slave if it exists",
-                                    descriptor.name,
-                                    masterSubDirectoryInfo.dirName), e);
+                                    "Resilient directory '%s' : Unable to query a page of entries on slave directory '%s' for synchronization",
+                                    descriptor.name, subDirectoryInfo.dirName),
+                            exc);
                 }
             }
-
+        } else {
+            directory.getMetrics().fallback();
+            try {
+                results.addAll(readSlaves(new QueryCall(filter, fulltext,
+                        orderBy, fetchReferences, limit, offset), false));
+            } catch (ClientException exc) {
+                log.warn(String.format(
+                        "Resilient directory '%s' : Unable to query a page of entries on the slaves",
+                        descriptor.name), exc);
+            }
         }
 
-        for (DocumentModel documentModel : results) {
-            if (isReadOnly()) {
+        if (isReadOnly()) {
+            for (DocumentModel documentModel : results) {
                 setReadOnlyEntry(documentModel);
             }
-
         }
         return results;
+    }
+
+    /**
+     * Stream the entries of a query, read by pages of
+     * <code>query@pageSize</code> entries with
+     * {@link #query(Map, Set, Map, boolean, int, int)}. Without order, the
+     * entries are ordered by id so that the pages do not overlap.
+     * <p>
+     * Each page is read on the master or, if it fails, on a slave: the pages
+     * may come from different sources when the master fails in the middle.
+     * The failure to read a page is thrown by the iterator as a
+     * {@link ClientRuntimeException}.
+     *
+     * @since 5.9
+     */
+    public Iterator<DocumentModel> iterate(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences) {
+        if (orderBy == null || orderBy.isEmpty()) {
+            orderBy = getIdOrder();
+        }
+        return new QueryIterator(filter, fulltext, orderBy, fetchReferences,
+                descriptor.readPathSync);
+    }
+
+    /**
+     * Count the entries of a query, read by pages of
+     * <code>query@pageSize</code> entries: only a page is held at once
+     *
+     * @since 5.9
+     */
+    public int count(Map<String, Serializable> filter, Set<String> fulltext)
+            throws ClientException {
+        init();
+        int pageSize = getQueryPageSize();
+        Map<String, String> orderBy = getIdOrder();
+        int count = 0;
+        while (true) {
+            DocumentModelList page = query(filter, fulltext, orderBy, false,
+                    pageSize, count);
+            count += page.size();
+            if (pageSize == 0 || page.size() < pageSize) {
+                return count;
+            }
+        }
+    }
 
+    /**
+     * @return the size of the pages of the loops on the query results, 0 to
+     *         read them at once if the master does not page them
+     */
+    private int getQueryPageSize() {
+        return masterSubDirectoryInfo.state.isPaged() ? Math.max(1,
+                descriptor.queryPageSize) : 0;
+    }
+
+    private class QueryIterator implements Iterator<DocumentModel> {
+
+        private final Map<String, Serializable> filter;
+
+        private final Set<String> fulltext;
+
+        private final Map<String, String> orderBy;
+
+        private final boolean fetchReferences;
+
+        private final boolean sync;
+
+        private int pageSize = -1;
+
+        private DocumentModelList page;
+
+        private int index;
+
+        private int offset;
+
+        private boolean last;
+
+        QueryIterator(Map<String, Serializable> filter, Set<String> fulltext,
+                Map<String, String> orderBy, boolean fetchReferences,
+                boolean sync) {
+            this.filter = filter;
+            this.fulltext = fulltext;
+            this.orderBy = orderBy;
+            this.fetchReferences = fetchReferences;
+            this.sync = sync;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page != null && index < page.size()) {
+                return true;
+            }
+            if (last) {
+                return false;
+            }
+            try {
+                init();
+                if (pageSize < 0) {
+                    pageSize = getQueryPageSize();
+                }
+                page = queryPage(filter, fulltext, orderBy, fetchReferences,
+                        pageSize, offset, sync);
+            } catch (ClientException e) {
+                // an iterator cannot throw checked exceptions
+                throw new ClientRuntimeException(e);
+            }
+            index = 0;
+            offset += page.size();
+            last = pageSize == 0 || page.size() < pageSize;
+            return !page.isEmpty();
+        }
+
+        @Override
+        public DocumentModel next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.get(index++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private DocumentModelList querySlave(SubDirectoryInfo slave,
+            Map<String, Serializable> filter, Set<String> fulltext,
+            Map<String, String> orderBy, boolean fetchReferences)
+            throws ClientException {
+        return querySlave(slave, filter, fulltext, orderBy, fetchReferences,
+                0, 0);
+    }
+
+    private DocumentModelList querySlave(SubDirectoryInfo slave,
+            Map<String, Serializable> filter, Set<String> fulltext,
+            Map<String, String> orderBy, boolean fetchReferences, int limit,
+            int offset) throws ClientException {
+        Session session = slave.getSession();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            DocumentModelList entries = PagedQuery.query(session,
+                    slave.state.isPaged(), filter, fulltext, orderBy,
+                    fetchReferences, limit, offset);
+            failed = false;
+            return entries;
+        } finally {
+            slave.record(SourceMetrics.Operation.QUERY, start, failed);
+        }
     }
 
     @Override
@@ -679,21 +1058,32 @@ public class ResilientDirectorySession extends BaseSession {
                 columnName);
     }
 
+    /**
+     * Get the projection on the master, or on a slave if it fails. The
+     * slaves are not synchronized: only one field of the entries is read.
+     */
     @Override
     public List<String> getProjection(Map<String, Serializable> filter,
             Set<String> fulltext, String columnName) throws ClientException {
-
-        final DocumentModelList entries = query(filter, fulltext);
-        final List<String> results = new ArrayList<String>(entries.size());
-        for (DocumentModel entry : entries) {
-            final Object value = entry.getProperty(schemaName, columnName);
-            if (value == null) {
-                results.add(null);
-            } else {
-                results.add(value.toString());
+        init();
+        ProjectionCall call = new ProjectionCall(filter, fulltext, columnName);
+        if (masterSubDirectoryInfo.allowRequest()) {
+            try {
+                return readMaster(call).value;
+            } catch (ClientException e) {
+                log.warn(
+                        String.format(
+                                "Resilient directory '%s' : Unable to get the projection on master directory '%s', fallback on slaves",
+                                descriptor.name, masterSubDirectoryInfo.dirName),
+                        e);
             }
+        } else {
+            logCircuitOpen("getProjection", filter);
         }
-        return results;
+
+        directory.getMetrics().fallback();
+        List<String> values = readSlaves(call, false);
+        return values != null ? values : new ArrayList<String>();
     }
 
     @Override
@@ -706,12 +1096,28 @@ public class ResilientDirectorySession extends BaseSession {
     @Override
     public boolean hasEntry(String id) throws ClientException {
         init();
+        if (descriptor.isSlaveFirstRead() && hasFreshEntryOnSlave(id)) {
+            // the slave has had it for less than the staleness window
+            return true;
+        }
+        if (!masterSubDirectoryInfo.allowRequest()) {
+            logCircuitOpen("hasEntry", id);
+            return hasEntryOnSlave(id);
+        }
         try {
-            boolean masterHasEntry = masterSubDirectoryInfo.getSession().hasEntry(
-                    id);
-            updateMasterOnSlaves(id, null, masterHasEntry);
-            return masterHasEntry;
-        } catch (DirectoryException e) {
+            HedgingPolicy.Result<Boolean> result = readMaster(new HasEntryCall(
+                    id));
+            boolean hasEntry = result.value.booleanValue();
+            if (result.source == masterSubDirectoryInfo
+                    && descriptor.readPathSync) {
+                if (hasEntry) {
+                    updateMasterOnSlaves(id, null, true);
+                } else {
+                    deleteMissingOnSlaves(id);
+                }
+            }
+            return hasEntry;
+        } catch (ClientException e) {
             log.warn(
                     String.format(
                             "Unable to check if master directory '%s' has entry id '%s', fallback check on slaves ...",
@@ -720,4 +1126,265 @@ public class ResilientDirectorySession extends BaseSession {
         }
     }
 
+    /**
+     * Read on the master within its deadline, hedged on a slave if enabled.
+     * The circuit of the master must have allowed the call, its outcome is
+     * recorded here.
+     */
+    private <T> HedgingPolicy.Result<T> readMaster(SourceCall<T> call)
+            throws ClientException {
+        HedgingPolicy hedging = directory.getHedgingPolicy();
+        SubDirectoryInfo slave = hedging.isEnabled() ? getAvailableSlave()
+                : null;
+        if (slave != null) {
+            return hedging.execute(masterSubDirectoryInfo, slave, call);
+        }
+        T value = directory.getTimeoutPolicy().execute(
+                masterSubDirectoryInfo, call);
+        return new HedgingPolicy.Result<T>(masterSubDirectoryInfo, value);
+    }
+
+    /**
+     * Read on the slaves in the order of the {@link SlaveSelector}, until one
+     * of them answers
+     *
+     * @param untilGood true to try the next slave when the answer is not
+     *            good, see {@link SourceCall#isGood(Object)}
+     * @return the first good answer, else the first answer, null if there is
+     *         no slave
+     * @throws ClientException the last failure, if all the slaves failed
+     */
+    private <T> T readSlaves(SourceCall<T> call, boolean untilGood)
+            throws ClientException {
+        ClientException exc = null;
+        boolean answered = false;
+        T answer = null;
+        for (SubDirectoryInfo slave : directory.getSlaveSelector().order(
+                slaveSubDirectoryInfos)) {
+            slave.state.outstanding.incrementAndGet();
+            try {
+                T value = directory.getTimeoutPolicy().execute(slave, call);
+                if (!untilGood || call.isGood(value)) {
+                    return value;
+                }
+                if (!answered) {
+                    answer = value;
+                    answered = true;
+                }
+            } catch (ClientException e) {
+                log.warn(
+                        String.format(
+                                "Resilient directory '%s' : %s failed on slave directory '%s', fallback on another slave if it exists",
+                                descriptor.name, call.getOperation(),
+                                slave.dirName), e);
+                exc = e;
+            } finally {
+                slave.state.outstanding.decrementAndGet();
+            }
+        }
+        if (!answered && exc != null) {
+            throw exc;
+        }
+        return answer;
+    }
+
+    /**
+     * @return the first slave whose circuit is not open in the order of the
+     *         {@link SlaveSelector}, null if none
+     */
+    /**
+     * Keep the verifier of the entry in line with a password the master has
+     * just been written with: a created entry is verified against the given
+     * password, an updated one is forgotten until its next authentication on
+     * the master, the given value may be the stored one and not the password.
+     */
+    private void updateCredentials(String id, Map<String, Object> fieldMap,
+            boolean created) {
+        CredentialStore credentials = directory.getCredentialStore();
+        if (credentials == null || schemaPasswordField == null
+                || fieldMap == null) {
+            return;
+        }
+        Field passwordField = directory.getSchemaFieldMap().get(
+                schemaPasswordField);
+        if (passwordField == null) {
+            return;
+        }
+        Object password = fieldMap.get(passwordField.getName().getPrefixedName());
+        if (password == null) {
+            return;
+        }
+        if (created && password instanceof String) {
+            credentials.update(id, (String) password);
+        } else {
+            credentials.remove(id);
+        }
+    }
+
+    private SubDirectoryInfo getAvailableSlave() {
+        for (SubDirectoryInfo slave : directory.getSlaveSelector().order(
+                slaveSubDirectoryInfos)) {
+            if (slave.isAvailable()) {
+                return slave;
+            }
+        }
+        return null;
+    }
+
+    private static class GetEntryCall extends SourceCall<DocumentModel> {
+
+        private final String id;
+
+        private final boolean fetchReferences;
+
+        GetEntryCall(String id, boolean fetchReferences) {
+            super(SourceMetrics.Operation.GET_ENTRY);
+            this.id = id;
+            this.fetchReferences = fetchReferences;
+        }
+
+        @Override
+        public DocumentModel call(Session session) throws ClientException {
+            return session.getEntry(id, fetchReferences);
+        }
+
+        @Override
+        public boolean isGood(DocumentModel entry) {
+            // a slave may not know a new entry yet
+            return entry != null;
+        }
+    }
+
+    private static class AuthenticateCall extends SourceCall<Boolean> {
+
+        private final String username;
+
+        private final String password;
+
+        AuthenticateCall(String username, String password) {
+            super(SourceMetrics.Operation.AUTHENTICATE);
+            this.username = username;
+            this.password = password;
+        }
+
+        @Override
+        public Boolean call(Session session) throws ClientException {
+            return Boolean.valueOf(session.authenticate(username, password));
+        }
+
+        @Override
+        public boolean isGood(Boolean authenticated) {
+            return authenticated.booleanValue();
+        }
+    }
+
+    private static class HasEntryCall extends SourceCall<Boolean> {
+
+        private final String id;
+
+        HasEntryCall(String id) {
+            super(SourceMetrics.Operation.HAS_ENTRY);
+            this.id = id;
+        }
+
+        @Override
+        public Boolean call(Session session) throws ClientException {
+            return Boolean.valueOf(session.hasEntry(id));
+        }
+
+        @Override
+        public boolean isGood(Boolean hasEntry) {
+            return hasEntry.booleanValue();
+        }
+    }
+
+    private static class QueryCall extends SourceCall<DocumentModelList> {
+
+        private final Map<String, Serializable> filter;
+
+        private final Set<String> fulltext;
+
+        private final Map<String, String> orderBy;
+
+        private final boolean fetchReferences;
+
+        private final int limit;
+
+        private final int offset;
+
+        QueryCall(Map<String, Serializable> filter, Set<String> fulltext,
+                Map<String, String> orderBy, boolean fetchReferences) {
+            this(filter, fulltext, orderBy, fetchReferences, 0, 0);
+        }
+
+        QueryCall(Map<String, Serializable> filter, Set<String> fulltext,
+                Map<String, String> orderBy, boolean fetchReferences,
+                int limit, int offset) {
+            super(SourceMetrics.Operation.QUERY);
+            this.filter = filter;
+            this.fulltext = fulltext;
+            this.orderBy = orderBy;
+            this.fetchReferences = fetchReferences;
+            this.limit = limit;
+            this.offset = offset;
+        }
+
+        @Override
+        public DocumentModelList call(Session session) throws ClientException {
+            return call(null, session);
+        }
+
+        @Override
+        public DocumentModelList call(SubDirectoryState state, Session session)
+                throws ClientException {
+            return PagedQuery.query(session, state != null && state.isPaged(),
+                    filter, fulltext, orderBy, fetchReferences, limit, offset);
+        }
+
+        @Override
+        public boolean isGood(DocumentModelList entries) {
+            return !entries.isEmpty();
+        }
+    }
+
+    private static class ProjectionCall extends SourceCall<List<String>> {
+
+        private final Map<String, Serializable> filter;
+
+        private final Set<String> fulltext;
+
+        private final String columnName;
+
+        ProjectionCall(Map<String, Serializable> filter, Set<String> fulltext,
+                String columnName) {
+            super(SourceMetrics.Operation.QUERY);
+            this.filter = filter;
+            this.fulltext = fulltext;
+            this.columnName = columnName;
+        }
+
+        @Override
+        public List<String> call(Session session) throws ClientException {
+            return session.getProjection(filter, fulltext, columnName);
+        }
+
+        @Override
+        public boolean isGood(List<String> values) {
+            return !values.isEmpty();
+        }
+    }
+
+    /**
+     * The master is down or its circuit is open, the call goes straight to
+     * the slaves. Only logged in debug, the state change has already been
+     * logged.
+     */
+    private void logCircuitOpen(String operation, Object arg) {
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "Master directory '%s' is down or its circuit is open, %s(%s) goes to the slaves",
+                    masterSubDirectoryInfo.dirName, operation, arg));
+        }
+    }
+
 }
@@ -0,0 +1,235 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Fallback and replication counters of a resilient directory, the calls on
+ * each sub directory are counted by its {@link SourceMetrics}.
+ * <p>
+ * When enabled, the directory and each of its sub directories are registered
+ * as MXBeans under the <code>org.nuxeo.ecm.directory.resilient</code>
+ * domain. Recording does not allocate nor lock.
+ *
+ * @since 5.9
+ */
+public class ResilientMetrics implements ResilientMetricsMXBean {
+
+    private static final Log log = LogFactory.getLog(ResilientMetrics.class);
+
+    public static final String DOMAIN = "org.nuxeo.ecm.directory.resilient";
+
+    protected final ResilientDirectory directory;
+
+    protected final String name;
+
+    protected final AtomicLong fallbacks = new AtomicLong();
+
+    protected final AtomicLong replicationSuccesses = new AtomicLong();
+
+    protected final AtomicLong replicationFailures = new AtomicLong();
+
+    protected final AtomicLong skippedWrites = new AtomicLong();
+
+    protected final LatencyHistogram replicationLag = new LatencyHistogram(
+            SubDirectoryState.LATENCY_WINDOW);
+
+    protected final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    public ResilientMetrics(ResilientDirectory directory) {
+        this.directory = directory;
+        name = directory.getDescriptor().name;
+    }
+
+    public void fallback() {
+        fallbacks.incrementAndGet();
+    }
+
+    /**
+     * @param success true if the slave has been updated
+     */
+    public void replicated(boolean success) {
+        if (success) {
+            replicationSuccesses.incrementAndGet();
+        } else {
+            replicationFailures.incrementAndGet();
+        }
+    }
+
+    public void replicated(int successes, int failures) {
+        replicationSuccesses.addAndGet(successes);
+        replicationFailures.addAndGet(failures);
+    }
+
+    public void skippedWrite() {
+        skippedWrites.incrementAndGet();
+    }
+
+    /**
+     * @param queuedAt the {@link System#nanoTime()} at the queuing of the
+     *            replication
+     */
+    public void replicationDone(long queuedAt) {
+        replicationLag.record(System.nanoTime() - queuedAt);
+    }
+
+    public LatencyHistogram getReplicationLag() {
+        return replicationLag;
+    }
+
+    @Override
+    public String getDirectoryName() {
+        return name;
+    }
+
+    @Override
+    public String getHealth() {
+        return directory.getHealthMonitor().getHealth().name();
+    }
+
+    @Override
+    public Map<String, String> getSubDirectoryHealth() {
+        Map<String, String> health = new LinkedHashMap<String, String>();
+        for (SubDirectoryDescriptor sub : directory.getDescriptor().subDirectories) {
+            health.put(sub.name,
+                    directory.getSubDirectoryState(sub.name).getHealth().name());
+        }
+        return health;
+    }
+
+    @Override
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    @Override
+    public long getReplicationSuccessCount() {
+        return replicationSuccesses.get();
+    }
+
+    @Override
+    public long getReplicationFailureCount() {
+        return replicationFailures.get();
+    }
+
+    @Override
+    public long getSkippedWriteCount() {
+        return skippedWrites.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return directory.getReplicator().getPendingCount();
+    }
+
+    @Override
+    public int getJournalSize() {
+        ReplicationJournal journal = directory.getReplicator().getJournal();
+        return journal == null ? 0 : journal.size();
+    }
+
+    @Override
+    public double getReplicationLagP50Millis() {
+        return SourceMetrics.toMillis(replicationLag.getPercentile(50));
+    }
+
+    @Override
+    public double getReplicationLagP99Millis() {
+        return SourceMetrics.toMillis(replicationLag.getPercentile(99));
+    }
+
+    /**
+     * Register the MXBean of the directory
+     */
+    public void register() {
+        register(newObjectName("ResilientDirectory", null), this);
+    }
+
+    /**
+     * Register the MXBean of a sub directory
+     */
+    public void register(SourceMetrics source) {
+        register(newObjectName("SubDirectory", source.getDirectoryName()),
+                source);
+    }
+
+    protected ObjectName newObjectName(String type, String subDirectory) {
+        StringBuilder sb = new StringBuilder(DOMAIN);
+        sb.append(":type=").append(type);
+        sb.append(",directory=").append(ObjectName.quote(name));
+        if (subDirectory != null) {
+            sb.append(",name=").append(ObjectName.quote(subDirectory));
+        }
+        try {
+            return new ObjectName(sb.toString());
+        } catch (JMException e) {
+            throw new IllegalArgumentException(sb.toString(), e);
+        }
+    }
+
+    protected synchronized void register(ObjectName objectName, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                // left by a previous deployment of the directory
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : unable to register %s",
+                    name, objectName), e);
+        }
+    }
+
+    /**
+     * Unregister all the MXBeans registered by this instance
+     */
+    public synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registered) {
+            try {
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                log.warn(String.format(
+                        "Resilient directory '%s' : unable to unregister %s",
+                        name, objectName), e);
+            }
+        }
+        registered.clear();
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.Map;
+
+/**
+ * JMX view of the fallbacks and replications of a resilient directory.
+ *
+ * @since 5.9
+ */
+public interface ResilientMetricsMXBean {
+
+    String getDirectoryName();
+
+    /**
+     * @return the health of the directory published by the health monitor:
+     *         UP, DEGRADED or DOWN
+     */
+    String getHealth();
+
+    /**
+     * @return the health of each sub directory, keyed by name
+     */
+    Map<String, String> getSubDirectoryHealth();
+
+    /**
+     * @return the number of reads answered by the slaves because the master
+     *         failed or its circuit was open
+     */
+    long getFallbackCount();
+
+    /**
+     * @return the number of entries written or deleted on a slave
+     */
+    long getReplicationSuccessCount();
+
+    /**
+     * @return the number of entries the write or deletion failed on a slave
+     */
+    long getReplicationFailureCount();
+
+    /**
+     * @return the number of slave writes skipped as the slave already had the
+     *         values
+     */
+    long getSkippedWriteCount();
+
+    /**
+     * @return the number of replications queued or running
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of replications journaled and not yet done, 0 if
+     *         the journal is disabled
+     */
+    int getJournalSize();
+
+    /**
+     * @return the median time between the queuing of a replication and its
+     *         end over the last minute or two, in milliseconds
+     */
+    double getReplicationLagP50Millis();
+
+    /**
+     * @return the 99th percentile time between the queuing of a replication
+     *         and its end over the last minute or two, in milliseconds
+     */
+    double getReplicationLagP99Millis();
+
+}
@@ -0,0 +1,685 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Scheduled full resynchronization of the slaves with the master.
+ * <p>
+ * The master entries are walked by pages ordered by id, each page is compared
+ * with the slave entries and the differences are written on the slaves. Then
+ * the slaves are walked the same way to delete the entries the master does
+ * not have anymore. A pause is done between two pages so that the foreground
+ * requests are not starved, and a checkpoint is saved after each page so that
+ * a restart resumes the walk instead of starting it over.
+ *
+ * @since 5.9
+ */
+public class ResilientReconciler {
+
+    private static final Log log = LogFactory.getLog(ResilientReconciler.class);
+
+    public enum Phase {
+        IDLE, MASTER, SLAVES
+    }
+
+    protected static final String CHECKPOINT_PHASE = "phase";
+
+    protected static final String CHECKPOINT_OFFSET = "offset";
+
+    protected static final String CHECKPOINT_SLAVE = "slave";
+
+    protected final ResilientDirectory directory;
+
+    protected final ResilientDirectoryDescriptor descriptor;
+
+    protected final AtomicBoolean running = new AtomicBoolean();
+
+    protected volatile boolean shutdown = false;
+
+    protected ScheduledFuture<?> future;
+
+    protected volatile Phase phase = Phase.IDLE;
+
+    protected volatile int offset;
+
+    protected final AtomicLong scanned = new AtomicLong();
+
+    protected final AtomicLong created = new AtomicLong();
+
+    protected final AtomicLong updated = new AtomicLong();
+
+    protected final AtomicLong deleted = new AtomicLong();
+
+    protected volatile long lastCompleted;
+
+    protected volatile long lastDuration;
+
+    public ResilientReconciler(ResilientDirectory directory) {
+        this.directory = directory;
+        descriptor = directory.getDescriptor();
+    }
+
+    public boolean isEnabled() {
+        return descriptor.resyncEnabled;
+    }
+
+    /**
+     * Schedule the resynchronization, if enabled
+     */
+    public synchronized void start() {
+        if (!isEnabled() || future != null || shutdown) {
+            return;
+        }
+        long interval = Math.max(1, descriptor.resyncInterval);
+        future = directory.getScheduler().scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            resync();
+                        } catch (RuntimeException e) {
+                            // do not cancel the next runs
+                            log.error(String.format(
+                                    "Resilient directory '%s' : resynchronization failed",
+                                    descriptor.name), e);
+                        }
+                    }
+                }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    /**
+     * Run a resynchronization in the caller thread, resuming the interrupted
+     * one if any.
+     *
+     * @return false if a resynchronization is already running, or if this
+     *         one has been interrupted
+     */
+    public boolean resync() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            return doResync();
+        } finally {
+            phase = Phase.IDLE;
+            running.set(false);
+        }
+    }
+
+    protected boolean doResync() {
+        long start = System.currentTimeMillis();
+        Properties checkpoint = loadCheckpoint();
+        Phase startPhase = Phase.MASTER;
+        int startOffset = 0;
+        String startSlave = null;
+        if (checkpoint != null) {
+            try {
+                startPhase = Phase.valueOf(checkpoint.getProperty(CHECKPOINT_PHASE));
+                startOffset = Integer.parseInt(checkpoint.getProperty(CHECKPOINT_OFFSET));
+                startSlave = checkpoint.getProperty(CHECKPOINT_SLAVE);
+            } catch (RuntimeException e) {
+                log.warn(String.format(
+                        "Resilient directory '%s' : invalid resynchronization checkpoint, starting over",
+                        descriptor.name));
+                startPhase = Phase.MASTER;
+                startOffset = 0;
+            }
+        }
+        scanned.set(0);
+        created.set(0);
+        updated.set(0);
+        deleted.set(0);
+        log.info(String.format(
+                "Resilient directory '%s' : resynchronization started at %s %s",
+                descriptor.name, startPhase, startOffset));
+
+        // the ids of the master, to find the slave entries to delete. Read
+        // again if the master has not been walked from the start.
+        Set<String> masterIds = startPhase == Phase.MASTER && startOffset == 0 ? new HashSet<String>()
+                : null;
+        if (startPhase == Phase.MASTER) {
+            if (!walkMaster(startOffset, masterIds)) {
+                return false;
+            }
+            startOffset = 0;
+            startSlave = null;
+        }
+        if (masterIds == null) {
+            masterIds = getMasterIds();
+            if (masterIds == null) {
+                return false;
+            }
+        }
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            if (sub.isMaster()) {
+                continue;
+            }
+            if (startSlave != null && !startSlave.equals(sub.name)) {
+                continue;
+            }
+            if (!walkSlave(sub, startSlave != null ? startOffset : 0,
+                    masterIds)) {
+                return false;
+            }
+            startSlave = null;
+        }
+        deleteCheckpoint();
+        lastCompleted = System.currentTimeMillis();
+        lastDuration = lastCompleted - start;
+        log.info(String.format(
+                "Resilient directory '%s' : resynchronization done in %sms, %s entries scanned, %s created, %s updated, %s deleted",
+                descriptor.name, lastDuration, scanned.get(), created.get(),
+                updated.get(), deleted.get()));
+        return true;
+    }
+
+    /**
+     * Write the master entries on the slaves, page by page
+     */
+    protected boolean walkMaster(int fromOffset, Set<String> masterIds) {
+        phase = Phase.MASTER;
+        offset = fromOffset;
+        ResilientReplicator replicator = directory.getReplicator();
+        String passwordKey = replicator.getPasswordKey();
+        String schemaName = directory.getSchema();
+        int pageSize = Math.max(1, descriptor.resyncPageSize);
+        Map<String, SlaveCursor> cursors = new HashMap<String, SlaveCursor>();
+        while (!shutdown) {
+            List<SubDirectoryInfo> slaves = new ArrayList<SubDirectoryInfo>(2);
+            SubDirectoryInfo master;
+            try {
+                master = replicator.newSubDirectoryInfos(slaves);
+            } catch (DirectoryException e) {
+                logUnavailable(e);
+                return false;
+            }
+            boolean tx = TransactionHelper.startTransaction();
+            int count;
+            boolean last;
+            try {
+                List<DocumentModel> page = getPage(master, offset, pageSize);
+                if (page == null) {
+                    return false;
+                }
+                count = page.size();
+                last = count < pageSize || !master.state.isPaged();
+                for (DocumentModel entry : page) {
+                    if (masterIds != null) {
+                        masterIds.add(entry.getId());
+                    }
+                }
+                for (SubDirectoryInfo slave : slaves) {
+                    SlaveCursor cursor = cursors.get(slave.dirName);
+                    if (cursor == null) {
+                        cursor = new SlaveCursor();
+                        cursors.put(slave.dirName, cursor);
+                    }
+                    reconcilePage(replicator, slave, cursor, page,
+                            schemaName, passwordKey, pageSize);
+                }
+                scanned.addAndGet(count);
+            } finally {
+                replicator.closeAll(master, slaves);
+                if (tx) {
+                    TransactionHelper.commitOrRollbackTransaction();
+                }
+            }
+            offset += count;
+            saveCheckpoint(Phase.MASTER, offset, null);
+            if (last) {
+                return true;
+            }
+            if (!pause()) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the ids of the master, page by page, when the walk resumed after
+     * its first entries
+     *
+     * @return null if the master is not available or if interrupted
+     */
+    protected Set<String> getMasterIds() {
+        SubDirectoryDescriptor masterSub = null;
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            if (sub.isMaster()) {
+                masterSub = sub;
+            }
+        }
+        if (masterSub == null) {
+            return null;
+        }
+        Set<String> masterIds = new HashSet<String>();
+        int from = 0;
+        int pageSize = Math.max(1, descriptor.resyncPageSize);
+        while (!shutdown) {
+            SubDirectoryInfo master;
+            try {
+                master = directory.newSubDirectoryInfo(masterSub);
+            } catch (DirectoryException e) {
+                logUnavailable(e);
+                return null;
+            }
+            boolean tx = TransactionHelper.startTransaction();
+            int count;
+            boolean last;
+            try {
+                List<DocumentModel> page = getPage(master, from, pageSize);
+                if (page == null) {
+                    return null;
+                }
+                count = page.size();
+                last = count < pageSize || !master.state.isPaged();
+                for (DocumentModel entry : page) {
+                    masterIds.add(entry.getId());
+                }
+            } finally {
+                master.close(null);
+                if (tx) {
+                    TransactionHelper.commitOrRollbackTransaction();
+                }
+            }
+            from += count;
+            if (last) {
+                return masterIds;
+            }
+            if (!pause()) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Delete from a slave the entries missing on the master, page by page
+     */
+    protected boolean walkSlave(SubDirectoryDescriptor sub, int fromOffset,
+            Set<String> masterIds) {
+        phase = Phase.SLAVES;
+        offset = fromOffset;
+        ResilientReplicator replicator = directory.getReplicator();
+        int pageSize = Math.max(1, descriptor.resyncPageSize);
+        while (!shutdown) {
+            SubDirectoryInfo slave;
+            try {
+                slave = directory.newSubDirectoryInfo(sub);
+            } catch (DirectoryException e) {
+                logUnavailable(e);
+                return false;
+            }
+            boolean tx = TransactionHelper.startTransaction();
+            int count;
+            int removed = 0;
+            boolean last;
+            try {
+                List<DocumentModel> page = getPage(slave, offset, pageSize);
+                if (page == null) {
+                    return false;
+                }
+                count = page.size();
+                last = count < pageSize || !slave.state.isPaged();
+                for (DocumentModel entry : page) {
+                    String id = entry.getId();
+                    if (masterIds.contains(id)) {
+                        continue;
+                    }
+                    try {
+                        replicator.deleteOnSlave(slave, id, Boolean.TRUE);
+                        removed++;
+                        deleted.incrementAndGet();
+                    } catch (ClientException e) {
+                        log.warn(String.format(
+                                "Resilient directory '%s' : unable to delete entry id '%s' from slave '%s'",
+                                descriptor.name, id, slave.dirName), e);
+                    }
+                }
+            } finally {
+                slave.close(null);
+                if (tx) {
+                    TransactionHelper.commitOrRollbackTransaction();
+                }
+            }
+            // the deleted entries shift the next pages
+            offset += count - removed;
+            saveCheckpoint(Phase.SLAVES, offset, sub.name);
+            if (last) {
+                return true;
+            }
+            if (!pause()) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    protected void logUnavailable(DirectoryException e) {
+        log.warn(String.format(
+                "Resilient directory '%s' : sub directories unavailable, resynchronization postponed",
+                descriptor.name), e);
+    }
+
+    /**
+     * @return a page of entries ordered by id, all the entries from the
+     *         offset if the sub directory does not page the results, null if
+     *         the sub directory is not available
+     */
+    protected List<DocumentModel> getPage(SubDirectoryInfo info, int from,
+            int pageSize) {
+        try {
+            boolean paged = info.state.isPaged();
+            return PagedQuery.query(info.getSession(), paged,
+                    Collections.<String, Serializable> emptyMap(),
+                    Collections.<String> emptySet(),
+                    Collections.singletonMap(info.idField, "asc"), false,
+                    paged ? pageSize : 0, from);
+        } catch (ClientException e) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : unable to read directory '%s', resynchronization postponed",
+                    descriptor.name, info.dirName), e);
+            return null;
+        }
+    }
+
+    /**
+     * The entries of a slave read by pages in id order along the master walk,
+     * so that a master page is compared in memory with the slave entries
+     * instead of reading them one by one.
+     * <p>
+     * The two sources may not order the ids the same way: an entry not read
+     * yet is still read by id, and only the ids of the slave are kept once
+     * the master walk has passed them.
+     */
+    protected class SlaveCursor {
+
+        protected int offset;
+
+        protected boolean exhausted;
+
+        protected String lastId;
+
+        protected final TreeMap<String, DocumentModel> entries = new TreeMap<String, DocumentModel>();
+
+        protected final Set<String> seenIds = new HashSet<String>();
+
+        /**
+         * @return the slave entries having the ids of the master page
+         */
+        protected List<DocumentModel> lookup(SubDirectoryInfo slave,
+                List<DocumentModel> page, int pageSize) throws ClientException {
+            List<DocumentModel> found = new ArrayList<DocumentModel>(
+                    page.size());
+            if (page.isEmpty()) {
+                return found;
+            }
+            String firstId = page.get(0).getId();
+            String lastPageId = page.get(page.size() - 1).getId();
+            while (!exhausted
+                    && (lastId == null || lastId.compareTo(lastPageId) < 0)) {
+                read(slave, pageSize);
+            }
+            for (DocumentModel entry : page) {
+                String id = entry.getId();
+                DocumentModel slaveEntry = entries.remove(id);
+                if (slaveEntry == null
+                        && (!exhausted || seenIds.contains(id))) {
+                    slaveEntry = slave.getSession().getEntry(id, false);
+                }
+                if (slaveEntry != null) {
+                    found.add(slaveEntry);
+                }
+            }
+            // passed by the master walk
+            Iterator<String> it = entries.headMap(firstId).keySet().iterator();
+            while (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+            return found;
+        }
+
+        protected void read(SubDirectoryInfo slave, int pageSize)
+                throws ClientException {
+            boolean paged = slave.state.isPaged();
+            List<DocumentModel> slavePage = PagedQuery.query(
+                    slave.getSession(), paged,
+                    Collections.<String, Serializable> emptyMap(),
+                    Collections.<String> emptySet(),
+                    Collections.singletonMap(slave.idField, "asc"), false,
+                    paged ? pageSize : 0, offset);
+            // the entries created meanwhile shift the pages, the ones read
+            // again are kept once
+            offset += slavePage.size();
+            exhausted = !paged || slavePage.size() < pageSize;
+            for (DocumentModel entry : slavePage) {
+                String id = entry.getId();
+                seenIds.add(id);
+                entries.put(id, entry);
+                lastId = id;
+            }
+        }
+    }
+
+    protected void reconcilePage(ResilientReplicator replicator,
+            SubDirectoryInfo slave, SlaveCursor cursor,
+            List<DocumentModel> page, String schemaName, String passwordKey,
+            int pageSize) {
+        List<DocumentModel> slaveEntries;
+        try {
+            slaveEntries = cursor.lookup(slave, page, pageSize);
+        } catch (ClientException e) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : unable to read slave '%s', page skipped",
+                    descriptor.name, slave.dirName), e);
+            return;
+        }
+        EntryDiff diff = EntryDiff.compute(page, slaveEntries, schemaName,
+                passwordKey);
+        // nothing to delete: only the ids of the master page were read
+        diff.deletes.clear();
+        DigestStore digests = slave.state.digests;
+        if (digests != null) {
+            // the slave may have diverged from what has been written
+            Set<String> changed = new HashSet<String>();
+            for (DocumentModel entry : diff.creates) {
+                changed.add(entry.getId());
+            }
+            for (DocumentModel entry : diff.updates) {
+                changed.add(entry.getId());
+            }
+            for (DocumentModel entry : page) {
+                String id = entry.getId();
+                if (changed.contains(id)) {
+                    digests.remove(id);
+                } else {
+                    digests.put(id, EntryDigest.digest(
+                            replicator.getSlaveProps(entry, null, passwordKey),
+                            passwordKey), null);
+                }
+            }
+        }
+        if (replicator.applyChanges(slave, diff, false)) {
+            created.addAndGet(diff.creates.size());
+            updated.addAndGet(diff.updates.size());
+        }
+    }
+
+    /**
+     * Throttle between two pages
+     *
+     * @return false if interrupted
+     */
+    protected boolean pause() {
+        if (descriptor.resyncPageDelay <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(descriptor.resyncPageDelay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    protected File getCheckpointFile() {
+        return new File(directory.getDataDirectory(), descriptor.name
+                + ".resync");
+    }
+
+    protected Properties loadCheckpoint() {
+        File file = getCheckpointFile();
+        if (!file.exists()) {
+            return null;
+        }
+        Properties checkpoint = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                checkpoint.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : unable to read resynchronization checkpoint %s",
+                    descriptor.name, file), e);
+            return null;
+        }
+        return checkpoint;
+    }
+
+    protected void saveCheckpoint(Phase phase, int offset, String slave) {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(CHECKPOINT_PHASE, phase.name());
+        checkpoint.setProperty(CHECKPOINT_OFFSET, String.valueOf(offset));
+        if (slave != null) {
+            checkpoint.setProperty(CHECKPOINT_SLAVE, slave);
+        }
+        File file = getCheckpointFile();
+        try {
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                checkpoint.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : unable to save resynchronization checkpoint %s",
+                    descriptor.name, file), e);
+        }
+    }
+
+    protected void deleteCheckpoint() {
+        getCheckpointFile().delete();
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return the directory being walked
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the number of entries walked in the current phase
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of master entries checked by the current or last run
+     */
+    public long getScannedCount() {
+        return scanned.get();
+    }
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    public long getUpdatedCount() {
+        return updated.get();
+    }
+
+    public long getDeletedCount() {
+        return deleted.get();
+    }
+
+    /**
+     * @return the end time of the last complete run, 0 if none
+     */
+    public long getLastCompleted() {
+        return lastCompleted;
+    }
+
+    /**
+     * @return the duration in milliseconds of the last complete run
+     */
+    public long getLastDuration() {
+        return lastDuration;
+    }
+
+}
@@ -20,6 +20,8 @@
 package org.nuxeo.ecm.directory.resilient;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -27,11 +29,19 @@ import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.directory.AbstractReference;
-import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryEntryNotFoundException;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.Reference;
 
+/**
+ * Reference of a resilient directory.
+ * <p>
+ * The links are read on the reference of the master, or of a slave if the
+ * master fails. They are written on the reference of the master, then on the
+ * slave ones with only the links that differ.
+ *
+ * @author Maxime Hilaire
+ */
 public class ResilientReference extends AbstractReference {
 
     private static final Log log = LogFactory.getLog(ResilientReference.class);
@@ -46,44 +56,204 @@ public class ResilientReference extends AbstractReference {
     }
 
     @Override
-    public void addLinks(String sourceId, List<String> targetIds)
+    public void addLinks(final String sourceId, final List<String> targetIds)
             throws DirectoryException {
-        throw new UnsupportedOperationException();
+        doWrite(new LinkWrite() {
+            @Override
+            void write(Reference ref) throws DirectoryException {
+                ref.addLinks(sourceId, targetIds);
+            }
+        });
     }
 
     @Override
-    public void addLinks(List<String> sourceIds, String targetId)
+    public void addLinks(final List<String> sourceIds, final String targetId)
             throws DirectoryException {
-        throw new UnsupportedOperationException();
+        doWrite(new LinkWrite() {
+            @Override
+            void write(Reference ref) throws DirectoryException {
+                ref.addLinks(sourceIds, targetId);
+            }
+        });
+    }
+
+    /**
+     * A write of links, done as is on the master reference
+     */
+    protected abstract static class LinkWrite {
+
+        abstract void write(Reference ref) throws DirectoryException;
+
+        /**
+         * Apply the write on a slave reference, by default as on the master
+         */
+        void propagate(Reference ref) throws DirectoryException {
+            write(ref);
+        }
+    }
+
+    /**
+     * The write of all the links of an id. On a slave, only the difference
+     * with its current links is written: the missing links are added, and the
+     * current ones are removed at once when none of them stays. The whole list
+     * is only set when some of the current links stay and others go, a
+     * reference cannot remove a single link (the SQL references then only
+     * write the rows that change).
+     */
+    protected abstract static class LinkSync extends LinkWrite {
+
+        final List<String> ids;
+
+        LinkSync(List<String> ids) {
+            this.ids = ids;
+        }
+
+        abstract List<String> getCurrent(Reference ref)
+                throws DirectoryException;
+
+        abstract void removeAll(Reference ref) throws DirectoryException;
+
+        abstract void add(Reference ref, List<String> added)
+                throws DirectoryException;
+
+        @Override
+        void propagate(Reference ref) throws DirectoryException {
+            List<String> current = getCurrent(ref);
+            List<String> removed = minus(current, ids);
+            if (!removed.isEmpty()) {
+                if (removed.size() < current.size()) {
+                    write(ref);
+                    return;
+                }
+                removeAll(ref);
+            }
+            List<String> added = minus(ids, current);
+            if (!added.isEmpty()) {
+                add(ref, added);
+            }
+        }
+    }
+
+    /**
+     * Write the links on the reference of the master, then on the slave ones.
+     * A slave failure is logged, the slave is repaired by the next write.
+     */
+    protected void doWrite(LinkWrite write) throws DirectoryException {
+        Reference masterRef = null;
+        List<SubDirectoryDescriptor> slaves = new ArrayList<SubDirectoryDescriptor>();
+        for (SubDirectoryDescriptor sub : getSubDirectoriesMasterFirst()) {
+            if (sub.isMaster()) {
+                masterRef = dir.getSubDirectoryReference(sub.name, fieldName);
+            } else {
+                slaves.add(sub);
+            }
+        }
+        if (masterRef == null) {
+            throw new DirectoryException(String.format(
+                    "Resilient directory '%s' : the master has no reference '%s'",
+                    dir.getName(), fieldName));
+        }
+        // Do not fallback if the write on master has failed.
+        // The master source must stay the most up-to-date source
+        write.write(masterRef);
+        ResilientMetrics metrics = dir.getMetrics();
+        for (SubDirectoryDescriptor slave : slaves) {
+            Reference ref = dir.getSubDirectoryReference(slave.name, fieldName);
+            if (ref == null) {
+                continue;
+            }
+            try {
+                write.propagate(ref);
+                metrics.replicated(true);
+            } catch (DirectoryException e) {
+                metrics.replicated(false);
+                log.warn(String.format(
+                        "Resilient directory '%s' : Unable to write reference '%s' on slave directory '%s'",
+                        dir.getName(), fieldName, slave.name), e);
+            }
+        }
+    }
+
+    /**
+     * @return the ids not in the others, in their order
+     */
+    protected static List<String> minus(Collection<String> ids,
+            Collection<String> others) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> excluded = others == null ? Collections.<String> emptySet()
+                : new HashSet<String>(others);
+        List<String> result = new ArrayList<String>();
+        for (String id : ids) {
+            if (!excluded.contains(id)) {
+                result.add(id);
+            }
+        }
+        return result;
     }
 
     protected interface Collector {
         List<String> collect(Reference dir) throws DirectoryException;
     }
 
+    /**
+     * Collect the ids on the reference of the master, or of the first slave
+     * answering if the master fails or its circuit is open. The sub
+     * directories without this reference are skipped.
+     */
     protected List<String> doCollect(Collector extractor)
             throws DirectoryException {
-        Set<String> ids = new HashSet<String>();
-        for (SubDirectoryDescriptor sub : dir.getDescriptor().subDirectories) {
-
-            Directory dir = ResilientDirectoryFactory.getDirectoryService().getDirectory(
-                    sub.name);
-            if (dir == null) {
+        DirectoryException exc = null;
+        for (SubDirectoryDescriptor sub : getSubDirectoriesMasterFirst()) {
+            Reference ref = dir.getSubDirectoryReference(sub.name, fieldName);
+            if (ref == null) {
                 continue;
             }
-            Reference ref = dir.getReference(fieldName);
-            if (ref == null) {
+            SubDirectoryState state = dir.getSubDirectoryState(sub.name);
+            CircuitBreaker breaker = state.getCircuitBreaker();
+            if (state.isDown() || !breaker.allowRequest()) {
+                log.debug(String.format(
+                        "Directory '%s' is down or its circuit is open, reference '%s' read on the next one",
+                        sub.name, fieldName));
                 continue;
             }
+            long start = System.nanoTime();
             try {
-                ids.addAll(extractor.collect(ref));
+                List<String> ids = extractor.collect(ref);
+                breaker.onSuccess(start);
+                return ids;
             } catch (DirectoryEntryNotFoundException e) {
+                breaker.onSuccess(start);
                 log.debug(e.getMessage());
+                return new ArrayList<String>();
+            } catch (DirectoryException e) {
+                breaker.onFailure(start);
+                log.warn(
+                        String.format(
+                                "Resilient directory '%s' : Unable to read reference '%s' on directory '%s', fallback on the next one",
+                                dir.getName(), fieldName, sub.name), e);
+                exc = e;
             }
         }
-        List<String> x = new ArrayList<String>(ids.size());
-        x.addAll(ids);
-        return x;
+        if (exc != null) {
+            throw exc;
+        }
+        return new ArrayList<String>();
+    }
+
+    protected List<SubDirectoryDescriptor> getSubDirectoriesMasterFirst() {
+        SubDirectoryDescriptor[] subs = dir.getDescriptor().subDirectories;
+        List<SubDirectoryDescriptor> ordered = new ArrayList<SubDirectoryDescriptor>(
+                subs.length);
+        for (SubDirectoryDescriptor sub : subs) {
+            if (sub.isMaster()) {
+                ordered.add(0, sub);
+            } else {
+                ordered.add(sub);
+            }
+        }
+        return ordered;
     }
 
     @Override
@@ -105,31 +275,85 @@ public class ResilientReference extends AbstractReference {
             @Override
             public List<String> collect(Reference ref)
                     throws DirectoryException {
-                return ref.getSourceIdsForTarget(sourceId);
+                return ref.getTargetIdsForSource(sourceId);
             }
         });
     }
 
     @Override
-    public void removeLinksForSource(String sourceId) throws DirectoryException {
-        throw new UnsupportedOperationException();
+    public void removeLinksForSource(final String sourceId)
+            throws DirectoryException {
+        doWrite(new LinkWrite() {
+            @Override
+            void write(Reference ref) throws DirectoryException {
+                ref.removeLinksForSource(sourceId);
+            }
+        });
     }
 
     @Override
-    public void removeLinksForTarget(String targetId) throws DirectoryException {
-        throw new UnsupportedOperationException();
+    public void removeLinksForTarget(final String targetId)
+            throws DirectoryException {
+        doWrite(new LinkWrite() {
+            @Override
+            void write(Reference ref) throws DirectoryException {
+                ref.removeLinksForTarget(targetId);
+            }
+        });
     }
 
     @Override
-    public void setSourceIdsForTarget(String targetId, List<String> sourceIds)
-            throws DirectoryException {
-        throw new UnsupportedOperationException();
+    public void setSourceIdsForTarget(final String targetId,
+            final List<String> sourceIds) throws DirectoryException {
+        doWrite(new LinkSync(sourceIds) {
+            @Override
+            void write(Reference ref) throws DirectoryException {
+                ref.setSourceIdsForTarget(targetId, sourceIds);
+            }
+
+            @Override
+            List<String> getCurrent(Reference ref) throws DirectoryException {
+                return ref.getSourceIdsForTarget(targetId);
+            }
+
+            @Override
+            void removeAll(Reference ref) throws DirectoryException {
+                ref.removeLinksForTarget(targetId);
+            }
+
+            @Override
+            void add(Reference ref, List<String> added)
+                    throws DirectoryException {
+                ref.addLinks(added, targetId);
+            }
+        });
     }
 
     @Override
-    public void setTargetIdsForSource(String sourceId, List<String> targetIds)
-            throws DirectoryException {
-        throw new UnsupportedOperationException();
+    public void setTargetIdsForSource(final String sourceId,
+            final List<String> targetIds) throws DirectoryException {
+        doWrite(new LinkSync(targetIds) {
+            @Override
+            void write(Reference ref) throws DirectoryException {
+                ref.setTargetIdsForSource(sourceId, targetIds);
+            }
+
+            @Override
+            List<String> getCurrent(Reference ref) throws DirectoryException {
+                return ref.getTargetIdsForSource(sourceId);
+            }
+
+            @Override
+            void removeAll(Reference ref) throws DirectoryException {
+                ref.removeLinksForSource(sourceId);
+            }
+
+            @Override
+            void add(Reference ref, List<String> added)
+                    throws DirectoryException {
+                ref.addLinks(sourceId, added);
+            }
+        });
     }
 
     /**
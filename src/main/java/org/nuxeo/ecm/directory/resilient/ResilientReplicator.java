@@ -0,0 +1,950 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.Directory;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.sql.SQLDirectory;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Replicates the master entries on the slave sub directories of a resilient
+ * directory.
+ * <p>
+ * In the default <code>sync</code> mode the replication is done in the caller
+ * thread, with the caller sessions. In <code>async</code> mode the operations
+ * are put on a bounded queue drained by background workers owning their own
+ * sub directory sessions, so that the caller only waits for the master.
+ * <p>
+ * When the journal is enabled, the operations not yet applied on every slave
+ * are recorded in a {@link ReplicationJournal} and replayed on a schedule,
+ * after a slave outage or a restart.
+ *
+ * @author Maxime Hilaire
+ * @since 5.9
+ */
+public class ResilientReplicator {
+
+    private static final Log log = LogFactory.getLog(ResilientReplicator.class);
+
+    /**
+     * Max number of operations a worker handles with the same set of sessions
+     */
+    protected static final int WORKER_BATCH_SIZE = 100;
+
+    protected final ResilientDirectory directory;
+
+    protected final ResilientDirectoryDescriptor descriptor;
+
+    protected volatile BlockingQueue<ReplicationTask> queue;
+
+    protected volatile ExecutorService workers;
+
+    protected final AtomicInteger pending = new AtomicInteger();
+
+    protected volatile boolean shutdown = false;
+
+    protected volatile ReplicationJournal journal;
+
+    protected ScheduledFuture<?> replayFuture;
+
+    protected final SlaveFanOut.Ack ack;
+
+    /**
+     * A pending replication of one entry
+     */
+    protected static class ReplicationTask {
+
+        final String entryId;
+
+        final Map<String, Object> fieldMap;
+
+        final boolean masterHasEntry;
+
+        final long queuedAt = System.nanoTime();
+
+        ReplicationTask(String entryId, Map<String, Object> fieldMap,
+                boolean masterHasEntry) {
+            this.entryId = entryId;
+            this.fieldMap = fieldMap;
+            this.masterHasEntry = masterHasEntry;
+        }
+    }
+
+    public ResilientReplicator(ResilientDirectory directory) {
+        this.directory = directory;
+        descriptor = directory.getDescriptor();
+        SlaveFanOut.Ack fanOutAck;
+        try {
+            fanOutAck = SlaveFanOut.Ack.of(descriptor.fanOutAck);
+        } catch (DirectoryException e) {
+            log.error(String.format(
+                    "Resilient directory '%s' : %s, waiting for all the slaves",
+                    descriptor.name, e.getMessage()));
+            fanOutAck = SlaveFanOut.Ack.ALL;
+        }
+        ack = fanOutAck;
+    }
+
+    public boolean isAsync() {
+        return descriptor.isAsyncReplication();
+    }
+
+    /**
+     * Queue the replication of an entry for the background workers.
+     *
+     * @return false if the queue is full or the replicator is shut down, the
+     *         caller then has to replicate by itself
+     */
+    public boolean submit(String entryId, Map<String, Object> fieldMap,
+            boolean masterHasEntry) {
+        if (shutdown || (workers == null && !startWorkers())) {
+            return false;
+        }
+        // copy the field map, the caller may reuse it
+        Map<String, Object> map = fieldMap == null ? null
+                : new HashMap<String, Object>(fieldMap);
+        pending.incrementAndGet();
+        if (journal != null) {
+            // the queue is lost on restart, the journal is not
+            journal.record(entryId, masterHasEntry);
+        }
+        if (!queue.offer(new ReplicationTask(entryId, map, masterHasEntry))) {
+            pending.decrementAndGet();
+            log.warn(String.format(
+                    "Resilient directory '%s' : replication queue is full, replicating entry id '%s' synchronously",
+                    descriptor.name, entryId));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of replications queued or running
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Wait for the queued replications to be done.
+     *
+     * @return true if no replication is pending anymore
+     */
+    public boolean waitForReplication(long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the replicator is shut down, the workers are not
+     *         started again
+     */
+    protected synchronized boolean startWorkers() {
+        if (shutdown) {
+            return false;
+        }
+        if (workers != null) {
+            return true;
+        }
+        queue = new ArrayBlockingQueue<ReplicationTask>(
+                descriptor.replicationQueueSize);
+        int count = Math.max(1, descriptor.replicationWorkers);
+        ExecutorService pool = Executors.newFixedThreadPool(count,
+                new ResilientThreadFactory("resilient-replication-"
+                        + descriptor.name));
+        for (int i = 0; i < count; i++) {
+            pool.execute(new Worker());
+        }
+        // published once started, submit reads it without the lock
+        workers = pool;
+        return true;
+    }
+
+    /**
+     * Start the workers if the replication is asynchronous, open the journal
+     * and schedule its replay if enabled
+     */
+    public synchronized void start() {
+        if (shutdown) {
+            return;
+        }
+        if (isAsync()) {
+            startWorkers();
+        }
+        if (!descriptor.journalEnabled || journal != null) {
+            return;
+        }
+        File file = new File(directory.getDataDirectory(), descriptor.name
+                + ".journal");
+        try {
+            journal = new ReplicationJournal(file);
+        } catch (IOException e) {
+            log.error(String.format(
+                    "Resilient directory '%s' : unable to open replication journal %s, journal disabled",
+                    descriptor.name, file), e);
+            return;
+        }
+        long interval = Math.max(1, descriptor.journalReplayInterval);
+        replayFuture = directory.getScheduler().scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            replayJournal();
+                        } catch (RuntimeException e) {
+                            // do not cancel the next replays
+                            log.error(String.format(
+                                    "Resilient directory '%s' : journal replay failed",
+                                    descriptor.name), e);
+                        }
+                    }
+                }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    public ReplicationJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Replay the journaled operations in order.
+     * <p>
+     * The master is asked again for each entry, so an operation superseded on
+     * the master since it was journaled is not replayed as is. The replay
+     * stops at the first master error, it will be done another time.
+     */
+    public void replayJournal() {
+        ReplicationJournal j = journal;
+        if (j == null || j.isEmpty()) {
+            return;
+        }
+        Map<String, Boolean> ops = j.getPending();
+        log.info(String.format(
+                "Resilient directory '%s' : replaying %s journaled replications",
+                descriptor.name, ops.size()));
+        replicateFromMaster(ops.keySet());
+    }
+
+    /**
+     * Replicate the given entries as they are now on the master, by batches
+     * of {@link #WORKER_BATCH_SIZE} entries in the caller thread.
+     *
+     * @return false if stopped by a master error, it has to be done another
+     *         time
+     */
+    public boolean replicateFromMaster(Collection<String> ids) {
+        List<String> batch = new ArrayList<String>(WORKER_BATCH_SIZE);
+        for (String id : ids) {
+            batch.add(id);
+            if (batch.size() == WORKER_BATCH_SIZE) {
+                if (!replicateBatchFromMaster(batch)) {
+                    return false;
+                }
+                batch.clear();
+            }
+        }
+        return batch.isEmpty() || replicateBatchFromMaster(batch);
+    }
+
+    protected boolean replicateBatchFromMaster(List<String> batch) {
+        List<SubDirectoryInfo> slaves = new ArrayList<SubDirectoryInfo>(2);
+        SubDirectoryInfo master;
+        try {
+            master = newSubDirectoryInfos(slaves);
+        } catch (DirectoryException e) {
+            log.debug(String.format(
+                    "Resilient directory '%s' : sub directories unavailable, replication postponed",
+                    descriptor.name), e);
+            return false;
+        }
+        boolean tx = TransactionHelper.startTransaction();
+        try {
+            for (String id : batch) {
+                boolean masterHasEntry;
+                try {
+                    masterHasEntry = master.getSession().hasEntry(id);
+                } catch (ClientException e) {
+                    log.debug(String.format(
+                            "Resilient directory '%s' : master unavailable, replication postponed",
+                            descriptor.name), e);
+                    return false;
+                }
+                updateMasterOnSlaves(master, slaves, id, null, masterHasEntry);
+            }
+            return true;
+        } finally {
+            closeAll(master, slaves);
+            if (tx) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    /**
+     * Build a dedicated set of sub directory infos for a background task
+     *
+     * @param slaves filled with the slave infos
+     * @return the master info
+     */
+    protected SubDirectoryInfo newSubDirectoryInfos(
+            List<SubDirectoryInfo> slaves) throws DirectoryException {
+        SubDirectoryInfo master = null;
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            SubDirectoryInfo info = directory.newSubDirectoryInfo(sub);
+            if (sub.isMaster()) {
+                master = info;
+            } else {
+                slaves.add(info);
+            }
+        }
+        return master;
+    }
+
+    protected void closeAll(SubDirectoryInfo master,
+            List<SubDirectoryInfo> slaves) {
+        DirectoryException exc = master.close(null);
+        for (SubDirectoryInfo slave : slaves) {
+            exc = slave.close(exc);
+        }
+        if (exc != null) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : error while closing replication sessions",
+                    descriptor.name), exc);
+        }
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (replayFuture != null) {
+            replayFuture.cancel(false);
+            replayFuture = null;
+        }
+        try {
+            stopWorkers();
+        } finally {
+            ReplicationJournal j = journal;
+            journal = null;
+            if (j != null) {
+                j.close();
+            }
+        }
+    }
+
+    protected void stopWorkers() {
+        if (workers == null) {
+            return;
+        }
+        // let the workers drain the queue before leaving
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn(String.format(
+                        "Resilient directory '%s' : %s replications still pending at shutdown",
+                        descriptor.name, pending.get()));
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+        }
+        workers = null;
+    }
+
+    protected class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            List<ReplicationTask> batch = new ArrayList<ReplicationTask>(
+                    WORKER_BATCH_SIZE);
+            while (true) {
+                try {
+                    ReplicationTask task = queue.poll(1, TimeUnit.SECONDS);
+                    if (task == null) {
+                        if (shutdown) {
+                            return;
+                        }
+                        continue;
+                    }
+                    batch.add(task);
+                    queue.drainTo(batch, WORKER_BATCH_SIZE - 1);
+                    replicateBatch(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    log.error(String.format(
+                            "Resilient directory '%s' : replication worker error",
+                            descriptor.name), e);
+                } finally {
+                    pending.addAndGet(-batch.size());
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replicate a batch of queued operations with a dedicated set of sessions
+     */
+    protected void replicateBatch(List<ReplicationTask> batch) {
+        List<SubDirectoryInfo> slaves = new ArrayList<SubDirectoryInfo>(2);
+        SubDirectoryInfo master;
+        try {
+            master = newSubDirectoryInfos(slaves);
+        } catch (DirectoryException e) {
+            // journaled on submit, replayed later
+            log.warn(String.format(
+                    "Resilient directory '%s' : sub directories unavailable, %s replications postponed",
+                    descriptor.name, batch.size()), e);
+            directory.getMetrics().replicated(0, batch.size());
+            return;
+        }
+        boolean tx = TransactionHelper.startTransaction();
+        try {
+            ResilientMetrics metrics = directory.getMetrics();
+            for (ReplicationTask task : batch) {
+                updateMasterOnSlaves(master, slaves, task.entryId,
+                        task.fieldMap, task.masterHasEntry);
+                metrics.replicationDone(task.queuedAt);
+            }
+        } finally {
+            closeAll(master, slaves);
+            if (tx) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    /**
+     * The method try to create/update the entry if master has it, else delete
+     * it from slave If any error, but log warn messages, the aim is not to lock
+     * operation when slave are not availale The stuff will be done another time
+     * The method works on entry ID (mean the idField is the same on master and
+     * slave) and slave don't use auto-increment feature (checked in
+     * ResilientDirectory constructor)
+     *
+     * @param master The master sub directory
+     * @param slaves The slave sub directories to update
+     * @param entryId The id of the entry
+     * @param fieldMap The list of properties to set in addition of the master
+     *            one. Can be null when not needed
+     * @param masterHasEntry True if the master get it, else false. If flase the
+     *            entry will be reomved on slave
+     * @return true if every slave has been updated
+     *
+     */
+    public boolean updateMasterOnSlaves(SubDirectoryInfo master,
+            List<SubDirectoryInfo> slaves, String entryId,
+            Map<String, Object> fieldMap, boolean masterHasEntry) {
+        // if master has entry, update entry on slave, else if it does not exist
+        // on slave create it
+        // If the master does not have this entry anymore delete it from slave
+        // the operations journaled so far are covered by the master read
+        long sequence = getJournalSequence();
+        DocumentModel docModel = null;
+        if (masterHasEntry) {
+            try {
+                docModel = master.getSession().getEntry(entryId);
+
+            } catch (ClientException e) {
+                log.warn(
+                        String.format(
+                                "Unable to get the entry id %s on master directory '%s'  while updating slave directory",
+                                entryId, master.dirName), e);
+            }
+            if (docModel == null) {
+                log.warn(String.format(
+                        "The master directory %s should contains the entry id %s but return null when getting the object",
+                        master.dirName, entryId));
+                if (journal != null) {
+                    journal.record(entryId, masterHasEntry);
+                }
+                return false;
+            }
+        }
+
+        String passwordKey = getPasswordKey();
+        if (descriptor.fanOutEnabled && !slaves.isEmpty()) {
+            return fanOut(slaves, entryId, docModel, fieldMap, passwordKey,
+                    sequence);
+        }
+        boolean success = true;
+        for (SubDirectoryInfo subDirInfo : slaves) {
+            Map<String, Object> props = docModel == null ? null
+                    : getSlaveProps(docModel, fieldMap, passwordKey);
+            success &= replicateOnSlave(subDirInfo, entryId, props,
+                    passwordKey);
+        }
+        journalOutcome(entryId, masterHasEntry, success, sequence);
+        return success;
+    }
+
+    /**
+     * @return the sequence number of the last journaled operation, 0 without
+     *         journal
+     */
+    protected long getJournalSequence() {
+        ReplicationJournal j = journal;
+        return j == null ? 0 : j.getSequence();
+    }
+
+    /**
+     * @param sequence the journal sequence number before the master was read,
+     *            the operations journaled since are not completed
+     */
+    protected void journalOutcome(String entryId, boolean masterHasEntry,
+            boolean success, long sequence) {
+        ReplicationJournal j = journal;
+        if (j != null) {
+            if (success) {
+                j.complete(entryId, sequence);
+            } else {
+                j.record(entryId, masterHasEntry);
+            }
+        }
+    }
+
+    /**
+     * Write or delete the entry on a slave, logging the failure
+     *
+     * @param props the properties to write, null to delete the entry
+     * @return true if the slave has been updated
+     */
+    protected boolean replicateOnSlave(SubDirectoryInfo slave, String entryId,
+            Map<String, Object> props, String passwordKey) {
+        try {
+            if (props != null) {
+                writeOnSlave(slave, entryId, props, null, passwordKey);
+            } else {
+                deleteOnSlave(slave, entryId, null);
+            }
+            directory.getMetrics().replicated(true);
+            return true;
+        } catch (ClientException e) {
+            directory.getMetrics().replicated(false);
+            log.warn(String.format(
+                    "Unable to %s the slave directory %s on entry id %s",
+                    props != null ? "update" : "delete", slave.dirName,
+                    entryId), e);
+            return false;
+        }
+    }
+
+    /**
+     * Write the entry on all the slaves in parallel, each in its own session
+     * and transaction, and wait for them according to the acknowledgement
+     * policy. A write the caller stops waiting for goes on, its outcome is
+     * journaled once all the writes are done.
+     *
+     * @param masterEntry the master entry, null to delete the entry
+     * @param sequence the journal sequence number before the master was read
+     */
+    protected boolean fanOut(List<SubDirectoryInfo> slaves,
+            final String entryId, DocumentModel masterEntry,
+            Map<String, Object> fieldMap, final String passwordKey,
+            final long sequence) {
+        final boolean masterHasEntry = masterEntry != null;
+        SlaveFanOut fanOut = new SlaveFanOut(slaves) {
+            @Override
+            protected void completed(boolean success) {
+                journalOutcome(entryId, masterHasEntry, success, sequence);
+            }
+        };
+        ExecutorService executor = directory.getFanOutExecutor();
+        for (int i = 0; i < slaves.size(); i++) {
+            final SubDirectoryInfo slave = slaves.get(i);
+            // built in the caller thread, the entry is not shared
+            final Map<String, Object> props = masterHasEntry ? getSlaveProps(
+                    masterEntry, fieldMap, passwordKey) : null;
+            final int index = i;
+            final SlaveFanOut outcome = fanOut;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean success = false;
+                        SubDirectoryInfo info = slave.copy();
+                        boolean tx = TransactionHelper.startTransaction();
+                        try {
+                            success = replicateOnSlave(info, entryId, props,
+                                    passwordKey);
+                        } finally {
+                            DirectoryException e = info.close(null);
+                            if (e != null) {
+                                log.warn(String.format(
+                                        "Resilient directory '%s' : error while closing slave session",
+                                        descriptor.name), e);
+                            }
+                            if (tx) {
+                                TransactionHelper.commitOrRollbackTransaction();
+                            }
+                            outcome.done(index, success);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // all the threads are busy, write in the caller thread
+                fanOut.done(index,
+                        replicateOnSlave(slave, entryId, props, passwordKey));
+            }
+        }
+        try {
+            return fanOut.await(ack);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Apply the changes computed on a slave by {@link EntryDiff}. In async
+     * mode they are queued for the workers, which replicate them by batches
+     * of {@link #WORKER_BATCH_SIZE} entries, else they are written in the
+     * caller thread with the master values of the diff.
+     *
+     * @return true if every change has been applied or queued
+     */
+    public boolean applyChanges(SubDirectoryInfo slave, EntryDiff diff) {
+        return applyChanges(slave, diff, isAsync());
+    }
+
+    /**
+     * @param async false to write in the caller thread whatever the
+     *            replication mode
+     */
+    public boolean applyChanges(SubDirectoryInfo slave, EntryDiff diff,
+            boolean async) {
+        if (diff.isEmpty()) {
+            return true;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "Resilient directory '%s' : synchronizing slave '%s' %s",
+                    descriptor.name, slave.dirName, diff));
+        }
+        String passwordKey = getPasswordKey();
+        if (!async && descriptor.sqlBatchEnabled && !diff.partial
+                && diff.size() > 1) {
+            Directory slaveDirectory = null;
+            try {
+                slaveDirectory = ResilientDirectoryFactory.getDirectoryService().getDirectory(
+                        slave.dirName);
+            } catch (DirectoryException e) {
+                log.debug(String.format(
+                        "Resilient directory '%s' : slave '%s' not found, written entry by entry",
+                        descriptor.name, slave.dirName), e);
+            }
+            if (slaveDirectory instanceof SQLDirectory) {
+                return applyBatch(slave, (SQLDirectory) slaveDirectory, diff,
+                        passwordKey);
+            }
+        }
+        // a create of a partial diff may be on another page of the slave
+        Boolean slaveHasCreate = diff.partial ? null : Boolean.FALSE;
+        boolean success = true;
+        for (DocumentModel entry : diff.creates) {
+            success &= applyChange(slave, entry.getId(), entry,
+                    slaveHasCreate, async, passwordKey);
+        }
+        for (DocumentModel entry : diff.updates) {
+            success &= applyChange(slave, entry.getId(), entry, Boolean.TRUE,
+                    async, passwordKey);
+        }
+        for (String id : diff.deletes) {
+            success &= applyChange(slave, id, null, Boolean.TRUE, async,
+                    passwordKey);
+        }
+        return success;
+    }
+
+    /**
+     * Apply the changes on a SQL slave with JDBC batches. The entries with a
+     * password are written one by one, as are all the entries if the batches
+     * fail outside of a transaction. Inside a transaction the connection may
+     * not be usable anymore, the entries are journaled instead.
+     */
+    protected boolean applyBatch(SubDirectoryInfo slave,
+            SQLDirectory slaveDirectory, EntryDiff diff, String passwordKey) {
+        DigestStore digests = slave.state.digests;
+        List<SQLBatchWriter.Write> writes = new ArrayList<SQLBatchWriter.Write>(
+                diff.size());
+        List<Long> writeDigests = new ArrayList<Long>(diff.size());
+        List<DocumentModel> oneByOne = new ArrayList<DocumentModel>();
+        List<DocumentModel> entries = new ArrayList<DocumentModel>(
+                diff.creates.size() + diff.updates.size());
+        entries.addAll(diff.creates);
+        entries.addAll(diff.updates);
+        for (int i = 0; i < entries.size(); i++) {
+            DocumentModel entry = entries.get(i);
+            Map<String, Object> props = getSlaveProps(entry, null, passwordKey);
+            if (passwordKey != null && props.get(passwordKey) != null) {
+                oneByOne.add(entry);
+                continue;
+            }
+            long digest = EntryDigest.digest(props, passwordKey);
+            if (digests != null
+                    && digests.isUpToDate(entry.getId(), digest, null)) {
+                directory.getMetrics().skippedWrite();
+                slave.state.synced(entry.getId());
+                continue;
+            }
+            writes.add(new SQLBatchWriter.Write(entry.getId(), props,
+                    i >= diff.creates.size()));
+            writeDigests.add(Long.valueOf(digest));
+        }
+        for (String id : diff.deletes) {
+            writes.add(new SQLBatchWriter.Write(id, null, true));
+            writeDigests.add(null);
+        }
+
+        boolean success = true;
+        try {
+            new SQLBatchWriter(slaveDirectory, descriptor.sqlBatchSize).write(
+                    writes);
+            directory.getMetrics().replicated(writes.size(), 0);
+            for (int i = 0; i < writes.size(); i++) {
+                String id = writes.get(i).id;
+                Long digest = writeDigests.get(i);
+                if (digest != null) {
+                    slave.state.synced(id);
+                } else {
+                    slave.state.unsynced(id);
+                }
+                if (digests != null) {
+                    if (digest != null) {
+                        digests.put(id, digest.longValue(), null);
+                    } else {
+                        digests.remove(id);
+                    }
+                }
+            }
+        } catch (ClientException e) {
+            log.warn(String.format(
+                    "Unable to synchronize the slave directory %s by batches",
+                    slave.dirName), e);
+            boolean inTransaction = TransactionHelper.isTransactionActive();
+            for (SQLBatchWriter.Write write : writes) {
+                slave.state.unsynced(write.id);
+                if (digests != null) {
+                    digests.remove(write.id);
+                }
+                if (!inTransaction) {
+                    // deleted entries are known on the slave
+                    DocumentModel masterEntry = write.props == null ? null
+                            : findEntry(entries, write.id);
+                    success &= applyChange(slave, write.id, masterEntry,
+                            Boolean.valueOf(write.update), false, passwordKey);
+                } else {
+                    success = false;
+                    directory.getMetrics().replicated(false);
+                    if (journal != null) {
+                        journal.record(write.id, write.props != null);
+                    }
+                }
+            }
+        }
+        for (DocumentModel entry : oneByOne) {
+            success &= applyChange(slave, entry.getId(), entry,
+                    Boolean.valueOf(!diff.creates.contains(entry)), false,
+                    passwordKey);
+        }
+        return success;
+    }
+
+    protected static DocumentModel findEntry(List<DocumentModel> entries,
+            String id) {
+        for (DocumentModel entry : entries) {
+            if (id.equals(entry.getId())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param masterEntry the master entry, null to delete the entry
+     */
+    protected boolean applyChange(SubDirectoryInfo slave, String id,
+            DocumentModel masterEntry, Boolean slaveHasEntry, boolean async,
+            String passwordKey) {
+        boolean masterHasEntry = masterEntry != null;
+        if (async && submit(id, null, masterHasEntry)) {
+            return true;
+        }
+        try {
+            if (masterHasEntry) {
+                writeOnSlave(slave, id,
+                        getSlaveProps(masterEntry, null, passwordKey),
+                        slaveHasEntry, passwordKey);
+            } else {
+                deleteOnSlave(slave, id, slaveHasEntry);
+            }
+            directory.getMetrics().replicated(true);
+            return true;
+        } catch (ClientException e) {
+            directory.getMetrics().replicated(false);
+            log.warn(String.format(
+                    "Unable to synchronize the slave directory %s on entry id %s",
+                    slave.dirName, id), e);
+            if (journal != null) {
+                journal.record(id, masterHasEntry);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the password property of the entries, null if none
+     */
+    protected String getPasswordKey() {
+        String passwordFieldName = directory.getPasswordField();
+        if (passwordFieldName == null) {
+            return null;
+        }
+        return directory.getSchemaFieldMap().get(passwordFieldName).getName().getPrefixedName();
+    }
+
+    /**
+     * @return the properties of the master entry to write on a slave
+     */
+    protected Map<String, Object> getSlaveProps(DocumentModel masterEntry,
+            Map<String, Object> fieldMap, String passwordKey) {
+        Map<String, Object> props = masterEntry.getProperties(directory.getSchema());
+        // Force update with the given properties if there are
+        // Some props are not retrieved from master (ex:password)
+        if (fieldMap != null) {
+            props.putAll(fieldMap);
+        } else if (passwordKey != null && props.containsKey(passwordKey)
+                && props.get(passwordKey) == null) {
+            // The password should be null only when where are trying to call
+            // getEntry
+            // Remove it to avoid update to null
+            props.remove(passwordKey);
+        }
+        return props;
+    }
+
+    /**
+     * Create or update the entry on a slave, unless the slave already has
+     * these values
+     *
+     * @param slaveHasEntry null if unknown
+     */
+    protected void writeOnSlave(SubDirectoryInfo slave, String id,
+            Map<String, Object> props, Boolean slaveHasEntry,
+            String passwordKey) throws ClientException {
+        DigestStore digests = slave.state.digests;
+        long digest = 0;
+        Object password = null;
+        if (digests != null) {
+            digest = EntryDigest.digest(props, passwordKey);
+            password = passwordKey != null ? props.get(passwordKey) : null;
+            if (digests.isUpToDate(id, digest, password)) {
+                directory.getMetrics().skippedWrite();
+                slave.state.synced(id);
+                return;
+            }
+        }
+        try {
+            boolean update = slaveHasEntry != null ? slaveHasEntry.booleanValue()
+                    : slave.getSession().hasEntry(id);
+            SourceMetrics.Operation operation = update ? SourceMetrics.Operation.UPDATE
+                    : SourceMetrics.Operation.CREATE;
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                if (update) {
+                    String schemaName = directory.getSchema();
+                    // Do not set dataModel values with constructor to force
+                    // fields dirty
+                    final DocumentModel entry = BaseSession.createEntryModel(
+                            null, schemaName, id, null);
+                    entry.getDataModel(schemaName).setMap(props);
+                    slave.getSession().updateEntry(entry);
+                } else {
+                    slave.getSession().createEntry(props);
+                }
+                failed = false;
+            } finally {
+                slave.record(operation, start, failed);
+            }
+        } catch (ClientException e) {
+            slave.state.unsynced(id);
+            if (digests != null) {
+                digests.remove(id);
+            }
+            throw e;
+        }
+        slave.state.synced(id);
+        if (digests != null) {
+            digests.put(id, digest, password);
+        }
+    }
+
+    /**
+     * @param slaveHasEntry null if unknown
+     */
+    protected void deleteOnSlave(SubDirectoryInfo slave, String id,
+            Boolean slaveHasEntry) throws ClientException {
+        slave.state.unsynced(id);
+        if (slave.state.digests != null) {
+            slave.state.digests.remove(id);
+        }
+        if (slaveHasEntry != null ? slaveHasEntry.booleanValue()
+                : slave.getSession().hasEntry(id)) {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                slave.getSession().deleteEntry(id);
+                failed = false;
+            } finally {
+                slave.record(SourceMetrics.Operation.DELETE, start, failed);
+            }
+        }
+    }
+
+}
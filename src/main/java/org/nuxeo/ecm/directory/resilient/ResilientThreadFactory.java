@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Daemon thread factory for the background work of a resilient directory.
+ * <p>
+ * Can build virtual threads when the JVM has them (Java 21), looked up by
+ * reflection as this code still runs on older JVMs.
+ *
+ * @since 5.9
+ */
+public class ResilientThreadFactory implements ThreadFactory {
+
+    private static final Log log = LogFactory.getLog(ResilientThreadFactory.class);
+
+    protected final String prefix;
+
+    protected final AtomicInteger count = new AtomicInteger();
+
+    protected final ClassLoader classLoader;
+
+    protected final ThreadFactory virtualThreadFactory;
+
+    public ResilientThreadFactory(String prefix) {
+        this(prefix, false);
+    }
+
+    /**
+     * @param virtual true to build virtual threads if available, platform
+     *            threads otherwise
+     */
+    public ResilientThreadFactory(String prefix, boolean virtual) {
+        this.prefix = prefix;
+        // keep the runtime class loader for the directory lookups
+        classLoader = Thread.currentThread().getContextClassLoader();
+        virtualThreadFactory = virtual ? newVirtualThreadFactory(prefix)
+                : null;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        String name = prefix + "-" + count.incrementAndGet();
+        Thread t;
+        if (virtualThreadFactory != null) {
+            t = virtualThreadFactory.newThread(r);
+            t.setName(name);
+        } else {
+            t = new Thread(r, name);
+            t.setDaemon(true);
+        }
+        t.setContextClassLoader(classLoader);
+        return t;
+    }
+
+    public boolean isVirtual() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * @return <code>Thread.ofVirtual().factory()</code>, null if the JVM has
+     *         no virtual threads
+     */
+    protected static ThreadFactory newVirtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            // the builder implementation is not public, use its interface
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(
+                    builder);
+        } catch (Exception e) {
+            log.info(String.format(
+                    "No virtual threads on this JVM, using platform threads for '%s'",
+                    prefix));
+            return null;
+        } catch (LinkageError e) {
+            log.info(String.format(
+                    "No virtual threads on this JVM, using platform threads for '%s'",
+                    prefix));
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Column;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Reference;
+import org.nuxeo.ecm.directory.sql.SQLDirectory;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Writes entries on a SQL slave with JDBC batches instead of one statement
+ * per entry.
+ * <p>
+ * Only the columns of the directory table are written by the batches, the
+ * references of an entry are then set, or removed for a deleted entry, one
+ * entry at a time. The entries
+ * holding a password are not for this writer: the SQL directory may have to
+ * hash it.
+ * <p>
+ * Outside of a transaction the rows are committed every
+ * <code>batchSize</code> rows, else the batches are only executed every
+ * <code>batchSize</code> rows and committed with the transaction. The cache
+ * of the SQL directory is invalidated once done.
+ *
+ * @since 5.9
+ */
+public class SQLBatchWriter {
+
+    private static final Log log = LogFactory.getLog(SQLBatchWriter.class);
+
+    /**
+     * A row to write: created, updated, or deleted if no properties
+     */
+    public static class Write {
+
+        public final String id;
+
+        public final Map<String, Object> props;
+
+        public final boolean update;
+
+        public Write(String id, Map<String, Object> props, boolean update) {
+            this.id = id;
+            this.props = props;
+            this.update = update;
+        }
+    }
+
+    protected final SQLDirectory directory;
+
+    protected final int batchSize;
+
+    public SQLBatchWriter(SQLDirectory directory, int batchSize) {
+        this.directory = directory;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @throws DirectoryException if a batch failed. Outside of a transaction
+     *             the rows of the failed batch are rolled back, the previous
+     *             ones are committed.
+     */
+    public void write(List<Write> writes) throws DirectoryException {
+        if (writes.isEmpty()) {
+            return;
+        }
+        Table table = directory.getTable();
+        String idField = directory.getIdField();
+        Column idColumn = table.getColumn(idField);
+        boolean manualCommit = !TransactionHelper.isTransactionActive();
+        Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>();
+        Connection connection = directory.getConnection();
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            if (manualCommit) {
+                connection.setAutoCommit(false);
+            }
+            try {
+                int rows = 0;
+                for (Write write : writes) {
+                    addBatch(statements, connection, table, idColumn,
+                            idField, write);
+                    if (++rows % batchSize == 0) {
+                        executeBatches(statements, connection, manualCommit);
+                    }
+                }
+                executeBatches(statements, connection, manualCommit);
+            } catch (SQLException e) {
+                if (manualCommit) {
+                    connection.rollback();
+                }
+                throw e;
+            } finally {
+                closeAll(statements);
+                if (manualCommit) {
+                    connection.setAutoCommit(autoCommit);
+                }
+            }
+        } catch (SQLException e) {
+            throw new DirectoryException(String.format(
+                    "Batch write of %s entries failed on directory '%s'",
+                    writes.size(), directory.getName()), e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.debug("Error closing connection of directory "
+                        + directory.getName(), e);
+            }
+            directory.invalidateDirectoryCache();
+        }
+        setReferences(writes);
+    }
+
+    protected void addBatch(Map<String, PreparedStatement> statements,
+            Connection connection, Table table, Column idColumn,
+            String idField, Write write) throws SQLException {
+        List<Column> columns = new ArrayList<Column>();
+        List<Serializable> values = new ArrayList<Serializable>();
+        if (write.props != null) {
+            // sorted, so that the entries share the same statement
+            for (Map.Entry<String, Object> prop : new TreeMap<String, Object>(
+                    write.props).entrySet()) {
+                String field = localName(prop.getKey());
+                Column column = idField.equals(field) ? null
+                        : table.getColumn(field);
+                if (column != null) {
+                    columns.add(column);
+                    values.add((Serializable) prop.getValue());
+                }
+            }
+        }
+        if (write.props != null && write.update && columns.isEmpty()) {
+            // only references to set
+            return;
+        }
+        String sql = getSql(table, idColumn, columns, write);
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        int index = 1;
+        if (write.props != null && !write.update) {
+            idColumn.setToPreparedStatement(ps, index++, write.id);
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            columns.get(i).setToPreparedStatement(ps, index++, values.get(i));
+        }
+        if (write.props == null || write.update) {
+            idColumn.setToPreparedStatement(ps, index++, write.id);
+        }
+        ps.addBatch();
+    }
+
+    protected String getSql(Table table, Column idColumn,
+            List<Column> columns, Write write) {
+        StringBuilder sql = new StringBuilder();
+        if (write.props == null) {
+            sql.append("DELETE FROM ").append(table.getQuotedName());
+        } else if (write.update) {
+            sql.append("UPDATE ").append(table.getQuotedName()).append(" SET ");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(i == 0 ? "" : ", ").append(
+                        columns.get(i).getQuotedName()).append(" = ?");
+            }
+        } else {
+            sql.append("INSERT INTO ").append(table.getQuotedName()).append(
+                    " (").append(idColumn.getQuotedName());
+            for (Column column : columns) {
+                sql.append(", ").append(column.getQuotedName());
+            }
+            sql.append(") VALUES (?");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(", ?");
+            }
+            return sql.append(")").toString();
+        }
+        return sql.append(" WHERE ").append(idColumn.getQuotedName()).append(
+                " = ?").toString();
+    }
+
+    protected void executeBatches(Map<String, PreparedStatement> statements,
+            Connection connection, boolean manualCommit) throws SQLException {
+        for (PreparedStatement ps : statements.values()) {
+            ps.executeBatch();
+        }
+        if (manualCommit) {
+            connection.commit();
+        }
+    }
+
+    protected void closeAll(Map<String, PreparedStatement> statements) {
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                log.debug("Error closing statement", e);
+            }
+        }
+    }
+
+    /**
+     * Set the references of the written entries, not part of the table, and
+     * remove the links of the deleted ones as the SQL session does
+     */
+    @SuppressWarnings("unchecked")
+    protected void setReferences(List<Write> writes) throws DirectoryException {
+        for (Write write : writes) {
+            if (write.props == null) {
+                for (Reference reference : directory.getReferences()) {
+                    reference.removeLinksForSource(write.id);
+                }
+                continue;
+            }
+            for (Map.Entry<String, Object> prop : write.props.entrySet()) {
+                if (!(prop.getValue() instanceof List)) {
+                    continue;
+                }
+                Reference reference = directory.getReference(localName(prop.getKey()));
+                if (reference != null) {
+                    reference.setTargetIdsForSource(write.id,
+                            (List<String>) prop.getValue());
+                }
+            }
+        }
+    }
+
+    protected static String localName(String key) {
+        int i = key.indexOf(':');
+        return i < 0 ? key : key.substring(i + 1);
+    }
+
+}
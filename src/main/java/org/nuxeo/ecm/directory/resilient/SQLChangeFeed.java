@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.regex.Pattern;
+
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Column;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.sql.SQLDirectory;
+
+/**
+ * Change feed of a SQL master, on a last modification column of its table
+ * maintained by the application owning the table (or a trigger). The column
+ * can be a timestamp or a number (a version or sequence), it does not have to
+ * be part of the directory schema.
+ * <p>
+ * The mark is the value of the last row, the rows being ordered by the
+ * column. It keeps the column type: <code>t:</code> millis for a timestamp,
+ * <code>n:</code> for a number, <code>s:</code> for anything else.
+ *
+ * @since 5.9
+ */
+public class SQLChangeFeed implements ChangeFeed {
+
+    protected static final Pattern COLUMN_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    protected final SQLDirectory directory;
+
+    protected final String column;
+
+    public SQLChangeFeed(SQLDirectory directory, String column)
+            throws DirectoryException {
+        // not a parameter, checked to not be injected in the statement
+        if (column == null || !COLUMN_NAME.matcher(column).matches()) {
+            throw new DirectoryException(String.format(
+                    "Invalid change feed column '%s' for directory '%s'",
+                    column, directory.getName()));
+        }
+        this.directory = directory;
+        this.column = column;
+    }
+
+    @Override
+    public Changes poll(SubDirectoryInfo master, String mark)
+            throws DirectoryException {
+        Table table = directory.getTable();
+        Column idColumn = table.getColumn(master.idField);
+        String sql = String.format("SELECT %s, %s FROM %s",
+                idColumn.getQuotedName(), column, table.getQuotedName());
+        if (mark != null) {
+            sql += String.format(" WHERE %s >= ?", column);
+        }
+        sql += String.format(" ORDER BY %s", column);
+
+        Changes changes = new Changes(mark);
+        Connection connection = directory.getConnection();
+        try {
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                if (mark != null) {
+                    ps.setObject(1, decode(mark));
+                }
+                ResultSet rs = ps.executeQuery();
+                try {
+                    while (rs.next()) {
+                        Object id = rs.getObject(1);
+                        if (id == null) {
+                            continue;
+                        }
+                        changes.ids.add(id.toString());
+                        Object value = rs.getObject(2);
+                        if (value != null) {
+                            changes.mark = encode(value);
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new DirectoryException(String.format(
+                    "Change feed query failed on directory '%s' : %s",
+                    directory.getName(), sql), e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // nothing to do, the changes have been read
+            }
+        }
+        return changes;
+    }
+
+    protected static String encode(Object value) {
+        if (value instanceof java.util.Date) {
+            return "t:" + ((java.util.Date) value).getTime();
+        } else if (value instanceof Number) {
+            return "n:" + value;
+        }
+        return "s:" + value;
+    }
+
+    protected static Object decode(String mark) throws DirectoryException {
+        String value = mark.substring(Math.min(2, mark.length()));
+        try {
+            if (mark.startsWith("t:")) {
+                return new Timestamp(Long.parseLong(value));
+            } else if (mark.startsWith("n:")) {
+                return new BigDecimal(value);
+            } else if (mark.startsWith("s:")) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // invalid below
+        }
+        throw new DirectoryException("Invalid change feed mark: " + mark);
+    }
+
+}
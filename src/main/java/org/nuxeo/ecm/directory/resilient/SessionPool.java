@@ -0,0 +1,403 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Session;
+
+/**
+ * Pool of the sub directory sessions of a resilient directory, so that a
+ * resilient session does not bind to the LDAP or check out a SQL connection
+ * each time it is opened.
+ * <p>
+ * A session idle for more than <code>validationInterval</code> is checked
+ * before being borrowed again, a session idle for more than
+ * <code>idleTimeout</code> is closed. At most <code>maxIdle</code> sessions
+ * are kept per sub directory, and when <code>maxActive</code> is set a borrow
+ * waits at most <code>maxWait</code> for a session to be returned. When the
+ * pool is disabled the sessions are opened and closed as before, the open
+ * time is still measured.
+ * <p>
+ * The sessions are kept across transactions: only enable the pool on sub
+ * directories whose sessions allow it.
+ *
+ * @since 5.9
+ */
+public class SessionPool {
+
+    private static final Log log = LogFactory.getLog(SessionPool.class);
+
+    protected static final long METRICS_WINDOW = 60 * 1000;
+
+    /**
+     * Id looked up to check that a session still works
+     */
+    protected static final String VALIDATION_ID = "__resilient_validation__";
+
+    protected static class IdleSession {
+
+        final Session session;
+
+        final long idleSince = System.nanoTime();
+
+        IdleSession(Session session) {
+            this.session = session;
+        }
+    }
+
+    protected class SubPool {
+
+        final LinkedList<IdleSession> idle = new LinkedList<IdleSession>();
+
+        final Semaphore permits = maxActive > 0 ? new Semaphore(maxActive,
+                true) : null;
+
+        int active;
+    }
+
+    protected final ResilientDirectory directory;
+
+    protected final String name;
+
+    protected final boolean enabled;
+
+    protected final int maxIdle;
+
+    protected final int maxActive;
+
+    protected final long maxWaitNanos;
+
+    protected final long idleTimeoutNanos;
+
+    protected final long validationNanos;
+
+    protected final ConcurrentMap<String, SubPool> pools = new ConcurrentHashMap<String, SubPool>();
+
+    protected final LatencyHistogram openLatency = new LatencyHistogram(
+            METRICS_WINDOW);
+
+    protected final LatencyHistogram waitLatency = new LatencyHistogram(
+            METRICS_WINDOW);
+
+    protected final AtomicLong opened = new AtomicLong();
+
+    protected final AtomicLong reused = new AtomicLong();
+
+    protected final AtomicLong invalid = new AtomicLong();
+
+    protected final AtomicLong evicted = new AtomicLong();
+
+    protected volatile boolean shutdown = false;
+
+    protected ScheduledFuture<?> evictionFuture;
+
+    public SessionPool(ResilientDirectory directory) {
+        this.directory = directory;
+        ResilientDirectoryDescriptor descriptor = directory.getDescriptor();
+        name = descriptor.name;
+        enabled = descriptor.poolEnabled;
+        maxIdle = Math.max(0, descriptor.poolMaxIdle);
+        maxActive = Math.max(0, descriptor.poolMaxActive);
+        maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(descriptor.poolMaxWait);
+        idleTimeoutNanos = TimeUnit.SECONDS.toNanos(descriptor.poolIdleTimeout);
+        validationNanos = TimeUnit.SECONDS.toNanos(descriptor.poolValidationInterval);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Schedule the eviction of the idle sessions, if enabled
+     */
+    public synchronized void start() {
+        if (!enabled || evictionFuture != null || shutdown) {
+            return;
+        }
+        long interval = Math.max(1,
+                TimeUnit.NANOSECONDS.toSeconds(idleTimeoutNanos) / 2);
+        evictionFuture = directory.getScheduler().scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            evictIdleSessions();
+                        } catch (RuntimeException e) {
+                            // do not cancel the next evictions
+                            log.error(String.format(
+                                    "Resilient directory '%s' : session eviction failed",
+                                    name), e);
+                        }
+                    }
+                }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Close the idle sessions, the borrowed ones are closed when returned
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            if (evictionFuture != null) {
+                evictionFuture.cancel(false);
+                evictionFuture = null;
+            }
+        }
+        for (String dirName : pools.keySet()) {
+            closeAll(takeIdle(dirName, -1));
+        }
+    }
+
+    protected SubPool getPool(String dirName) {
+        SubPool pool = pools.get(dirName);
+        if (pool == null) {
+            pool = new SubPool();
+            SubPool previous = pools.putIfAbsent(dirName, pool);
+            if (previous != null) {
+                pool = previous;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Borrow a session on a sub directory, to give back with
+     * {@link #release}
+     */
+    public Session borrow(String dirName) throws DirectoryException {
+        if (!enabled) {
+            return open(dirName);
+        }
+        SubPool pool = getPool(dirName);
+        if (pool.permits != null) {
+            long start = System.nanoTime();
+            try {
+                if (!pool.permits.tryAcquire(maxWaitNanos,
+                        TimeUnit.NANOSECONDS)) {
+                    throw new DirectoryException(String.format(
+                            "No session available on directory '%s' after %sms, %s sessions in use",
+                            dirName,
+                            TimeUnit.NANOSECONDS.toMillis(maxWaitNanos),
+                            maxActive));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DirectoryException(e);
+            } finally {
+                waitLatency.record(System.nanoTime() - start);
+            }
+        }
+        boolean borrowed = false;
+        try {
+            Session session = pollIdle(dirName, pool);
+            if (session == null) {
+                session = open(dirName);
+            } else {
+                reused.incrementAndGet();
+            }
+            synchronized (pool) {
+                pool.active++;
+            }
+            borrowed = true;
+            return session;
+        } finally {
+            if (!borrowed && pool.permits != null) {
+                pool.permits.release();
+            }
+        }
+    }
+
+    /**
+     * @return a valid idle session, null if none
+     */
+    protected Session pollIdle(String dirName, SubPool pool) {
+        while (true) {
+            IdleSession idleSession;
+            synchronized (pool) {
+                // the most recently returned first, the others get evicted
+                idleSession = pool.idle.pollLast();
+            }
+            if (idleSession == null) {
+                return null;
+            }
+            if (System.nanoTime() - idleSession.idleSince < validationNanos
+                    || isValid(idleSession.session)) {
+                return idleSession.session;
+            }
+            invalid.incrementAndGet();
+            close(idleSession.session);
+        }
+    }
+
+    protected boolean isValid(Session session) {
+        try {
+            session.hasEntry(VALIDATION_ID);
+            return true;
+        } catch (ClientException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    protected Session open(String dirName) throws DirectoryException {
+        long start = System.nanoTime();
+        Session session = ResilientDirectoryFactory.getDirectoryService().open(
+                dirName);
+        openLatency.record(System.nanoTime() - start);
+        opened.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Give back a borrowed session
+     *
+     * @param broken true if the session failed, it is closed
+     */
+    public void release(String dirName, Session session, boolean broken)
+            throws DirectoryException {
+        if (!enabled) {
+            session.close();
+            return;
+        }
+        SubPool pool = getPool(dirName);
+        boolean keep;
+        synchronized (pool) {
+            pool.active--;
+            keep = !broken && !shutdown && pool.idle.size() < maxIdle;
+            if (keep) {
+                pool.idle.addLast(new IdleSession(session));
+            }
+        }
+        if (pool.permits != null) {
+            pool.permits.release();
+        }
+        if (!keep) {
+            session.close();
+        }
+    }
+
+    /**
+     * Close the sessions idle for more than the idle timeout
+     */
+    public void evictIdleSessions() {
+        for (String dirName : pools.keySet()) {
+            List<Session> sessions = takeIdle(dirName, idleTimeoutNanos);
+            evicted.addAndGet(sessions.size());
+            closeAll(sessions);
+        }
+    }
+
+    /**
+     * @param minIdleNanos the idle time above which a session is taken, -1
+     *            for all
+     */
+    protected List<Session> takeIdle(String dirName, long minIdleNanos) {
+        List<Session> sessions = new ArrayList<Session>();
+        SubPool pool = getPool(dirName);
+        long now = System.nanoTime();
+        synchronized (pool) {
+            for (Iterator<IdleSession> it = pool.idle.iterator(); it.hasNext();) {
+                IdleSession idleSession = it.next();
+                if (minIdleNanos < 0
+                        || now - idleSession.idleSince >= minIdleNanos) {
+                    sessions.add(idleSession.session);
+                    it.remove();
+                }
+            }
+        }
+        return sessions;
+    }
+
+    protected void closeAll(List<Session> sessions) {
+        for (Session session : sessions) {
+            close(session);
+        }
+    }
+
+    protected void close(Session session) {
+        try {
+            session.close();
+        } catch (DirectoryException e) {
+            log.debug(String.format(
+                    "Resilient directory '%s' : error while closing a pooled session",
+                    name), e);
+        }
+    }
+
+    /**
+     * @return the time taken to open the sub directory sessions
+     */
+    public LatencyHistogram getOpenLatency() {
+        return openLatency;
+    }
+
+    /**
+     * @return the time waited for a session when <code>maxActive</code> is
+     *         reached
+     */
+    public LatencyHistogram getWaitLatency() {
+        return waitLatency;
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    public long getInvalidCount() {
+        return invalid.get();
+    }
+
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    public int getIdleCount(String dirName) {
+        SubPool pool = getPool(dirName);
+        synchronized (pool) {
+            return pool.idle.size();
+        }
+    }
+
+    public int getActiveCount(String dirName) {
+        SubPool pool = getPool(dirName);
+        synchronized (pool) {
+            return pool.active;
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Outcome of the parallel writes of one entry on the slaves.
+ * <p>
+ * Each slave write reports its outcome with {@link #done}, the caller waits
+ * with {@link #await} for the acknowledgements it needs: a slave not done
+ * before its own timeout is counted as failed for the caller, but its write
+ * goes on. {@link #completed} is called once every write is done, whether the
+ * caller still waits or not.
+ *
+ * @since 5.9
+ */
+public abstract class SlaveFanOut {
+
+    public enum Ack {
+        NONE, ANY, ALL;
+
+        public static Ack of(String value) throws DirectoryException {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (RuntimeException e) {
+                throw new DirectoryException("Invalid acknowledgement policy: "
+                        + value);
+            }
+        }
+    }
+
+    protected final long[] deadlines;
+
+    protected final boolean[] done;
+
+    protected int finished;
+
+    protected int succeeded;
+
+    protected int failed;
+
+    /**
+     * @param slaves the slaves written, their timeouts start now
+     */
+    public SlaveFanOut(List<SubDirectoryInfo> slaves) {
+        long now = System.nanoTime();
+        deadlines = new long[slaves.size()];
+        done = new boolean[slaves.size()];
+        for (int i = 0; i < deadlines.length; i++) {
+            deadlines[i] = now + slaves.get(i).state.writeTimeoutNanos;
+        }
+    }
+
+    /**
+     * Report the outcome of the write on the slave of the given index
+     */
+    public void done(int index, boolean success) {
+        boolean all;
+        synchronized (this) {
+            if (done[index]) {
+                return;
+            }
+            done[index] = true;
+            finished++;
+            if (success) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+            all = finished == done.length;
+            notifyAll();
+        }
+        if (all) {
+            completed(failed == 0);
+        }
+    }
+
+    /**
+     * Called once all the writes are done, in the thread of the last one
+     *
+     * @param success true if every slave has been written
+     */
+    protected abstract void completed(boolean success);
+
+    /**
+     * Wait for the acknowledgements of the slaves
+     *
+     * @return true if the policy is met: any slave written for
+     *         {@link Ack#ANY}, every slave written in time for
+     *         {@link Ack#ALL}, always for {@link Ack#NONE}
+     */
+    public synchronized boolean await(Ack ack) throws InterruptedException {
+        if (ack == Ack.NONE) {
+            return true;
+        }
+        while (true) {
+            long now = System.nanoTime();
+            int waiting = 0;
+            boolean late = false;
+            long nextDeadline = 0;
+            for (int i = 0; i < done.length; i++) {
+                if (done[i]) {
+                    continue;
+                }
+                if (deadlines[i] - now > 0) {
+                    if (waiting == 0 || deadlines[i] - nextDeadline < 0) {
+                        nextDeadline = deadlines[i];
+                    }
+                    waiting++;
+                } else {
+                    late = true;
+                }
+            }
+            if (ack == Ack.ALL) {
+                if (failed > 0 || late) {
+                    return false;
+                }
+                if (waiting == 0) {
+                    return true;
+                }
+            } else {
+                if (succeeded > 0) {
+                    return true;
+                }
+                if (waiting == 0) {
+                    return false;
+                }
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, nextDeadline - now);
+        }
+    }
+
+    public synchronized int getSucceededCount() {
+        return succeeded;
+    }
+
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+}
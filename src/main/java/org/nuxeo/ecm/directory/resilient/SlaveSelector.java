@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Order in which the slaves are tried by the fallback reads, shared by all
+ * the sessions of a resilient directory.
+ * <p>
+ * The slaves down or whose circuit is open always come last, they are only
+ * tried if all the others fail. The others are ranked by the policy:
+ * <ul>
+ * <li><code>order</code>: the declaration order</li>
+ * <li><code>round-robin</code>: each read starts on the next slave</li>
+ * <li><code>least-outstanding</code>: the slaves with the fewest fallback
+ * reads running first</li>
+ * <li><code>latency</code>: the slaves with the lowest moving average latency
+ * first, a failed call counting as a slow one</li>
+ * </ul>
+ *
+ * @since 5.9
+ */
+public class SlaveSelector {
+
+    public enum Policy {
+        ORDER, ROUND_ROBIN, LEAST_OUTSTANDING, LATENCY;
+
+        public static Policy of(String value) throws DirectoryException {
+            try {
+                return valueOf(value.trim().replace('-', '_').toUpperCase());
+            } catch (RuntimeException e) {
+                throw new DirectoryException("Invalid slave selection policy: "
+                        + value);
+            }
+        }
+    }
+
+    /**
+     * Added to the rank of the slaves not available
+     */
+    protected static final long UNAVAILABLE = Long.MAX_VALUE / 2;
+
+    protected final Policy policy;
+
+    protected final AtomicInteger next = new AtomicInteger();
+
+    public SlaveSelector(Policy policy) {
+        this.policy = policy;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return a new list of the slaves, in the order to try them
+     */
+    public List<SubDirectoryInfo> order(List<SubDirectoryInfo> slaves) {
+        int size = slaves.size();
+        List<SubDirectoryInfo> ordered = new ArrayList<SubDirectoryInfo>(size);
+        if (size <= 1) {
+            ordered.addAll(slaves);
+            return ordered;
+        }
+        int first = policy == Policy.ROUND_ROBIN ? (next.getAndIncrement() & Integer.MAX_VALUE)
+                % size
+                : 0;
+        // the ranks are read once, insertion sort keeps the ties in order
+        long[] ranks = new long[size];
+        for (int i = 0; i < size; i++) {
+            SubDirectoryInfo slave = slaves.get((first + i) % size);
+            long rank = rank(slave);
+            int pos = i;
+            while (pos > 0 && ranks[pos - 1] > rank) {
+                ranks[pos] = ranks[pos - 1];
+                pos--;
+            }
+            ranks[pos] = rank;
+            ordered.add(pos, slave);
+        }
+        return ordered;
+    }
+
+    protected long rank(SubDirectoryInfo slave) {
+        long rank = slave.isAvailable() ? 0 : UNAVAILABLE;
+        switch (policy) {
+        case LEAST_OUTSTANDING:
+            rank += slave.state.getOutstanding();
+            break;
+        case LATENCY:
+            rank += slave.state.getLatencyEwma();
+            break;
+        default:
+            break;
+        }
+        return rank;
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.directory.Session;
+
+/**
+ * A read done the same way on the master or on a slave session.
+ *
+ * @since 5.9
+ */
+public abstract class SourceCall<T> {
+
+    protected final SourceMetrics.Operation operation;
+
+    protected SourceCall(SourceMetrics.Operation operation) {
+        this.operation = operation;
+    }
+
+    public SourceMetrics.Operation getOperation() {
+        return operation;
+    }
+
+    public abstract T call(Session session) throws ClientException;
+
+    /**
+     * Call on a session of a sub directory, whose state tells what the
+     * session supports
+     */
+    public T call(SubDirectoryState state, Session session)
+            throws ClientException {
+        return call(session);
+    }
+
+    /**
+     * @return false if the answer of a slave is not good enough to be
+     *         returned instead of the master one, for instance a missing
+     *         entry
+     */
+    public boolean isGood(T result) {
+        return true;
+    }
+
+}
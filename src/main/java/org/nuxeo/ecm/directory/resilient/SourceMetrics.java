@@ -0,0 +1,148 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies and outcomes of the calls done on a sub directory, per
+ * operation, whatever its role.
+ * <p>
+ * Recording does not allocate nor lock: the counters are atomic and the
+ * latencies go to a {@link LatencyHistogram} per operation. The maps of the
+ * JMX view are only built when read.
+ *
+ * @since 5.9
+ */
+public class SourceMetrics implements SourceMetricsMXBean {
+
+    public enum Operation {
+        GET_ENTRY, HAS_ENTRY, QUERY, AUTHENTICATE, CREATE, UPDATE, DELETE
+    }
+
+    protected static final Operation[] OPERATIONS = Operation.values();
+
+    protected final String dirName;
+
+    protected final CircuitBreaker breaker;
+
+    protected final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+
+    protected final AtomicLongArray calls = new AtomicLongArray(
+            OPERATIONS.length);
+
+    protected final AtomicLongArray failures = new AtomicLongArray(
+            OPERATIONS.length);
+
+    /**
+     * @param windowMillis the time window of the latency percentiles
+     */
+    public SourceMetrics(String dirName, CircuitBreaker breaker,
+            long windowMillis) {
+        this.dirName = dirName;
+        this.breaker = breaker;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram(windowMillis);
+        }
+    }
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} at the call start
+     * @param failed true if the call threw an exception, its latency is not
+     *            recorded
+     */
+    public void record(Operation operation, long startNanos, boolean failed) {
+        int index = operation.ordinal();
+        calls.incrementAndGet(index);
+        if (failed) {
+            failures.incrementAndGet(index);
+        } else {
+            latencies[index].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public long getCallCount(Operation operation) {
+        return calls.get(operation.ordinal());
+    }
+
+    public long getFailureCount(Operation operation) {
+        return failures.get(operation.ordinal());
+    }
+
+    @Override
+    public String getDirectoryName() {
+        return dirName;
+    }
+
+    @Override
+    public String getCircuitState() {
+        return breaker.getState().name();
+    }
+
+    @Override
+    public Map<String, Long> getCallCounts() {
+        return toMap(calls);
+    }
+
+    @Override
+    public Map<String, Long> getFailureCounts() {
+        return toMap(failures);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Millis() {
+        return getPercentiles(50);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Millis() {
+        return getPercentiles(99);
+    }
+
+    protected Map<String, Long> toMap(AtomicLongArray counters) {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (Operation operation : OPERATIONS) {
+            map.put(operation.name(),
+                    Long.valueOf(counters.get(operation.ordinal())));
+        }
+        return map;
+    }
+
+    protected Map<String, Double> getPercentiles(double percentile) {
+        Map<String, Double> map = new LinkedHashMap<String, Double>();
+        for (Operation operation : OPERATIONS) {
+            map.put(operation.name(),
+                    Double.valueOf(toMillis(getLatency(operation).getPercentile(
+                            percentile))));
+        }
+        return map;
+    }
+
+    protected static double toMillis(long nanos) {
+        return nanos / 1000000d;
+    }
+
+}
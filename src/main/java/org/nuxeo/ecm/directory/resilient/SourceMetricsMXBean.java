@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.Map;
+
+/**
+ * JMX view of the calls done on a sub directory of a resilient directory.
+ * The maps are keyed by operation.
+ *
+ * @since 5.9
+ */
+public interface SourceMetricsMXBean {
+
+    String getDirectoryName();
+
+    String getCircuitState();
+
+    /**
+     * @return the number of calls since the start
+     */
+    Map<String, Long> getCallCounts();
+
+    /**
+     * @return the number of failed calls since the start
+     */
+    Map<String, Long> getFailureCounts();
+
+    /**
+     * @return the median latency over the last minute or two, in
+     *         milliseconds
+     */
+    Map<String, Double> getLatencyP50Millis();
+
+    /**
+     * @return the 99th percentile latency over the last minute or two, in
+     *         milliseconds
+     */
+    Map<String, Double> getLatencyP99Millis();
+
+}
@@ -34,6 +34,43 @@ public class SubDirectoryDescriptor {
     @XNode("@master")
     public String master;
 
+    /**
+     * Time in milliseconds the caller waits for a parallel write on this
+     * slave, the fan-out timeout of the directory if not set
+     *
+     * @since 5.9
+     */
+    @XNode("@writeTimeout")
+    public long writeTimeout = -1;
+
+    /**
+     * Time in milliseconds given to a read or an authentication on this sub
+     * directory, the read timeout of the directory if not set
+     *
+     * @since 5.9
+     */
+    @XNode("@timeout")
+    public long timeout = -1;
+
+    /**
+     * Time in milliseconds given to a query on this sub directory, the query
+     * timeout of the directory if not set
+     *
+     * @since 5.9
+     */
+    @XNode("@queryTimeout")
+    public long queryTimeout = -1;
+
+    /**
+     * True if the sub directory pages the query results itself, false if the
+     * pages are sliced from its full results. Guessed from the directory type
+     * if not set: only the SQL directories page.
+     *
+     * @since 5.9
+     */
+    @XNode("@paging")
+    public String paging;
+
     @Override
     public String toString() {
         return String.format("{subdirectory name=%s ", name);
@@ -50,6 +87,10 @@ public class SubDirectoryDescriptor {
         SubDirectoryDescriptor clone = new SubDirectoryDescriptor();
         clone.name = name;
         clone.master = master;
+        clone.writeTimeout = writeTimeout;
+        clone.timeout = timeout;
+        clone.queryTimeout = queryTimeout;
+        clone.paging = paging;
         return clone;
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Session;
+
+/**
+ * A sub directory of a resilient directory and the session lazily opened on
+ * it.
+ * <p>
+ * An instance is not thread-safe: each resilient session, and each
+ * replication worker, owns its own set of infos.
+ *
+ * @author Maxime Hilaire
+ * @since 5.9
+ */
+public class SubDirectoryInfo {
+
+    private static final Log log = LogFactory.getLog(SubDirectoryInfo.class);
+
+    final String dirName;
+
+    final String dirSchemaName;
+
+    final String idField;
+
+    final String passwordField;
+
+    final SubDirectoryState state;
+
+    final SessionPool pool;
+
+    Session session;
+
+    /**
+     * True if a call failed on the session, it is not given back to the pool
+     */
+    volatile boolean broken;
+
+    SubDirectoryInfo(String dirName, String dirSchemaName, String idField,
+            String passwordField, SubDirectoryState state, SessionPool pool) {
+        this.dirName = dirName;
+        this.dirSchemaName = dirSchemaName;
+        this.idField = idField;
+        this.passwordField = passwordField;
+        this.state = state;
+        this.pool = pool;
+    }
+
+    /**
+     * @return a new info on the same sub directory, without session, for
+     *         another thread
+     */
+    SubDirectoryInfo copy() {
+        return new SubDirectoryInfo(dirName, dirSchemaName, idField,
+                passwordField, state, pool);
+    }
+
+    Session getSession() throws DirectoryException {
+        if (session == null) {
+            session = pool.borrow(dirName);
+            broken = false;
+        }
+        return session;
+    }
+
+    /**
+     * @return false if the circuit of the sub directory is open or if it is
+     *         down, the call must not be done
+     */
+    boolean allowRequest() {
+        return !state.isDown() && state.breaker.allowRequest();
+    }
+
+    /**
+     * @return false if the circuit of the sub directory is open or if it is
+     *         down, without consuming the half-open probe
+     */
+    boolean isAvailable() {
+        return !state.isDown() && !state.breaker.isOpen();
+    }
+
+    /**
+     * Report the success of a call allowed by {@link #allowRequest()}
+     *
+     * @param startNanos the {@link System#nanoTime()} at the call start
+     */
+    void recordSuccess(SourceMetrics.Operation operation, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        state.readLatency.record(nanos);
+        state.recordLatency(nanos, false);
+        state.metrics.record(operation, startNanos, false);
+        state.breaker.onSuccess(startNanos);
+    }
+
+    /**
+     * Report the failure of a call allowed by {@link #allowRequest()}
+     *
+     * @param startNanos the {@link System#nanoTime()} at the call start
+     */
+    void recordFailure(SourceMetrics.Operation operation, long startNanos) {
+        broken = true;
+        state.recordLatency(System.nanoTime() - startNanos, true);
+        state.metrics.record(operation, startNanos, true);
+        state.breaker.onFailure(startNanos);
+    }
+
+    /**
+     * Count a call not guarded by the circuit breaker, a slave one
+     *
+     * @param startNanos the {@link System#nanoTime()} at the call start
+     */
+    void record(SourceMetrics.Operation operation, long startNanos,
+            boolean failed) {
+        if (failed) {
+            broken = true;
+        }
+        state.recordLatency(System.nanoTime() - startNanos, failed);
+        state.metrics.record(operation, startNanos, failed);
+    }
+
+    /**
+     * Close the session without throwing exception to let the parent caller
+     * deal with the exception returned
+     *
+     * @param exc The exception already raised by a previous close, if any
+     * @return An exception or null if none
+     */
+    DirectoryException close(DirectoryException exc) {
+        Session s = session;
+        session = null;
+        if (s != null) {
+            try {
+                pool.release(dirName, s, broken);
+            } catch (DirectoryException e) {
+                // remember exception, we want to close all session
+                // first
+                if (exc == null) {
+                    exc = e;
+                } else {
+                    // we can't reraise both, log this one
+                    log.error("Error closing directory " + dirName, e);
+                }
+            }
+        }
+        return exc;
+    }
+
+    /**
+     * Give back a session detached from this info
+     */
+    void release(Session s, boolean failed) throws DirectoryException {
+        pool.release(dirName, s, failed);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{directory=%s }", dirName);
+    }
+}
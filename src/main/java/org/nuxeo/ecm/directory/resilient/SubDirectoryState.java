@@ -0,0 +1,267 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of a sub directory shared by all the sessions of a resilient
+ * directory.
+ *
+ * @since 5.9
+ */
+public class SubDirectoryState {
+
+    protected static final long LATENCY_WINDOW = 60 * 1000;
+
+    /**
+     * Weight of the last call in the latency moving average
+     */
+    protected static final double LATENCY_EWMA_WEIGHT = 0.2;
+
+    /**
+     * Latency counted for a failed call in the moving average, at least
+     */
+    protected static final long FAILURE_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    protected final String dirName;
+
+    protected final CircuitBreaker breaker;
+
+    /**
+     * Latency of the successful calls over the last minute or two
+     */
+    protected final LatencyHistogram readLatency = new LatencyHistogram(
+            LATENCY_WINDOW);
+
+    /**
+     * Percentile of the read latency giving the hedging budget, see
+     * {@link HedgingPolicy}
+     */
+    protected final CachedPercentile hedgingPercentile;
+
+    /**
+     * Percentile of the latency of each operation giving its adaptive
+     * deadline, see {@link TimeoutPolicy}
+     */
+    protected final CachedPercentile[] timeoutPercentiles = new CachedPercentile[SourceMetrics.OPERATIONS.length];
+
+    /**
+     * Exponentially weighted moving average of the latency of the calls, in
+     * nanoseconds, 0 until the first call
+     */
+    protected final AtomicLong latencyEwma = new AtomicLong();
+
+    /**
+     * Fallback reads running on the sub directory
+     */
+    protected final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * Latencies and outcomes of all the calls, per operation
+     */
+    protected final SourceMetrics metrics;
+
+    /**
+     * Digests of the entries written on the sub directory as a slave, null if
+     * disabled
+     */
+    protected final DigestStore digests;
+
+    /**
+     * Sync times of the entries of the sub directory as a slave, null unless
+     * the reads are routed to the slaves first
+     */
+    protected final SyncTimes syncTimes;
+
+    /**
+     * Time the caller waits for a parallel write on the sub directory
+     */
+    protected final long writeTimeoutNanos;
+
+    /**
+     * Deadlines of the reads and of the queries on the sub directory, see
+     * {@link TimeoutPolicy}
+     */
+    protected final long readTimeoutNanos;
+
+    protected final long queryTimeoutNanos;
+
+    /**
+     * Last health published by the {@link HealthMonitor}, up if disabled
+     */
+    protected volatile HealthMonitor.Health health = HealthMonitor.Health.UP;
+
+    protected final boolean paged;
+
+    public SubDirectoryState(String dirName,
+            ResilientDirectoryDescriptor descriptor, boolean paged) {
+        this.dirName = dirName;
+        this.paged = paged;
+        long writeTimeout = descriptor.fanOutTimeout;
+        long readTimeout = descriptor.timeoutRead;
+        long queryTimeout = descriptor.timeoutQuery;
+        if (descriptor.subDirectories != null) {
+            for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+                if (!dirName.equals(sub.name)) {
+                    continue;
+                }
+                if (sub.writeTimeout >= 0) {
+                    writeTimeout = sub.writeTimeout;
+                }
+                if (sub.timeout >= 0) {
+                    readTimeout = sub.timeout;
+                }
+                if (sub.queryTimeout >= 0) {
+                    queryTimeout = sub.queryTimeout;
+                }
+            }
+        }
+        writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+        readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+        queryTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queryTimeout);
+        breaker = new CircuitBreaker(dirName,
+                descriptor.circuitBreakerEnabled,
+                descriptor.circuitBreakerWindowSize,
+                descriptor.circuitBreakerMinimumCalls,
+                descriptor.circuitBreakerFailureRateThreshold,
+                descriptor.circuitBreakerSlowCallDuration,
+                descriptor.circuitBreakerSlowCallRateThreshold,
+                descriptor.circuitBreakerOpenDuration);
+        metrics = new SourceMetrics(dirName, breaker, LATENCY_WINDOW);
+        hedgingPercentile = new CachedPercentile(readLatency,
+                descriptor.hedgingPercentile);
+        for (SourceMetrics.Operation operation : SourceMetrics.OPERATIONS) {
+            timeoutPercentiles[operation.ordinal()] = new CachedPercentile(
+                    metrics.getLatency(operation), descriptor.timeoutPercentile);
+        }
+        digests = descriptor.digestEnabled ? new DigestStore(
+                descriptor.digestMaxSize) : null;
+        syncTimes = descriptor.isSlaveFirstRead() ? new SyncTimes(
+                descriptor.readMaxSize) : null;
+    }
+
+    /**
+     * @return true if the sub directory pages the query results itself
+     * @see PagedQuery
+     */
+    public boolean isPaged() {
+        return paged;
+    }
+
+    public String getDirName() {
+        return dirName;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    public CachedPercentile getHedgingPercentile() {
+        return hedgingPercentile;
+    }
+
+    public CachedPercentile getTimeoutPercentile(
+            SourceMetrics.Operation operation) {
+        return timeoutPercentiles[operation.ordinal()];
+    }
+
+    /**
+     * Add a call to the latency moving average
+     *
+     * @param failed true to count the call as slow
+     */
+    protected void recordLatency(long nanos, boolean failed) {
+        if (failed) {
+            nanos = Math.max(nanos, FAILURE_LATENCY_NANOS);
+        }
+        while (true) {
+            long current = latencyEwma.get();
+            long next = current == 0 ? nanos : current
+                    + Math.round((nanos - current) * LATENCY_EWMA_WEIGHT);
+            if (latencyEwma.compareAndSet(current, Math.max(1, next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the moving average of the latency in nanoseconds, 0 if unknown
+     */
+    public long getLatencyEwma() {
+        return latencyEwma.get();
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public SourceMetrics getMetrics() {
+        return metrics;
+    }
+
+    public DigestStore getDigestStore() {
+        return digests;
+    }
+
+    public SyncTimes getSyncTimes() {
+        return syncTimes;
+    }
+
+    /**
+     * Remember the entry as identical on the master and the sub directory
+     */
+    public void synced(String id) {
+        if (syncTimes != null) {
+            syncTimes.synced(id);
+        }
+    }
+
+    /**
+     * Forget the sync time of the entry
+     */
+    public void unsynced(String id) {
+        if (syncTimes != null) {
+            syncTimes.remove(id);
+        }
+    }
+
+    public HealthMonitor.Health getHealth() {
+        return health;
+    }
+
+    /**
+     * @return true if the health monitor found the sub directory down, it
+     *         must not be called
+     */
+    public boolean isDown() {
+        return health == HealthMonitor.Health.DOWN;
+    }
+
+    public long getWriteTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos);
+    }
+
+}
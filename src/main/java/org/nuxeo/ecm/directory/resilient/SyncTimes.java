@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time each entry of a slave was last known identical to the master one, so
+ * that a read tolerating some staleness can be served by the slave.
+ * <p>
+ * An entry is remembered when the replication writes it on the slave, or
+ * skips the write as the slave already has the master values. It is
+ * forgotten when deleted, when its write fails, or when it is one of the
+ * <code>maxSize</code> least recently used above the limit: the read then
+ * goes to the master, which syncs the entry again.
+ *
+ * @since 5.9
+ */
+public class SyncTimes {
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    /**
+     * id -> {@link System#nanoTime()} of the sync
+     */
+    protected final LinkedHashMap<String, Long> syncedAt;
+
+    public SyncTimes(final int maxSize) {
+        syncedAt = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param maxStalenessNanos the maximum age of the sync
+     * @return true if the entry has been synced with the master for less than
+     *         the given time
+     */
+    public boolean isFresh(String id, long maxStalenessNanos) {
+        boolean fresh;
+        synchronized (this) {
+            Long time = syncedAt.get(id);
+            fresh = time != null
+                    && System.nanoTime() - time.longValue() < maxStalenessNanos;
+        }
+        if (fresh) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return fresh;
+    }
+
+    /**
+     * Remember the entry as identical on the master and the slave now
+     */
+    public synchronized void synced(String id) {
+        syncedAt.put(id, Long.valueOf(System.nanoTime()));
+    }
+
+    /**
+     * Forget the entry: deleted, or its write failed
+     */
+    public synchronized void remove(String id) {
+        syncedAt.remove(id);
+    }
+
+    public synchronized void clear() {
+        syncedAt.clear();
+    }
+
+    public synchronized int size() {
+        return syncedAt.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+}
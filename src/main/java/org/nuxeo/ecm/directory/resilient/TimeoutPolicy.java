@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Deadlines of the reads on the sub directories: a call not answered in time
+ * is abandoned, its session is closed by the call itself once done, and the
+ * caller gets a {@link DirectoryException} so that the read falls back on the
+ * slaves.
+ * <p>
+ * The deadline of a sub directory is fixed per operation kind, or adaptive:
+ * a multiple of the given percentile of the recent latencies of the
+ * operation on this sub directory, computed at most once a second, bounded
+ * by the fixed one.
+ *
+ * @since 5.9
+ */
+public class TimeoutPolicy {
+
+    /**
+     * Number of recent latencies needed to trust the percentile
+     */
+    protected static final int MIN_SAMPLES = 20;
+
+    protected final ResilientDirectory directory;
+
+    protected final boolean enabled;
+
+    protected final boolean adaptive;
+
+    protected final double percentile;
+
+    protected final double multiplier;
+
+    protected final long minNanos;
+
+    protected final AtomicLong timeouts = new AtomicLong();
+
+    public TimeoutPolicy(ResilientDirectory directory) {
+        this.directory = directory;
+        ResilientDirectoryDescriptor descriptor = directory.getDescriptor();
+        enabled = descriptor.timeoutEnabled;
+        adaptive = descriptor.timeoutAdaptive;
+        percentile = descriptor.timeoutPercentile;
+        multiplier = descriptor.timeoutMultiplier;
+        minNanos = TimeUnit.MILLISECONDS.toNanos(descriptor.timeoutMin);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the time given to the operation on the sub directory, 0 if
+     *         not bounded
+     */
+    public long getTimeoutNanos(SubDirectoryState state,
+            SourceMetrics.Operation operation) {
+        if (!enabled) {
+            return 0;
+        }
+        long timeout = operation == SourceMetrics.Operation.QUERY ? state.queryTimeoutNanos
+                : state.readTimeoutNanos;
+        if (adaptive) {
+            long observed = state.getTimeoutPercentile(operation).get(
+                    MIN_SAMPLES);
+            if (observed >= 0) {
+                timeout = Math.min(timeout,
+                        Math.max(minNanos, (long) (observed * multiplier)));
+            }
+        }
+        return Math.max(0, timeout);
+    }
+
+    /**
+     * Read on the sub directory within its deadline. The outcome is recorded
+     * on the sub directory, a timeout as a failure.
+     *
+     * @throws DirectoryException if the deadline has passed
+     */
+    public <T> T execute(SubDirectoryInfo info, SourceCall<T> call)
+            throws ClientException {
+        long timeout = getTimeoutNanos(info.state, call.getOperation());
+        long start = System.nanoTime();
+        if (timeout > 0) {
+            AsyncSourceCall<T> asyncCall = null;
+            try {
+                asyncCall = AsyncSourceCall.submit(
+                        directory.getSourceCallExecutor(), info, call);
+            } catch (RejectedExecutionException e) {
+                // no thread left, read without deadline
+            }
+            if (asyncCall != null) {
+                return await(info, asyncCall, start, start + timeout);
+            }
+        }
+        try {
+            T value = call.call(info.state, info.getSession());
+            info.recordSuccess(call.getOperation(), start);
+            return value;
+        } catch (ClientException e) {
+            info.recordFailure(call.getOperation(), start);
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for a call running on the sub directory until the deadline
+     *
+     * @param start the {@link System#nanoTime()} at the call start
+     * @param deadline the {@link System#nanoTime()} of the deadline
+     * @throws DirectoryException if the deadline has passed
+     */
+    public <T> T await(SubDirectoryInfo info, AsyncSourceCall<T> asyncCall,
+            long start, long deadline) throws ClientException {
+        try {
+            return asyncCall.get(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // recorded now for the circuit, the call will not record it again
+            asyncCall.timeout();
+            info.recordFailure(asyncCall.call.getOperation(), start);
+            timeouts.incrementAndGet();
+            throw new DirectoryException(String.format(
+                    "%s on directory '%s' timed out after %s ms",
+                    asyncCall.call.getOperation(), info.dirName,
+                    TimeUnit.NANOSECONDS.toMillis(deadline - start)));
+        }
+    }
+
+    /**
+     * @return the number of calls abandoned at their deadline
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.resilient.EntryDiff;
+
+/**
+ * Compares the synchronization diff of a query with the former
+ * <code>contains()</code> based one, for 1k, 10k and 100k entries with 1% of
+ * creations, updates and deletions. Run with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.nuxeo.ecm.directory.resilient.test.EntryDiffBenchmark
+ * </pre>
+ *
+ * The former diff is only measured up to 10k entries, 100k takes minutes.
+ *
+ * @author Maxime Hilaire
+ *
+ */
+public class EntryDiffBenchmark {
+
+    static final int[] SIZES = { 1000, 10000, 100000 };
+
+    static final int QUADRATIC_MAX_SIZE = 10000;
+
+    static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        for (int size : SIZES) {
+            DocumentModelList master = new DocumentModelListImpl();
+            DocumentModelList slave = new DocumentModelListImpl();
+            for (int i = 0; i < size; i++) {
+                String id = "user" + i;
+                if (i % 100 != 0) {
+                    // 1% missing on the slave
+                    master.add(entry(id, "foo" + i));
+                }
+                if (i % 100 != 1) {
+                    // 1% missing on the master, 1% changed
+                    slave.add(entry(id, i % 100 == 2 ? "changed" : "foo" + i));
+                }
+            }
+
+            // warm up
+            EntryDiff diff = EntryDiff.compute(master, slave, "schema1", null);
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                diff = EntryDiff.compute(master, slave, "schema1", null);
+            }
+            long hashed = (System.nanoTime() - start) / RUNS;
+            String quadratic = "-";
+            if (size <= QUADRATIC_MAX_SIZE) {
+                start = System.nanoTime();
+                containsDiff(master, slave);
+                quadratic = String.format("%.1fms",
+                        (System.nanoTime() - start) / 1e6);
+            }
+            System.out.println(String.format(
+                    "%7d entries: hashed diff %.1fms, contains diff %s, %s",
+                    size, hashed / 1e6, quadratic, diff));
+        }
+    }
+
+    static DocumentModel entry(String id, String foo) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("uid", id);
+        props.put("foo", foo);
+        props.put("bar", "bar");
+        return BaseSession.createEntryModel(null, "schema1", id, props);
+    }
+
+    /**
+     * The former diff, creations and deletions only
+     */
+    static List<String> containsDiff(DocumentModelList master,
+            DocumentModelList slave) {
+        List<String> changes = new ArrayList<String>();
+        for (DocumentModel docModel : master) {
+            if (!slave.contains(docModel)) {
+                changes.add(docModel.getId());
+            }
+        }
+        for (DocumentModel docModel : slave) {
+            if (!master.contains(docModel)) {
+                changes.add(docModel.getId());
+            }
+        }
+        return changes;
+    }
+
+}
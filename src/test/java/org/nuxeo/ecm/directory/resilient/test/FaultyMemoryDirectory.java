@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.memory.MemoryDirectory;
+
+/**
+ * Memory directory whose sessions can be made failing or slow, to simulate
+ * a bad LDAP or a bad network.
+ *
+ * @author Maxime Hilaire
+ *
+ */
+public class FaultyMemoryDirectory extends MemoryDirectory {
+
+    protected volatile boolean failing;
+
+    protected volatile long latency;
+
+    protected final AtomicInteger calls = new AtomicInteger();
+
+    public FaultyMemoryDirectory(String name, String schema,
+            Set<String> schemaSet, String idField, String passwordField) {
+        super(name, schema, schemaSet, idField, passwordField);
+    }
+
+    /**
+     * Every call but close will throw a {@link DirectoryException}
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    /**
+     * Every call but close will wait for the given time first
+     */
+    public void setLatency(long latencyMillis) {
+        latency = latencyMillis;
+    }
+
+    /**
+     * @return the number of calls done on the sessions, close excluded
+     */
+    public int getCallCount() {
+        return calls.get();
+    }
+
+    public void resetCallCount() {
+        calls.set(0);
+    }
+
+    @Override
+    public Session getSession() throws DirectoryException {
+        final Session session = super.getSession();
+        return (Session) Proxy.newProxyInstance(
+                FaultyMemoryDirectory.class.getClassLoader(),
+                new Class<?>[] { Session.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if (!"close".equals(method.getName())) {
+                            calls.incrementAndGet();
+                            if (latency > 0) {
+                                Thread.sleep(latency);
+                            }
+                            if (failing) {
+                                throw new DirectoryException(
+                                        "Injected failure on " + getName());
+                            }
+                        }
+                        try {
+                            return method.invoke(session, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.nuxeo.ecm.directory.resilient.CircuitBreaker;
+import org.nuxeo.ecm.directory.resilient.CircuitBreaker.State;
+
+/**
+ * @author Maxime Hilaire
+ *
+ */
+public class TestCircuitBreaker {
+
+    protected CircuitBreaker newBreaker() {
+        // window of 4 calls, opens at 50% failures, 100ms slow calls
+        return new CircuitBreaker("test", true, 4, 4, 50, 100, 100, 50);
+    }
+
+    @Test
+    public void testOpenOnFailureRate() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        long start = System.nanoTime();
+        breaker.onSuccess(start);
+        breaker.onSuccess(start);
+        breaker.onFailure(start);
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.onFailure(start);
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testOpenOnSlowCalls() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        long start = System.nanoTime() - 200 * 1000 * 1000L;
+        for (int i = 0; i < 4; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.onSuccess(start);
+        }
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testSingleProbeWhenHalfOpen() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure(start);
+        }
+        assertFalse(breaker.allowRequest());
+        Thread.sleep(60);
+
+        // only one probe is let through
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        // failed probe re-opens the circuit
+        breaker.onFailure(System.nanoTime());
+        assertEquals(State.OPEN, breaker.getState());
+        Thread.sleep(60);
+
+        // successful probe closes it
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess(System.nanoTime());
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", false, 4, 4, 50,
+                100, 100, 50);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure(start);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.directory.resilient.CredentialStore;
+
+/**
+ * @author Maxime Hilaire
+ *
+ */
+public class TestCredentialStore {
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("resilient-", ".credentials");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        new File(file.getPath() + ".tmp").delete();
+        file.delete();
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        CredentialStore store = new CredentialStore(100, file);
+        assertNull(store.verify("user1", "secret"));
+
+        store.update("user1", "secret");
+        assertTrue(store.verify("user1", "secret"));
+        assertFalse(store.verify("user1", "wrong"));
+        assertFalse(store.verify("user1", null));
+
+        // the password changed on the master
+        store.update("user1", "newSecret");
+        assertFalse(store.verify("user1", "secret"));
+        assertTrue(store.verify("user1", "newSecret"));
+
+        store.remove("user1");
+        assertNull(store.verify("user1", "newSecret"));
+    }
+
+    @Test
+    public void testUnchangedPasswordIsNotWrittenAgain() throws Exception {
+        CredentialStore store = new CredentialStore(100, file);
+        store.update("user1", "secret");
+        long length = file.length();
+        assertTrue(length > 0);
+        store.update("user1", "secret");
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        CredentialStore store = new CredentialStore(100, file);
+        store.update("user1", "secret");
+        store.update("user2", "secret");
+        store.update("user1", "newSecret");
+        store.remove("user2");
+
+        CredentialStore loaded = new CredentialStore(100, file);
+        loaded.load();
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.verify("user1", "newSecret"));
+        assertFalse(loaded.verify("user1", "secret"));
+        assertNull(loaded.verify("user2", "secret"));
+    }
+
+}
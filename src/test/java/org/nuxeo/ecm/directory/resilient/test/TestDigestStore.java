@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.directory.resilient.DigestStore;
+import org.nuxeo.ecm.directory.resilient.EntryDigest;
+
+/**
+ * @author Maxime Hilaire
+ *
+ */
+public class TestDigestStore {
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("resilient-", ".digests");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testDigestIsStable() throws Exception {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("uid", "1");
+        props.put("foo", "foo1");
+        props.put("groups", Arrays.asList("a", "b"));
+        props.put("date", new GregorianCalendar(2014, 1, 1));
+        Map<String, Object> other = new LinkedHashMap<String, Object>();
+        other.put("date", new GregorianCalendar(2014, 1, 1));
+        other.put("groups", new String[] { "a", "b" });
+        other.put("foo", "foo1");
+        other.put("uid", "1");
+        assertEquals(EntryDigest.digest(props, null),
+                EntryDigest.digest(other, null));
+
+        other.put("foo", "foo2");
+        assertFalse(EntryDigest.digest(props, null) == EntryDigest.digest(
+                other, null));
+        // the excluded field is ignored
+        assertEquals(EntryDigest.digest(props, "foo"),
+                EntryDigest.digest(other, "foo"));
+    }
+
+    @Test
+    public void testPasswordIsCheckedWhenWritten() throws Exception {
+        DigestStore store = new DigestStore(10);
+        store.put("1", 42L, null);
+        assertTrue(store.isUpToDate("1", 42L, null));
+        assertFalse(store.isUpToDate("1", 43L, null));
+        // the password of the slave is unknown
+        assertFalse(store.isUpToDate("1", 42L, "secret"));
+
+        store.put("1", 42L, "secret");
+        assertTrue(store.isUpToDate("1", 42L, "secret"));
+        assertFalse(store.isUpToDate("1", 42L, "other"));
+        // a write without password keeps it
+        store.put("1", 44L, null);
+        assertTrue(store.isUpToDate("1", 44L, "secret"));
+
+        store.remove("1");
+        assertFalse(store.isUpToDate("1", 44L, null));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsForgotten() throws Exception {
+        DigestStore store = new DigestStore(2);
+        store.put("1", 1L, null);
+        store.put("2", 2L, null);
+        assertTrue(store.isUpToDate("1", 1L, null));
+        store.put("3", 3L, null);
+        assertEquals(2, store.size());
+        assertTrue(store.isUpToDate("1", 1L, null));
+        assertFalse(store.isUpToDate("2", 2L, null));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        DigestStore store = new DigestStore(10);
+        store.put("1", 1L, "secret");
+        store.put("2", 2L, null);
+        store.save(file);
+
+        DigestStore loaded = new DigestStore(10);
+        loaded.load(file);
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.isUpToDate("1", 1L, null));
+        assertTrue(loaded.isUpToDate("2", 2L, null));
+        // the passwords are not saved
+        assertFalse(loaded.isUpToDate("1", 1L, "secret"));
+    }
+
+}
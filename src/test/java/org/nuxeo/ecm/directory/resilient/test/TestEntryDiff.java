@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.resilient.EntryDiff;
+
+/**
+ * @author Maxime Hilaire
+ *
+ */
+public class TestEntryDiff {
+
+    static DocumentModel entry(String id, String foo, String password) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("uid", id);
+        props.put("foo", foo);
+        props.put("password", password);
+        return BaseSession.createEntryModel(null, "schema1", id, props);
+    }
+
+    static List<String> ids(List<DocumentModel> entries) {
+        String[] ids = new String[entries.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = entries.get(i).getId();
+        }
+        return Arrays.asList(ids);
+    }
+
+    @Test
+    public void testDiff() throws Exception {
+        List<DocumentModel> master = Arrays.asList(entry("1", "a", null),
+                entry("2", "b", null), entry("3", "c", null),
+                entry("4", "d", null));
+        List<DocumentModel> slave = Arrays.asList(entry("5", "e", null),
+                entry("3", "c", null), entry("2", "changed", null),
+                entry("4", "d", "secret"));
+        EntryDiff diff = EntryDiff.compute(master, slave, "schema1",
+                "password");
+        assertEquals(Arrays.asList("1"), ids(diff.creates));
+        assertEquals(Arrays.asList("2"), ids(diff.updates));
+        assertEquals(Arrays.asList("5"), diff.deletes);
+        assertEquals(3, diff.size());
+
+        diff = EntryDiff.compute(master, master, "schema1", "password");
+        assertTrue(diff.isEmpty());
+    }
+
+}
@@ -21,8 +21,13 @@ package org.nuxeo.ecm.directory.resilient.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,9 +37,13 @@ import org.junit.Before;
 import org.junit.Test;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Reference;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.ecm.directory.ldap.LDAPDirectory;
+import org.nuxeo.ecm.directory.resilient.ChangeFeedSync;
 import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
 import org.nuxeo.ecm.directory.resilient.ResilientDirectorySession;
 import org.nuxeo.ecm.directory.sql.SQLDirectory;
@@ -88,6 +97,8 @@ public class TestLDAPResilientDirectory extends LDAPDirectoryTestCase {
 
         // Config for the tested bundle
         deployContrib(TEST_BUNDLE, "resilient-ldap-sql-directories-config.xml");
+        deployContrib(TEST_BUNDLE,
+                "resilient-ldap-sql-sync-directories-config.xml");
 
         // the USER resilient directory
         resilientUserDir = (ResilientDirectory) directoryService.getDirectory("resilientUserDirectory");
@@ -197,6 +208,84 @@ public class TestLDAPResilientDirectory extends LDAPDirectoryTestCase {
 
     }
 
+    @Test
+    public void testChangeFeedSync() throws Exception {
+        ResilientDirectory syncUserDir = (ResilientDirectory) directoryService.getDirectory("resilientSyncUserDirectory");
+        ChangeFeedSync changeFeedSync = syncUserDir.getChangeFeedSync();
+        assertNull(changeFeedSync.getMark());
+
+        // the first poll returns all the master entries
+        assertTrue(changeFeedSync.sync() > 0);
+        assertNotNull(sqlUserSession.getEntry("user1"));
+        String mark = changeFeedSync.getMark();
+        assertNotNull(mark);
+
+        // then only the entries changed since the mark
+        assertTrue(changeFeedSync.sync() >= 0);
+        assertTrue(mark.compareTo(changeFeedSync.getMark()) <= 0);
+
+        // a change on the master reaches the slave
+        DocumentModel user1 = ldapUserSession.getEntry("user1");
+        user1.setProperty("user", "firstName", "changedOnMaster");
+        ldapUserSession.updateEntry(user1);
+        assertTrue(changeFeedSync.sync() > 0);
+        assertEquals("changedOnMaster",
+                sqlUserSession.getEntry("user1").getProperty("user",
+                        "firstName"));
+
+        // a deletion is not seen by the feed, the resynchronization removes
+        // the entry from the slave
+        assertNotNull(sqlUserSession.getEntry("user2"));
+        ldapUserSession.deleteEntry("user2");
+        changeFeedSync.sync();
+        assertNotNull(sqlUserSession.getEntry("user2"));
+        assertTrue(syncUserDir.getReconciler().resync());
+        assertNull(sqlUserSession.getEntry("user2"));
+    }
+
+    @Test
+    public void testQuerySyncBySqlBatches() throws Exception {
+        Session syncUserSession = directoryService.getDirectory(
+                "resilientSyncUserDirectory").getSession();
+        try {
+            DocumentModelList entries = syncUserSession.query(new HashMap<String, Serializable>());
+            assertTrue(entries.size() > 1);
+            for (DocumentModel entry : entries) {
+                assertNotNull(sqlUserSession.getEntry(entry.getId()));
+            }
+        } finally {
+            syncUserSession.close();
+        }
+    }
+
+    @Test
+    public void testReferenceIsReadOnFirstSourceHavingIt() throws Exception {
+        // the LDAP master has no reference with the internal server, the
+        // SQL slave one is read
+        sqlGroupDir.getReference("members").setTargetIdsForSource(
+                "refgroup", Arrays.asList("refuser1", "refuser2"));
+        Reference members = resilientGroupDir.getReference("members");
+        List<String> targetIds = members.getTargetIdsForSource("refgroup");
+        Collections.sort(targetIds);
+        assertEquals(Arrays.asList("refuser1", "refuser2"), targetIds);
+        assertEquals(Arrays.asList("refgroup"),
+                members.getSourceIdsForTarget("refuser1"));
+    }
+
+    @Test
+    public void testReferenceIsWrittenOnMasterFirst() throws Exception {
+        Reference members = resilientGroupDir.getReference("members");
+        try {
+            members.addLinks("refgroup", Arrays.asList("refuser1"));
+            fail("The LDAP master has no reference with the internal server");
+        } catch (DirectoryException e) {
+            // expected
+        }
+        // the slave is not written without the master
+        assertTrue(sqlGroupDir.getReference("members").getTargetIdsForSource(
+                "refgroup").isEmpty());
+    }
+
     // Only for LDAP fallback test purpose
     protected void shutdownLdapServer() {
         if (!USE_EXTERNAL_TEST_LDAP_SERVER) {
@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.directory.resilient.ReplicationJournal;
+
+/**
+ * @author Maxime Hilaire
+ *
+ */
+public class TestReplicationJournal {
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("resilient-", ".journal");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testReplayAfterRestart() throws Exception {
+        ReplicationJournal journal = new ReplicationJournal(file);
+        journal.record("1", true);
+        journal.record("2", false);
+        journal.record("3", true);
+        journal.complete("2", journal.getSequence());
+        // latest operation wins and moves to the end
+        journal.record("1", false);
+        journal.close();
+
+        journal = new ReplicationJournal(file);
+        Map<String, Boolean> pending = journal.getPending();
+        assertEquals(Arrays.asList("3", "1"),
+                new ArrayList<String>(pending.keySet()));
+        assertEquals(Boolean.TRUE, pending.get("3"));
+        assertEquals(Boolean.FALSE, pending.get("1"));
+        journal.close();
+    }
+
+    @Test
+    public void testCompletionKeepsLaterOperations() throws Exception {
+        ReplicationJournal journal = new ReplicationJournal(file);
+        long first = journal.record("1", true);
+        // recorded again while the first replication runs
+        long second = journal.record("1", false);
+        journal.complete("1", first);
+        assertEquals(1, journal.size());
+        journal.close();
+
+        journal = new ReplicationJournal(file);
+        assertEquals(Boolean.FALSE, journal.getPending().get("1"));
+        journal.complete("1", journal.getSequence());
+        assertTrue(journal.isEmpty());
+        journal.close();
+        assertTrue(second > first);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        ReplicationJournal journal = new ReplicationJournal(file);
+        // far more events than the initial mapped size can hold
+        for (int i = 0; i < 200000; i++) {
+            String id = "user" + (i % 10);
+            journal.complete(id, journal.record(id, true));
+        }
+        journal.record("last", true);
+        assertEquals(1, journal.size());
+        journal.close();
+        assertTrue(file.length() <= 1024 * 1024);
+
+        journal = new ReplicationJournal(file);
+        assertEquals(Arrays.asList("last"), new ArrayList<String>(
+                journal.getPending().keySet()));
+        journal.close();
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.TransactionalFeature;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.memory.MemoryDirectory;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryFactory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectorySession;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeHarness;
+
+import com.google.inject.Inject;
+
+/**
+ * Slave replication through the background replication queue.
+ *
+ * @author Maxime Hilaire
+ *
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ TransactionalFeature.class, CoreFeature.class })
+@RepositoryConfig(init = DefaultRepositoryInit.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory",
+        "org.nuxeo.ecm.core.schema", "org.nuxeo.ecm.directory.types.contrib",
+        "org.nuxeo.ecm.directory.resilient" })
+public class TestResilientAsyncReplication {
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    @Inject
+    DirectoryService directoryService;
+
+    @Inject
+    protected RuntimeHarness harness;
+
+    MemoryDirectoryFactory memoryDirectoryFactory;
+
+    MemoryDirectory memdir1;
+
+    MemoryDirectory memdir2;
+
+    ResilientDirectory resilientDir;
+
+    ResilientDirectorySession dir;
+
+    @Before
+    public void setUp() throws Exception {
+        harness.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+        memoryDirectoryFactory = new MemoryDirectoryFactory();
+        directoryService.registerDirectory("memdirs", memoryDirectoryFactory);
+
+        Set<String> schema1Set = new HashSet<String>(Arrays.asList("uid",
+                "foo", "bar"));
+
+        memdir1 = new MemoryDirectory("dir1", "schema1", schema1Set, "uid",
+                "foo");
+        memoryDirectoryFactory.registerDirectory(memdir1);
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", "1");
+        e.put("foo", "foo1");
+        e.put("bar", "bar1");
+        memdir1.getSession().createEntry(e);
+
+        memdir2 = new MemoryDirectory("dir2", "schema1", schema1Set, "uid",
+                "foo");
+        memoryDirectoryFactory.registerDirectory(memdir2);
+        e = new HashMap<String, Object>();
+        e.put("uid", "2");
+        e.put("foo", "foo2");
+        e.put("bar", "bar2");
+        memdir2.getSession().createEntry(e);
+
+        harness.deployContrib(TEST_BUNDLE,
+                "resilient-memory-async-directories-config.xml");
+
+        resilientDir = (ResilientDirectory) directoryService.getDirectory("asyncResilient");
+        dir = (ResilientDirectorySession) resilientDir.getSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dir.close();
+        resilientDir.getReplicator().waitForReplication(5000);
+        memoryDirectoryFactory.unregisterDirectory(memdir1);
+        memoryDirectoryFactory.unregisterDirectory(memdir2);
+        directoryService.unregisterDirectory("memdirs", memoryDirectoryFactory);
+    }
+
+    @Test
+    public void testAsyncReplicateOnGetEntry() throws Exception {
+        assertTrue(resilientDir.getReplicator().isAsync());
+        assertEquals("1", dir.getEntry("1").getProperty("schema1", "uid"));
+
+        assertTrue(resilientDir.getReplicator().waitForReplication(5000));
+        Session dir2 = memdir2.getSession();
+        assertNotNull(dir2.getEntry("1"));
+        assertEquals("foo1", dir2.getEntry("1").getProperty("schema1", "foo"));
+    }
+
+    @Test
+    public void testAsyncDeleteOnGetEntry() throws Exception {
+        assertNull(dir.getEntry("2"));
+
+        assertTrue(resilientDir.getReplicator().waitForReplication(5000));
+        assertNull(memdir2.getSession().getEntry("2"));
+    }
+
+    @Test
+    public void testAsyncCreateEntry() throws Exception {
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", "3");
+        e.put("foo", "foo3");
+        e.put("bar", "bar3");
+        dir.createEntry(e);
+        assertNotNull(memdir1.getSession().getEntry("3"));
+
+        assertTrue(resilientDir.getReplicator().waitForReplication(5000));
+        assertEquals("bar3",
+                memdir2.getSession().getEntry("3").getProperty("schema1",
+                        "bar"));
+    }
+
+}
@@ -375,6 +375,8 @@ public class TestResilientDirectory {
         list = dir.getProjection(filter, "bar");
         Collections.sort(list);
         assertEquals(Arrays.asList("bar1", "bar4"), list);
+        // read on the master only, nothing synchronized on the slave
+        assertNull(memdir2.getSession().getEntry("1"));
 
         // XXX test projection on unknown column
         // Is it normal that all results are returned
@@ -0,0 +1,479 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.TransactionalFeature;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryFactory;
+import org.nuxeo.ecm.directory.resilient.CircuitBreaker;
+import org.nuxeo.ecm.directory.resilient.CredentialStore;
+import org.nuxeo.ecm.directory.resilient.HealthMonitor;
+import org.nuxeo.ecm.directory.resilient.HedgingPolicy;
+import org.nuxeo.ecm.directory.resilient.MasterReadOnlyState;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectorySession;
+import org.nuxeo.ecm.directory.resilient.ResilientMetrics;
+import org.nuxeo.ecm.directory.resilient.SessionPool;
+import org.nuxeo.ecm.directory.resilient.SourceMetrics;
+import org.nuxeo.ecm.directory.resilient.SubDirectoryState;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeHarness;
+
+import com.google.inject.Inject;
+
+/**
+ * Behavior of the resilient directory when the master is failing or slow.
+ *
+ * @author Maxime Hilaire
+ *
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ TransactionalFeature.class, CoreFeature.class })
+@RepositoryConfig(init = DefaultRepositoryInit.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory",
+        "org.nuxeo.ecm.core.schema", "org.nuxeo.ecm.directory.types.contrib",
+        "org.nuxeo.ecm.directory.resilient" })
+public class TestResilientFailover {
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    @Inject
+    DirectoryService directoryService;
+
+    @Inject
+    protected RuntimeHarness harness;
+
+    MemoryDirectoryFactory memoryDirectoryFactory;
+
+    FaultyMemoryDirectory master;
+
+    FaultyMemoryDirectory slave;
+
+    ResilientDirectory resilientDir;
+
+    ResilientDirectorySession dir;
+
+    @Before
+    public void setUp() throws Exception {
+        harness.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+        memoryDirectoryFactory = new MemoryDirectoryFactory();
+        directoryService.registerDirectory("memdirs", memoryDirectoryFactory);
+
+        Set<String> schema1Set = new HashSet<String>(Arrays.asList("uid",
+                "foo", "bar"));
+
+        master = new FaultyMemoryDirectory("faultyDir1", "schema1",
+                schema1Set, "uid", "foo");
+        memoryDirectoryFactory.registerDirectory(master);
+        slave = new FaultyMemoryDirectory("faultyDir2", "schema1", schema1Set,
+                "uid", "foo");
+        memoryDirectoryFactory.registerDirectory(slave);
+
+        for (int i = 1; i <= 3; i++) {
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", String.valueOf(i));
+            e.put("foo", "foo" + i);
+            e.put("bar", "bar" + i);
+            master.getSession().createEntry(e);
+        }
+
+        harness.deployContrib(TEST_BUNDLE,
+                "resilient-memory-failover-directories-config.xml");
+
+        resilientDir = (ResilientDirectory) directoryService.getDirectory("failoverResilient");
+        dir = (ResilientDirectorySession) resilientDir.getSession();
+
+        // replicate the entries on the slave
+        for (int i = 1; i <= 3; i++) {
+            assertNotNull(dir.getEntry(String.valueOf(i)));
+        }
+        assertNotNull(slave.getSession().getEntry("3"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dir.close();
+        memoryDirectoryFactory.unregisterDirectory(master);
+        memoryDirectoryFactory.unregisterDirectory(slave);
+        directoryService.unregisterDirectory("memdirs", memoryDirectoryFactory);
+    }
+
+    @Test
+    public void testCircuitOpensOnMasterFailures() throws Exception {
+        CircuitBreaker breaker = resilientDir.getSubDirectoryState(
+                "faultyDir1").getCircuitBreaker();
+        master.setFailing(true);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(dir.hasEntry("1"));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // the master is not called anymore while the circuit is open
+        master.resetCallCount();
+        assertTrue(dir.hasEntry("2"));
+        assertTrue(dir.authenticate("3", "foo3"));
+        assertEquals(0, master.getCallCount());
+        assertEquals("bar3", dir.getEntry("3").getProperty("schema1", "bar"));
+    }
+
+    @Test
+    public void testSlowMasterReadsAreHedgedOnSlave() throws Exception {
+        HedgingPolicy hedging = resilientDir.getHedgingPolicy();
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", "4");
+        e.put("foo", "foo4");
+        e.put("bar", "bar4");
+        master.getSession().createEntry(e);
+
+        master.setLatency(1000);
+        assertTrue(dir.hasEntry("1"));
+        assertEquals("bar2", dir.getEntry("2").getProperty("schema1", "bar"));
+        assertEquals(2, hedging.getHedgeCount());
+        assertEquals(2, hedging.getHedgeWinCount());
+
+        // the slave does not know the entry yet, the master has the last word
+        assertEquals("bar4", dir.getEntry("4").getProperty("schema1", "bar"));
+        assertEquals(3, hedging.getHedgeCount());
+        assertEquals(1, hedging.getMasterWinCount());
+    }
+
+    @Test
+    public void testUnchangedEntriesAreNotWrittenOnSlave() throws Exception {
+        slave.resetCallCount();
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(dir.getEntry("1"));
+            assertTrue(dir.hasEntry("2"));
+        }
+        assertEquals(0, slave.getCallCount());
+
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", "1");
+        e.put("foo", "foo1");
+        e.put("bar", "changed");
+        DocumentModel entry = BaseSession.createEntryModel(null, "schema1",
+                "1", null);
+        entry.getDataModel("schema1").setMap(e);
+        master.getSession().updateEntry(entry);
+        assertEquals("changed", dir.getEntry("1").getProperty("schema1", "bar"));
+        assertEquals("changed",
+                slave.getSession().getEntry("1").getProperty("schema1", "bar"));
+    }
+
+    @Test
+    public void testSubSessionsAreReused() throws Exception {
+        SessionPool pool = resilientDir.getSessionPool();
+        dir.close();
+        assertEquals(1, pool.getIdleCount("faultyDir1"));
+        long opened = pool.getOpenedCount();
+
+        for (int i = 0; i < 3; i++) {
+            dir = (ResilientDirectorySession) resilientDir.getSession();
+            assertNotNull(dir.getEntry("1"));
+            assertEquals(1, pool.getActiveCount("faultyDir1"));
+            dir.close();
+        }
+        assertEquals(opened, pool.getOpenedCount());
+        assertTrue(pool.getReusedCount() >= 3);
+        assertTrue(pool.getOpenLatency().getCount() > 0);
+
+        // a session that failed is not reused
+        dir = (ResilientDirectorySession) resilientDir.getSession();
+        master.setFailing(true);
+        assertNotNull(dir.getEntry("1"));
+        master.setFailing(false);
+        dir.close();
+        assertEquals(0, pool.getIdleCount("faultyDir1"));
+        dir = (ResilientDirectorySession) resilientDir.getSession();
+    }
+
+    @Test
+    public void testReadOnlyStateIsCached() throws Exception {
+        MasterReadOnlyState readOnlyState = resilientDir.getMasterReadOnlyState();
+        assertFalse(dir.isReadOnly());
+        master.resetCallCount();
+        for (int i = 0; i < 100; i++) {
+            assertFalse(dir.isReadOnly());
+        }
+        assertEquals(0, master.getCallCount());
+
+        // the last known state is kept while the master is down
+        master.setFailing(true);
+        assertFalse(readOnlyState.refresh());
+        assertFalse(dir.isReadOnly());
+    }
+
+    @Test
+    public void testMissingEntriesAreNotProbedOnSlaveAgain() throws Exception {
+        slave.resetCallCount();
+        for (int i = 0; i < 5; i++) {
+            assertNull(dir.getEntry("unknown"));
+            assertFalse(dir.hasEntry("unknown"));
+        }
+        // a single hasEntry to know there is nothing to delete
+        assertEquals(1, slave.getCallCount());
+
+        // forgotten once created
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", "unknown");
+        e.put("foo", "foo");
+        e.put("bar", "bar");
+        dir.createEntry(e);
+        assertNotNull(slave.getSession().getEntry("unknown"));
+        assertEquals(0, resilientDir.getNegativeCache().size());
+    }
+
+    @Test
+    public void testProjectionFallsBackOnSlave() throws Exception {
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        filter.put("bar", "bar2");
+        assertEquals(Arrays.asList("2"), dir.getProjection(filter, "uid"));
+
+        master.setFailing(true);
+        slave.resetCallCount();
+        assertEquals(Arrays.asList("2"), dir.getProjection(filter, "uid"));
+        assertEquals(1, slave.getCallCount());
+    }
+
+    @Test
+    public void testEntriesAreReadOnSlaveIfMasterFails() throws Exception {
+        master.setFailing(true);
+        assertEquals(3, dir.getEntries().size());
+    }
+
+    @Test
+    public void testMetricsAreRecordedAndExposed() throws Exception {
+        ResilientMetrics metrics = resilientDir.getMetrics();
+        SourceMetrics masterMetrics = resilientDir.getSubDirectoryState(
+                "faultyDir1").getMetrics();
+        SourceMetrics slaveMetrics = resilientDir.getSubDirectoryState(
+                "faultyDir2").getMetrics();
+        // the entries read at setup have been created on the slave
+        assertTrue(masterMetrics.getCallCount(SourceMetrics.Operation.GET_ENTRY) >= 3);
+        assertEquals(3,
+                slaveMetrics.getCallCount(SourceMetrics.Operation.CREATE));
+        assertEquals(3, metrics.getReplicationSuccessCount());
+        assertEquals(0, metrics.getFallbackCount());
+
+        // unchanged, not written again
+        assertNotNull(dir.getEntry("1"));
+        assertEquals(1, metrics.getSkippedWriteCount());
+
+        master.setFailing(true);
+        assertEquals("bar2", dir.getEntry("2").getProperty("schema1", "bar"));
+        assertEquals(1, metrics.getFallbackCount());
+        assertEquals(1,
+                masterMetrics.getFailureCount(SourceMetrics.Operation.GET_ENTRY));
+        assertTrue(slaveMetrics.getLatency(SourceMetrics.Operation.GET_ENTRY).getCount() > 0);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ResilientMetrics.DOMAIN
+                + ":type=ResilientDirectory,directory="
+                + ObjectName.quote("failoverResilient"));
+        assertEquals(Long.valueOf(1),
+                server.getAttribute(name, "FallbackCount"));
+        ObjectName slaveName = new ObjectName(ResilientMetrics.DOMAIN
+                + ":type=SubDirectory,directory="
+                + ObjectName.quote("failoverResilient") + ",name="
+                + ObjectName.quote("faultyDir2"));
+        assertTrue(server.isRegistered(slaveName));
+        assertEquals("CLOSED", server.getAttribute(slaveName, "CircuitState"));
+    }
+
+    @Test
+    public void testMasterDownIsSkippedUntilItAnswers() throws Exception {
+        HealthMonitor monitor = resilientDir.getHealthMonitor();
+        SubDirectoryState masterState = resilientDir.getSubDirectoryState("faultyDir1");
+        monitor.probe();
+        assertEquals(HealthMonitor.Health.UP, monitor.getHealth());
+
+        master.setFailing(true);
+        monitor.probe();
+        assertEquals(HealthMonitor.Health.DEGRADED, masterState.getHealth());
+        monitor.probe();
+        assertEquals(HealthMonitor.Health.DOWN, masterState.getHealth());
+        assertEquals(HealthMonitor.Health.DEGRADED, monitor.getHealth());
+
+        // the sessions do not call the master anymore
+        master.resetCallCount();
+        assertEquals("bar2", dir.getEntry("2").getProperty("schema1", "bar"));
+        assertTrue(dir.hasEntry("3"));
+        assertEquals(0, master.getCallCount());
+        assertEquals(CircuitBreaker.State.CLOSED,
+                masterState.getCircuitBreaker().getState());
+
+        master.setFailing(false);
+        monitor.probe();
+        assertEquals(HealthMonitor.Health.UP, monitor.getHealth());
+        master.resetCallCount();
+        assertNotNull(dir.getEntry("1"));
+        assertTrue(master.getCallCount() > 0);
+    }
+
+    @Test
+    public void testRecentlySyncedEntriesAreReadOnSlave() throws Exception {
+        ResilientDirectory slaveFirstDir = (ResilientDirectory) directoryService.getDirectory("slaveFirstResilient");
+        Session session = slaveFirstDir.getSession();
+        try {
+            // read on the master, which syncs the slave
+            assertEquals("bar1",
+                    session.getEntry("1").getProperty("schema1", "bar"));
+
+            master.resetCallCount();
+            slave.resetCallCount();
+            assertEquals("bar1",
+                    session.getEntry("1").getProperty("schema1", "bar"));
+            assertTrue(session.hasEntry("1"));
+            assertEquals(0, master.getCallCount());
+            assertEquals(1, slave.getCallCount());
+
+            // never synced by this directory, read on the master
+            assertEquals("bar2",
+                    session.getEntry("2").getProperty("schema1", "bar"));
+            assertTrue(master.getCallCount() > 0);
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testHungMasterReadsFallBackAtTheirDeadline() throws Exception {
+        ResilientDirectory timeoutDir = (ResilientDirectory) directoryService.getDirectory("timeoutResilient");
+        Session session = timeoutDir.getSession();
+        try {
+            assertFalse(session.isReadOnly());
+            master.setLatency(5000);
+            long start = System.currentTimeMillis();
+            assertEquals("bar2",
+                    session.getEntry("2").getProperty("schema1", "bar"));
+            assertTrue(session.hasEntry("3"));
+            long duration = System.currentTimeMillis() - start;
+            assertTrue("reads took " + duration + "ms", duration < 2000);
+            assertEquals(2, timeoutDir.getTimeoutPolicy().getTimeoutCount());
+        } finally {
+            master.setLatency(0);
+            session.close();
+        }
+    }
+
+    @Test
+    public void testPasswordsRejectedByMasterAreForgotten() throws Exception {
+        ResilientDirectory credentialsDir = (ResilientDirectory) directoryService.getDirectory("credentialsResilient");
+        CredentialStore credentials = credentialsDir.getCredentialStore();
+        Session session = credentialsDir.getSession();
+        try {
+            assertTrue(session.authenticate("1", "foo1"));
+            assertTrue(credentials.verify("1", "foo1"));
+
+            // the password changed on the master only
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", "1");
+            e.put("foo", "changed1");
+            e.put("bar", "bar1");
+            DocumentModel entry = BaseSession.createEntryModel(null,
+                    "schema1", "1", null);
+            entry.getDataModel("schema1").setMap(e);
+            master.getSession().updateEntry(entry);
+
+            assertFalse(session.authenticate("1", "foo1"));
+            assertFalse(credentials.contains("1"));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testCreatedPasswordsAreVerifiedLocally() throws Exception {
+        ResilientDirectory credentialsDir = (ResilientDirectory) directoryService.getDirectory("credentialsResilient");
+        CredentialStore credentials = credentialsDir.getCredentialStore();
+        Session session = credentialsDir.getSession();
+        try {
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", "5");
+            e.put("foo", "foo5");
+            e.put("bar", "bar5");
+            session.createEntry(e);
+            assertTrue(credentials.verify("5", "foo5"));
+
+            master.setFailing(true);
+            assertTrue(session.authenticate("5", "foo5"));
+            assertFalse(session.authenticate("5", "wrong"));
+        } finally {
+            master.setFailing(false);
+            session.close();
+        }
+    }
+
+    @Test
+    public void testUpdatedPasswordsAreForgotten() throws Exception {
+        ResilientDirectory credentialsDir = (ResilientDirectory) directoryService.getDirectory("credentialsResilient");
+        CredentialStore credentials = credentialsDir.getCredentialStore();
+        Session session = credentialsDir.getSession();
+        try {
+            assertTrue(session.authenticate("2", "foo2"));
+            assertTrue(credentials.contains("2"));
+
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", "2");
+            e.put("foo", "changed2");
+            e.put("bar", "bar2");
+            DocumentModel entry = BaseSession.createEntryModel(null,
+                    "schema1", "2", null);
+            entry.getDataModel("schema1").setMap(e);
+            session.updateEntry(entry);
+            assertFalse(credentials.contains("2"));
+
+            // verified again once the master accepts it
+            assertTrue(session.authenticate("2", "changed2"));
+            assertTrue(credentials.verify("2", "changed2"));
+        } finally {
+            session.close();
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.TransactionalFeature;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.memory.MemoryDirectory;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryFactory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectorySession;
+import org.nuxeo.ecm.directory.resilient.SlaveSelector;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeHarness;
+
+import com.google.inject.Inject;
+
+/**
+ * Parallel writes on the slaves: a slow slave does not delay the others.
+ *
+ * @author Maxime Hilaire
+ *
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ TransactionalFeature.class, CoreFeature.class })
+@RepositoryConfig(init = DefaultRepositoryInit.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory",
+        "org.nuxeo.ecm.core.schema", "org.nuxeo.ecm.directory.types.contrib",
+        "org.nuxeo.ecm.directory.resilient" })
+public class TestResilientFanOut {
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    @Inject
+    DirectoryService directoryService;
+
+    @Inject
+    protected RuntimeHarness harness;
+
+    MemoryDirectoryFactory memoryDirectoryFactory;
+
+    MemoryDirectory master;
+
+    FaultyMemoryDirectory slowSlave;
+
+    MemoryDirectory fastSlave;
+
+    ResilientDirectory resilientDir;
+
+    ResilientDirectorySession dir;
+
+    @Before
+    public void setUp() throws Exception {
+        harness.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+        memoryDirectoryFactory = new MemoryDirectoryFactory();
+        directoryService.registerDirectory("memdirs", memoryDirectoryFactory);
+
+        Set<String> schema1Set = new HashSet<String>(Arrays.asList("uid",
+                "foo", "bar"));
+
+        master = new MemoryDirectory("fanOutDir1", "schema1", schema1Set,
+                "uid", "foo");
+        memoryDirectoryFactory.registerDirectory(master);
+        slowSlave = new FaultyMemoryDirectory("fanOutDir2", "schema1",
+                schema1Set, "uid", "foo");
+        memoryDirectoryFactory.registerDirectory(slowSlave);
+        fastSlave = new MemoryDirectory("fanOutDir3", "schema1", schema1Set,
+                "uid", "foo");
+        memoryDirectoryFactory.registerDirectory(fastSlave);
+
+        harness.deployContrib(TEST_BUNDLE,
+                "resilient-memory-fanout-directories-config.xml");
+
+        resilientDir = (ResilientDirectory) directoryService.getDirectory("fanOutResilient");
+        dir = (ResilientDirectorySession) resilientDir.getSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dir.close();
+        memoryDirectoryFactory.unregisterDirectory(master);
+        memoryDirectoryFactory.unregisterDirectory(slowSlave);
+        memoryDirectoryFactory.unregisterDirectory(fastSlave);
+        directoryService.unregisterDirectory("memdirs", memoryDirectoryFactory);
+    }
+
+    @Test
+    public void testSlowSlaveDoesNotDelayTheOthers() throws Exception {
+        slowSlave.setLatency(1000);
+
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", "1");
+        e.put("foo", "foo1");
+        e.put("bar", "bar1");
+        long start = System.currentTimeMillis();
+        dir.createEntry(e);
+        long duration = System.currentTimeMillis() - start;
+
+        // acknowledged by the fast slave, the slow one is still writing
+        assertTrue("createEntry took " + duration + "ms", duration < 1000);
+        Session fast = fastSlave.getSession();
+        assertNotNull(fast.getEntry("1"));
+        assertEquals("bar1", fast.getEntry("1").getProperty("schema1", "bar"));
+        slowSlave.setLatency(0);
+        Session slow = slowSlave.getSession();
+
+        // the slow write goes on after the caller stopped waiting
+        long deadline = System.currentTimeMillis() + 10000;
+        while (slow.getEntry("1") == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertNotNull(slow.getEntry("1"));
+    }
+
+    @Test
+    public void testFallbackReadsAreSpreadOverTheSlaves() throws Exception {
+        // a different value on each slave tells which one answered
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", "1");
+        e.put("foo", "foo1");
+        e.put("bar", "bar1");
+        master.getSession().createEntry(e);
+        e.put("bar", "bar3");
+        fastSlave.getSession().createEntry(e);
+
+        ResilientDirectory roundRobinDir = (ResilientDirectory) directoryService.getDirectory("roundRobinResilient");
+        assertEquals(SlaveSelector.Policy.ROUND_ROBIN,
+                roundRobinDir.getSlaveSelector().getPolicy());
+        slowSlave.setFailing(true);
+        Session session = roundRobinDir.getSession();
+        try {
+            Set<Object> values = new HashSet<Object>();
+            for (int i = 0; i < 4; i++) {
+                values.add(session.getEntry("1").getProperty("schema1", "bar"));
+            }
+            assertEquals(new HashSet<Object>(Arrays.asList("bar1", "bar3")),
+                    values);
+        } finally {
+            session.close();
+            slowSlave.setFailing(false);
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.TransactionalFeature;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.memory.MemoryDirectory;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryFactory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectorySession;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeHarness;
+
+import com.google.inject.Inject;
+
+/**
+ * Paged queries and snapshots on memory directories, which do not page the
+ * results themselves. The master holds exactly a page of entries.
+ *
+ * @author Maxime Hilaire
+ *
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ TransactionalFeature.class, CoreFeature.class })
+@RepositoryConfig(init = DefaultRepositoryInit.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory",
+        "org.nuxeo.ecm.core.schema", "org.nuxeo.ecm.directory.types.contrib",
+        "org.nuxeo.ecm.directory.resilient" })
+public class TestResilientPaging {
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    @Inject
+    DirectoryService directoryService;
+
+    @Inject
+    protected RuntimeHarness harness;
+
+    MemoryDirectoryFactory memoryDirectoryFactory;
+
+    FaultyMemoryDirectory master;
+
+    MemoryDirectory slave;
+
+    ResilientDirectory resilientDir;
+
+    ResilientDirectorySession dir;
+
+    @Before
+    public void setUp() throws Exception {
+        harness.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+        memoryDirectoryFactory = new MemoryDirectoryFactory();
+        directoryService.registerDirectory("memdirs", memoryDirectoryFactory);
+
+        Set<String> schema1Set = new HashSet<String>(Arrays.asList("uid",
+                "foo", "bar"));
+
+        master = new FaultyMemoryDirectory("pagingDir1", "schema1",
+                schema1Set, "uid", "foo");
+        memoryDirectoryFactory.registerDirectory(master);
+        slave = new MemoryDirectory("pagingDir2", "schema1", schema1Set,
+                "uid", "foo");
+        memoryDirectoryFactory.registerDirectory(slave);
+
+        Session session = master.getSession();
+        for (String id : Arrays.asList("1", "4")) {
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", id);
+            e.put("foo", "foo" + id);
+            e.put("bar", "bar" + id);
+            session.createEntry(e);
+        }
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", "2");
+        e.put("foo", "foo2");
+        e.put("bar", "bar2");
+        slave.getSession().createEntry(e);
+
+        harness.deployContrib(TEST_BUNDLE,
+                "resilient-memory-paging-directories-config.xml");
+
+        resilientDir = (ResilientDirectory) directoryService.getDirectory("pagingResilient");
+        dir = (ResilientDirectorySession) resilientDir.getSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dir.close();
+        memoryDirectoryFactory.unregisterDirectory(master);
+        memoryDirectoryFactory.unregisterDirectory(slave);
+        directoryService.unregisterDirectory("memdirs", memoryDirectoryFactory);
+    }
+
+    @Test
+    public void testPagedQuery() throws Exception {
+        Session slaveSession = slave.getSession();
+        Map<String, Serializable> filter = Collections.emptyMap();
+        Set<String> fulltext = Collections.emptySet();
+        Map<String, String> orderBy = Collections.singletonMap("uid", "asc");
+
+        DocumentModelList first = dir.query(filter, fulltext, orderBy, false,
+                1, 0);
+        assertEquals(1, first.size());
+        String firstId = first.get(0).getId();
+        // only the entries of the page are synchronized, none deleted
+        assertNotNull(slaveSession.getEntry(firstId));
+        assertNotNull(slaveSession.getEntry("2"));
+
+        DocumentModelList second = dir.query(filter, fulltext, orderBy,
+                false, 1, 1);
+        assertEquals(1, second.size());
+        assertFalse(firstId.equals(second.get(0).getId()));
+        assertNotNull(slaveSession.getEntry("1"));
+        assertNotNull(slaveSession.getEntry("4"));
+
+        // a page of exactly all the entries, then an empty one
+        assertEquals(2,
+                dir.query(filter, fulltext, orderBy, false, 2, 0).size());
+        assertEquals(0,
+                dir.query(filter, fulltext, orderBy, false, 2, 2).size());
+        // the offset is applied without limit
+        DocumentModelList rest = dir.query(filter, fulltext, orderBy, false,
+                0, 1);
+        assertEquals(1, rest.size());
+        assertEquals("4", rest.get(0).getId());
+    }
+
+    @Test
+    public void testCountAndIterateExactlyAPage() throws Exception {
+        Map<String, Serializable> filter = Collections.emptyMap();
+        Set<String> fulltext = Collections.emptySet();
+
+        assertEquals(2, dir.count(filter, fulltext));
+        Set<String> ids = new HashSet<String>();
+        Iterator<DocumentModel> it = dir.iterate(filter, fulltext, null,
+                false);
+        while (it.hasNext()) {
+            ids.add(it.next().getId());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("1", "4")), ids);
+    }
+
+    @Test
+    public void testGetEntries() throws Exception {
+        master.resetCallCount();
+        DocumentModelList entries = dir.getEntries();
+        // read at once, without a round of parallel pages
+        assertEquals(1, master.getCallCount());
+        Set<String> ids = new HashSet<String>();
+        for (DocumentModel entry : entries) {
+            ids.add(entry.getId());
+        }
+        assertEquals(2, entries.size());
+        assertEquals(new HashSet<String>(Arrays.asList("1", "4")), ids);
+        // a snapshot, nothing synchronized on the slave
+        assertNull(slave.getSession().getEntry("1"));
+
+        ids.clear();
+        Iterator<DocumentModel> it = dir.iterateEntries();
+        while (it.hasNext()) {
+            ids.add(it.next().getId());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("1", "4")), ids);
+        assertNull(slave.getSession().getEntry("4"));
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * (C) Copyright 2014 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     mhilaire
+ *
+ */
+
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.TransactionalFeature;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.memory.MemoryDirectory;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryFactory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectorySession;
+import org.nuxeo.ecm.directory.resilient.ResilientReconciler;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeHarness;
+
+import com.google.inject.Inject;
+
+/**
+ * Background resynchronization of the slaves.
+ *
+ * @author Maxime Hilaire
+ *
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ TransactionalFeature.class, CoreFeature.class })
+@RepositoryConfig(init = DefaultRepositoryInit.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory",
+        "org.nuxeo.ecm.core.schema", "org.nuxeo.ecm.directory.types.contrib",
+        "org.nuxeo.ecm.directory.resilient" })
+public class TestResilientResync {
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    @Inject
+    DirectoryService directoryService;
+
+    @Inject
+    protected RuntimeHarness harness;
+
+    MemoryDirectoryFactory memoryDirectoryFactory;
+
+    MemoryDirectory memdir1;
+
+    FaultyMemoryDirectory memdir2;
+
+    ResilientDirectory resilientDir;
+
+    ResilientDirectorySession dir;
+
+    @Before
+    public void setUp() throws Exception {
+        harness.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+        memoryDirectoryFactory = new MemoryDirectoryFactory();
+        directoryService.registerDirectory("memdirs", memoryDirectoryFactory);
+
+        Set<String> schema1Set = new HashSet<String>(Arrays.asList("uid",
+                "foo", "bar"));
+
+        memdir1 = new MemoryDirectory("dir1", "schema1", schema1Set, "uid",
+                "foo");
+        memoryDirectoryFactory.registerDirectory(memdir1);
+        Session dir1 = memdir1.getSession();
+        for (int i = 1; i <= 5; i++) {
+            dir1.createEntry(entry(i, "bar" + i));
+        }
+
+        memdir2 = new FaultyMemoryDirectory("dir2", "schema1", schema1Set,
+                "uid", "foo");
+        memoryDirectoryFactory.registerDirectory(memdir2);
+        Session dir2 = memdir2.getSession();
+        dir2.createEntry(entry(2, "old"));
+        dir2.createEntry(entry(3, "bar3"));
+        dir2.createEntry(entry(9, "bar9"));
+
+        harness.deployContrib(TEST_BUNDLE,
+                "resilient-memory-resync-directories-config.xml");
+
+        resilientDir = (ResilientDirectory) directoryService.getDirectory("resyncResilient");
+        dir = (ResilientDirectorySession) resilientDir.getSession();
+    }
+
+    static Map<String, Object> entry(int id, String bar) {
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", String.valueOf(id));
+        e.put("foo", "foo" + id);
+        e.put("bar", bar);
+        return e;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dir.close();
+        memoryDirectoryFactory.unregisterDirectory(memdir1);
+        memoryDirectoryFactory.unregisterDirectory(memdir2);
+        directoryService.unregisterDirectory("memdirs", memoryDirectoryFactory);
+    }
+
+    @Test
+    public void testResync() throws Exception {
+        Session dir2 = memdir2.getSession();
+
+        // the read path does not replicate anymore
+        assertNotNull(dir.getEntry("1"));
+        assertNull(dir2.getEntry("1"));
+
+        ResilientReconciler reconciler = resilientDir.getReconciler();
+        assertTrue(reconciler.resync());
+        assertEquals(5, reconciler.getScannedCount());
+        assertEquals(3, reconciler.getCreatedCount());
+        assertEquals(1, reconciler.getUpdatedCount());
+        assertEquals(1, reconciler.getDeletedCount());
+        assertEquals(ResilientReconciler.Phase.IDLE, reconciler.getPhase());
+
+        for (int i = 1; i <= 5; i++) {
+            assertEquals("bar" + i,
+                    dir2.getEntry(String.valueOf(i)).getProperty("schema1",
+                            "bar"));
+        }
+        assertNull(dir2.getEntry("9"));
+
+        // nothing left to do
+        assertTrue(reconciler.resync());
+        assertEquals(0, reconciler.getCreatedCount()
+                + reconciler.getUpdatedCount() + reconciler.getDeletedCount());
+    }
+
+    @Test
+    public void testResyncExactlyAPage() throws Exception {
+        Session dir1 = memdir1.getSession();
+        for (int i = 3; i <= 5; i++) {
+            dir1.deleteEntry(String.valueOf(i));
+        }
+        Session dir2 = memdir2.getSession();
+
+        // the master holds exactly resync pageSize entries
+        ResilientReconciler reconciler = resilientDir.getReconciler();
+        assertTrue(reconciler.resync());
+        assertEquals(2, reconciler.getScannedCount());
+        assertEquals(1, reconciler.getCreatedCount());
+        assertEquals(1, reconciler.getUpdatedCount());
+        assertEquals(2, reconciler.getDeletedCount());
+
+        assertEquals("bar1", dir2.getEntry("1").getProperty("schema1", "bar"));
+        assertEquals("bar2", dir2.getEntry("2").getProperty("schema1", "bar"));
+        assertNull(dir2.getEntry("3"));
+        assertNull(dir2.getEntry("9"));
+    }
+
+    @Test
+    public void testSlaveIsReadByPages() throws Exception {
+        ResilientReconciler reconciler = resilientDir.getReconciler();
+        assertTrue(reconciler.resync());
+
+        // the slave is queried once per walk, not read entry by entry
+        memdir2.resetCallCount();
+        assertTrue(reconciler.resync());
+        assertEquals(5, reconciler.getScannedCount());
+        assertEquals(2, memdir2.getCallCount());
+    }
+
+    @Test
+    public void testResumeFromSlaveCheckpoint() throws Exception {
+        // interrupted while walking the slave, after the master walk
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("phase", "SLAVES");
+        checkpoint.setProperty("offset", "0");
+        checkpoint.setProperty("slave", "dir2");
+        File file = new File(resilientDir.getDataDirectory(),
+                "resyncResilient.resync");
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            checkpoint.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        ResilientReconciler reconciler = resilientDir.getReconciler();
+        assertTrue(reconciler.resync());
+        assertFalse(file.exists());
+        // the master is not walked again, its ids are still known
+        assertEquals(0, reconciler.getCreatedCount());
+        assertEquals(1, reconciler.getDeletedCount());
+        Session dir2 = memdir2.getSession();
+        assertNull(dir2.getEntry("9"));
+        assertNotNull(dir2.getEntry("3"));
+        assertNull(dir2.getEntry("1"));
+    }
+
+}